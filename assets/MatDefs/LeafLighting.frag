@@ -61,6 +61,10 @@ varying float vDistance;
 
 uniform float m_AlphaDiscardThreshold;
 
+#ifdef LOD_FADE
+  uniform float m_LodFade;
+#endif
+
 #ifndef VERTEX_LIGHTING
 uniform float m_Shininess;
 
@@ -191,6 +195,16 @@ void main(){
     if(alpha < m_AlphaDiscardThreshold){
         discard;
     }
+
+    #ifdef LOD_FADE
+        // Screen-door cross-fade.  The level fading in keeps the pixels
+        // whose threshold is below its fade and the level fading out keeps
+        // the rest so together they cover every pixel once.
+        float lodThreshold = fract(52.9829189 * fract(dot(gl_FragCoord.xy, vec2(0.06711056, 0.00583715))));
+        if( m_LodFade >= 0.0 ? lodThreshold >= m_LodFade : lodThreshold < 1.0 + m_LodFade ) {
+            discard;
+        }
+    #endif
     
 
     #ifndef VERTEX_LIGHTING
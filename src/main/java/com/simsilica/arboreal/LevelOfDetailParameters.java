@@ -96,6 +96,21 @@ public class LevelOfDetailParameters {
      */
     public int maxRadialSegments;
  
+    /**
+     *  The maximum geometric error, in world units, allowed when tessellating
+     *  the curves at branch joints.  Joint curves are reduced until they 
+     *  would deviate more than this from a smooth bend.  Set to 0 to use 
+     *  the full curve tessellation.
+     */
+    public float curveError;
+ 
+    /**
+     *  The fraction of leaves to remove at this level of detail by
+     *  merging nearby leaves into larger ones.  0 keeps every leaf and
+     *  0.75 keeps roughly one quarter of them.
+     */
+    public float leafReduction;
+ 
     
     public LevelOfDetailParameters() {
         this(0, ReductionType.Normal, Integer.MAX_VALUE, Integer.MAX_VALUE, 6);        
@@ -163,6 +178,8 @@ public class LevelOfDetailParameters {
         return "LOD[distance=" + distance + ", reduction=" + reduction 
                               + ", branchDepth=" + branchDepth
                               + ", rootDepth=" + rootDepth 
+                              + ", curveError=" + curveError 
+                              + ", leafReduction=" + leafReduction 
                               + "]";
     }   
 }
@@ -67,7 +67,7 @@ public class TreeGenerator {
  
         Tree result = new Tree();
  
-        Random random = new Random(seed);
+        Random random = new TreeRandom(seed);
         
         // Straight up rotation for the trunk
         Quaternion rotation = new Quaternion().fromAngles(-FastMath.HALF_PI, 0, 0);
@@ -307,6 +307,7 @@ public class TreeParameters implements Iterable<BranchParameters> {
                     newArray[i] = result[i];
                 }
             }
+            result = newArray;
         }
         for( int i = 0; i < result.length; i++ ) {
             Map<String, Object> value = list.get(i);
@@ -326,6 +327,7 @@ public class TreeParameters implements Iterable<BranchParameters> {
                     newArray[i] = result[i];
                 }
             }
+            result = newArray;
         }
         for( int i = 0; i < result.length; i++ ) {
             Map<String, Object> value = list.get(i);
@@ -427,6 +429,58 @@ public class TreeParameters implements Iterable<BranchParameters> {
         return result;
     } 
  
+    /**
+     *  Returns a 64 bit hash of all of the parameters except the seed,
+     *  including the branches, roots, and levels of detail.  Parameters 
+     *  with the same content have the same hash so it can be used to
+     *  identify a tree species regardless of which instance it came 
+     *  from.  The hash is calculated from toMap() and is not cached.
+     */
+    public long getContentHash() {
+        Map<String, Object> map = toMap();
+        map.remove("seed");
+        return hash(0xcbf29ce484222325L, map);
+    }
+ 
+    private static long hash( long hash, long value ) {
+        for( int i = 0; i < 8; i++ ) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+    
+    private static long hash( long hash, Object value ) {
+        if( value instanceof Map ) {
+            // Our maps are TreeMaps so the order is consistent
+            Map<?, ?> map = (Map<?, ?>)value; 
+            hash = hash(hash, map.size());
+            for( Map.Entry<?, ?> e : map.entrySet() ) {
+                hash = hash(hash, e.getKey());
+                hash = hash(hash, e.getValue());
+            }
+        } else if( value instanceof List ) {
+            List<?> list = (List<?>)value;
+            hash = hash(hash, list.size());
+            for( Object o : list ) {
+                hash = hash(hash, o);
+            }
+        } else if( value instanceof Float || value instanceof Double ) {
+            hash = hash(hash, Float.floatToIntBits(((Number)value).floatValue()));
+        } else if( value instanceof Number ) {
+            hash = hash(hash, ((Number)value).longValue());
+        } else if( value instanceof Boolean ) {
+            hash = hash(hash, ((Boolean)value) ? 1 : 0);
+        } else if( value != null ) {
+            String s = value.toString();
+            hash = hash(hash, s.length());
+            for( int i = 0; i < s.length(); i++ ) {
+                hash = hash(hash, s.charAt(i));
+            }
+        }
+        return hash;
+    }
+ 
     public static void main( String... args ) {
         
         TreeParameters test = new TreeParameters();
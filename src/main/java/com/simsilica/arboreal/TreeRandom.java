@@ -0,0 +1,103 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal;
+
+import java.util.Random;
+
+
+/**
+ *  An unsynchronized java.util.Random that produces exactly the same
+ *  sequence as Random for the same seed.  java.util.Random keeps its seed
+ *  in an AtomicLong and synchronizes setSeed() and nextGaussian() so that
+ *  it can be shared across threads.  TreeGenerator creates one per tree
+ *  and never shares it, so that cost is unnecessary and the locking can
+ *  pin virtual threads.  This class is not thread safe.
+ *
+ *  @author    Paul Speed
+ */
+public class TreeRandom extends Random {
+
+    private static final long serialVersionUID = 1L;
+ 
+    private static final long MULTIPLIER = 0x5DEECE66DL;
+    private static final long ADDEND = 0xBL;
+    private static final long MASK = (1L << 48) - 1;
+ 
+    // Note: Random's constructor calls setSeed() before our fields are
+    // initialized so these must not have initializers.   
+    private long value;
+    private double nextNextGaussian;
+    private boolean haveNextNextGaussian;
+    
+    public TreeRandom( long seed ) {
+        super(0);
+        setSeed(seed);
+    }
+    
+    @Override
+    public void setSeed( long seed ) {
+        this.value = (seed ^ MULTIPLIER) & MASK;
+        this.haveNextNextGaussian = false;
+    }
+    
+    @Override
+    protected int next( int bits ) {
+        value = (value * MULTIPLIER + ADDEND) & MASK;
+        return (int)(value >>> (48 - bits));
+    }
+ 
+    /**
+     *  Same algorithm as Random.nextGaussian() without the synchronization.
+     */   
+    @Override
+    public double nextGaussian() {
+        if( haveNextNextGaussian ) {
+            haveNextNextGaussian = false;
+            return nextNextGaussian;
+        }
+        double v1, v2, s;
+        do {
+            v1 = 2 * nextDouble() - 1;
+            v2 = 2 * nextDouble() - 1;
+            s = v1 * v1 + v2 * v2;
+        } while( s >= 1 || s == 0 );
+        double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+        nextNextGaussian = v2 * multiplier;
+        haveNextNextGaussian = true;
+        return v1 * multiplier;
+    }
+}
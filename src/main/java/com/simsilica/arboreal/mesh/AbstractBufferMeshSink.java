@@ -0,0 +1,150 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer.Type;
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ *  Base MeshSink implementation that writes straight into NIO buffers
+ *  sized exactly from the counts passed to begin().  Subclasses provide
+ *  the buffer allocation and convert the finished MeshBuffers into their
+ *  result.  Short indexes are used whenever the vertex count allows.
+ *
+ *  @author    Paul Speed
+ */
+public abstract class AbstractBufferMeshSink<T> implements MeshSink<T> {
+
+    private Mesh.Mode mode;
+    private int vertexCount;
+    private List<Type> types = new ArrayList<Type>();
+    private List<Integer> components = new ArrayList<Integer>();
+    private FloatBuffer[] buffers = new FloatBuffer[Type.values().length];
+    private ShortBuffer shortIndexes;
+    private IntBuffer intIndexes;
+ 
+    protected AbstractBufferMeshSink() {
+    }
+    
+    protected abstract FloatBuffer createFloatBuffer( int size );
+    
+    protected abstract ShortBuffer createShortBuffer( int size );
+    
+    protected abstract IntBuffer createIntBuffer( int size );
+ 
+    @Override
+    public void begin( Mesh.Mode mode, int vertexCount, int indexCount ) {
+        this.mode = mode;
+        this.vertexCount = vertexCount;
+        if( indexCount > 0 ) {
+            if( vertexCount <= 0xffff ) {
+                shortIndexes = createShortBuffer(indexCount);
+            } else {
+                intIndexes = createIntBuffer(indexCount);
+            }
+        }
+    }
+
+    @Override
+    public void addAttribute( Type type, int size ) {
+        if( buffers[type.ordinal()] != null ) {
+            throw new IllegalArgumentException("Attribute already declared:" + type);
+        }
+        types.add(type);
+        components.add(size);
+        buffers[type.ordinal()] = createFloatBuffer(vertexCount * size);
+    }
+    
+    @Override
+    public void put( Type type, float x ) {
+        buffers[type.ordinal()].put(x);
+    }
+    
+    @Override
+    public void put( Type type, float x, float y ) {
+        buffers[type.ordinal()].put(x).put(y);
+    }
+    
+    @Override
+    public void put( Type type, float x, float y, float z ) {
+        buffers[type.ordinal()].put(x).put(y).put(z);
+    }
+    
+    @Override
+    public void put( Type type, float x, float y, float z, float w ) {
+        buffers[type.ordinal()].put(x).put(y).put(z).put(w);
+    }
+    
+    @Override
+    public void putIndex( int index ) {
+        if( shortIndexes != null ) {
+            shortIndexes.put((short)index);
+        } else {
+            intIndexes.put(index);
+        }
+    }
+ 
+    /**
+     *  Rewinds all of the buffers and collects them into a MeshBuffers
+     *  object.
+     */   
+    protected MeshBuffers finish() {
+        int count = types.size();
+        Type[] typeArray = new Type[count];
+        int[] sizes = new int[count];
+        FloatBuffer[] data = new FloatBuffer[count];
+        for( int i = 0; i < count; i++ ) {
+            Type type = types.get(i);
+            typeArray[i] = type;
+            sizes[i] = components.get(i);
+            data[i] = buffers[type.ordinal()];
+            data[i].rewind();
+        }
+        Buffer indexes = shortIndexes != null ? shortIndexes : intIndexes;
+        if( indexes != null ) {
+            indexes.rewind();
+        }
+        return new MeshBuffers(mode, vertexCount, typeArray, sizes, data, indexes);
+    } 
+}
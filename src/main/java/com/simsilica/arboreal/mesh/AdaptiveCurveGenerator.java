@@ -0,0 +1,164 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *  A CurveGenerator that reduces the number of curve steps produced
+ *  by some delegate generator until the bend would deviate from a
+ *  true arc by more than a maximum geometric error.  Thin branches
+ *  can turn a much larger angle per step than thick ones for the same
+ *  error so they end up with far fewer loops.
+ *
+ *  <p>The end of the curve (center, direction, radius, and v) is always
+ *  exactly the same as the delegate's so that child branches don't move
+ *  when the error tolerance changes, ie: from one level of detail to the 
+ *  next.  Merged steps are oriented along the last merged step's direction 
+ *  and use the step offset to make up the remaining displacement.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class AdaptiveCurveGenerator implements CurveGenerator {
+
+    private final CurveGenerator delegate;
+    private final float maxError;
+    
+    public AdaptiveCurveGenerator( float maxError ) {
+        this(CurveGenerator.DEFAULT, maxError);
+    }
+    
+    /**
+     *  Creates an adaptive curve generator that reduces the curves of the
+     *  specified delegate.  maxError is the maximum distance, in world units,
+     *  that a branch surface may deviate from a perfectly round bend.
+     */
+    public AdaptiveCurveGenerator( CurveGenerator delegate, float maxError ) {
+        this.delegate = delegate;
+        this.maxError = maxError;
+    }
+    
+    public CurveGenerator getDelegate() {
+        return delegate;
+    }
+    
+    public float getMaxError() {
+        return maxError;
+    }
+ 
+    /**
+     *  Returns the number of corners needed to turn the specified angle for
+     *  a branch of the specified radius without exceeding the maximum error.
+     *  Turning by some angle 'a' around a circle of radius 'r' leaves a gap of 
+     *  r * (1 - cos(a/2)) between the chord and the true arc.
+     */
+    public int getCornerCount( float tiltAngle, float radius ) {
+        if( tiltAngle <= 0 ) {
+            return 1;
+        }
+        if( maxError <= 0 ) {
+            return Integer.MAX_VALUE;
+        }
+        float cos = 1 - maxError / radius;
+        if( cos <= -1 ) {
+            // Any angle is fine
+            return 1;
+        }
+        float maxAngle = 2 * FastMath.acos(cos);
+        return Math.max(1, (int)Math.ceil(tiltAngle / maxAngle));
+    }
+
+    @Override
+    public List<CurveStep> generateCurve( Vector3f startDir, float startRadius,
+                                          Vector3f endDir, float endRadius,
+                                          float v, float vScale ) {
+                                          
+        List<CurveStep> steps = delegate.generateCurve(startDir, startRadius, endDir, endRadius, 
+                                                       v, vScale);
+        int count = steps.size();
+        if( count <= 1 ) {
+            return steps;
+        }
+        
+        float tiltAngle = FastMath.acos(FastMath.clamp(startDir.dot(endDir), -1, 1));
+        int corners = getCornerCount(tiltAngle, Math.max(startRadius, endRadius));
+        if( corners >= count ) {
+            return steps;
+        }
+        
+        return mergeSteps(steps, corners);
+    }
+ 
+    /**
+     *  Merges the specified curve steps down to the specified number
+     *  of steps.  The end of the curve is unchanged.
+     */   
+    public static List<CurveStep> mergeSteps( List<CurveStep> steps, int corners ) {
+        int count = steps.size();
+        CurveStep[] result = new CurveStep[corners];
+        Vector3f disp = new Vector3f();
+        int next = 0;
+        for( int i = 0; i < corners; i++ ) {
+            // Pick evenly spaced steps, always ending with the last one
+            int last = Math.round((float)(i + 1) * count / corners) - 1;
+            
+            // Accumulate the full displacement of all of the merged steps
+            disp.set(0, 0, 0);
+            for( ; next <= last; next++ ) {
+                CurveStep step = steps.get(next);
+                disp.addLocal(step.dir.x * step.distance, 
+                              step.dir.y * step.distance, 
+                              step.dir.z * step.distance);
+                if( step.offset != null ) {
+                    disp.addLocal(step.offset);
+                }
+            }
+            
+            // Extrude along the last step's direction and offset the
+            // rest of the way
+            CurveStep step = steps.get(last);
+            float distance = disp.dot(step.dir);
+            Vector3f offset = disp.subtract(step.dir.mult(distance));
+            result[i] = new CurveStep(step.dir, distance, step.radius, step.center, offset, step.v);
+        }
+        return Arrays.asList(result);
+    }
+}
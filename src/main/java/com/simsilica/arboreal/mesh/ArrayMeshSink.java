@@ -0,0 +1,157 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ *  A MeshSink that collects the mesh into plain Java arrays, one
+ *  float[] per attribute and an int[] of indexes.  Useful for tools
+ *  and servers that want the generated data without any JME Mesh
+ *  or native memory.  The sink itself is returned as the result.
+ *
+ *  @author    Paul Speed
+ */
+public class ArrayMeshSink implements MeshSink<ArrayMeshSink> {
+
+    private Mesh.Mode mode;
+    private int vertexCount;
+    private List<Type> types = new ArrayList<Type>();
+    private int[] components = new int[Type.values().length];
+    private float[][] arrays = new float[Type.values().length][];
+    private int[] positions = new int[Type.values().length];
+    private int[] indexes;
+    private int nextIndex;
+    
+    public ArrayMeshSink() {
+    }
+ 
+    @Override
+    public void begin( Mesh.Mode mode, int vertexCount, int indexCount ) {
+        this.mode = mode;
+        this.vertexCount = vertexCount;
+        this.indexes = new int[indexCount];
+    }
+
+    @Override
+    public void addAttribute( Type type, int size ) {
+        types.add(type);
+        components[type.ordinal()] = size;
+        arrays[type.ordinal()] = new float[vertexCount * size];
+    }
+    
+    @Override
+    public void put( Type type, float x ) {
+        int t = type.ordinal();
+        arrays[t][positions[t]++] = x;
+    }
+    
+    @Override
+    public void put( Type type, float x, float y ) {
+        int t = type.ordinal();
+        float[] array = arrays[t];
+        int i = positions[t];
+        array[i++] = x;
+        array[i++] = y;
+        positions[t] = i;
+    }
+    
+    @Override
+    public void put( Type type, float x, float y, float z ) {
+        int t = type.ordinal();
+        float[] array = arrays[t];
+        int i = positions[t];
+        array[i++] = x;
+        array[i++] = y;
+        array[i++] = z;
+        positions[t] = i;
+    }
+    
+    @Override
+    public void put( Type type, float x, float y, float z, float w ) {
+        int t = type.ordinal();
+        float[] array = arrays[t];
+        int i = positions[t];
+        array[i++] = x;
+        array[i++] = y;
+        array[i++] = z;
+        array[i++] = w;
+        positions[t] = i;
+    }
+    
+    @Override
+    public void putIndex( int index ) {
+        indexes[nextIndex++] = index;
+    }
+ 
+    @Override
+    public ArrayMeshSink end() {
+        return this;
+    }
+    
+    public Mesh.Mode getMode() {
+        return mode;
+    }
+    
+    public int getVertexCount() {
+        return vertexCount;
+    }
+ 
+    /**
+     *  Returns the attribute types in the order they were declared.
+     */   
+    public List<Type> getTypes() {
+        return Collections.unmodifiableList(types);
+    }
+    
+    public int getComponents( Type type ) {
+        return components[type.ordinal()];
+    }
+    
+    public float[] getArray( Type type ) {
+        return arrays[type.ordinal()];
+    }
+    
+    public int[] getIndexes() {
+        return indexes;
+    }
+}
@@ -38,13 +38,20 @@ package com.simsilica.arboreal.mesh;
 
 import com.jme3.bounding.BoundingBox;
 import com.jme3.math.Vector3f;
-import com.jme3.math.Vector4f;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.VertexBuffer.Type;
 import com.jme3.util.BufferUtils;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import com.simsilica.arboreal.LevelOfDetailParameters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
@@ -53,37 +60,354 @@ import java.util.List;
  */
 public class BillboardedLeavesMeshGenerator {
 
+    static Logger log = LoggerFactory.getLogger(BillboardedLeavesMeshGenerator.class);
+
+    /**
+     *  The corner and texture atlas coordinates for each quad in the 
+     *  repeating texture cell sequence, 16 floats per quad.
+     */
+    private static final float[] CELL_TEXCOORDS = createCellTexCoords();
+    private static final int CELL_COUNT = CELL_TEXCOORDS.length / 16;
+
+    private boolean createCollisionData = false;
+ 
+    /**
+     *  Set to true to build the mesh collision data as part of generation.
+     *  Defaults to false since leaves are rarely picked and JME will create
+     *  the collision data on the first collideWith() anyway.
+     */   
+    public void setCreateCollisionData( boolean createCollisionData ) {
+        this.createCollisionData = createCollisionData;
+    }
+    
+    public boolean getCreateCollisionData() {
+        return createCollisionData;
+    }
+
     public Mesh generateMesh( List<Vertex> locations, float quadSize ) {
+        return generateMesh(LeafTipBuffer.fromVertexes(locations), quadSize);
+    }
  
-System.out.println( "Quad size:" + quadSize );
+    /**
+     *  Generates one leaf mesh per level of detail, reducing the leaves
+     *  for each level by its leafReduction.  Levels with the same 
+     *  reduction share the same mesh.
+     */
+    public List<Mesh> generateMeshes( LeafTipBuffer tips, float quadSize, 
+                                      List<LevelOfDetailParameters> lods ) {
+        LeafClusterGenerator clusters = new LeafClusterGenerator();
+        Map<Float, Mesh> meshes = new HashMap<Float, Mesh>();
+        List<Mesh> results = new ArrayList<Mesh>(lods.size());
+        for( LevelOfDetailParameters lod : lods ) {
+            Float key = Math.max(0, lod.leafReduction);
+            Mesh mesh = meshes.get(key);
+            if( mesh == null ) {
+                mesh = generateMesh(clusters.reduce(tips, key), quadSize);
+                meshes.put(key, mesh);
+            }
+            results.add(mesh);
+        }
+        return results;
+    }
     
+    /**
+     *  Generates a single leaf mesh with its leaves in priority order such
+     *  that any prefix of the index buffer is an evenly thinned version of
+     *  the whole canopy.  The mesh has one JME LOD level per supplied level
+     *  of detail, each a view of the shared index buffer limited to the 
+     *  leaves that level keeps according to its leafReduction.  Use 
+     *  Geometry.setLodLevel() to pick the range and getLeafCount() to read 
+     *  it back.  Only the CPU side index data is shared.  See MeshLodLevels
+     *  for what is uploaded to the GPU.
+     */
+    public Mesh generatePrefixMesh( LeafTipBuffer tips, float quadSize, 
+                                    List<LevelOfDetailParameters> lods ) {
+        Mesh mesh = generateMesh(tips.reorder(createPriorityOrder(tips)), quadSize);
+        
+        int count = tips.size();
+        int[] indexCounts = new int[lods.size()];
+        for( int i = 0; i < indexCounts.length; i++ ) {
+            float reduction = Math.max(0, lods.get(i).leafReduction);
+            int keep = Math.min(count, Math.max(1, Math.round(count * (1 - reduction))));
+            indexCounts[i] = keep * 6;
+        }
+        MeshLodLevels.setPrefixLevels(mesh, indexCounts);
+        return mesh;
+    }
+ 
+    /**
+     *  Returns the number of leaves drawn at the specified JME LOD level
+     *  of a mesh created with generatePrefixMesh().
+     */   
+    public static int getLeafCount( Mesh mesh, int lodLevel ) {
+        return MeshLodLevels.getIndexCount(mesh, lodLevel) / 6;
+    }
+ 
+    /**
+     *  Returns the tip indexes in a spatially stratified priority order.  
+     *  The tips are sorted along a Morton curve and then taken in bit-reversed 
+     *  order along that curve so that every prefix is spread evenly over 
+     *  the canopy.  The order is stable for a given set of tips.
+     */   
+    public static int[] createPriorityOrder( LeafTipBuffer tips ) {
+        int count = tips.size();
+        float[] data = tips.getArray();
+        if( count <= 1 ) {
+            return new int[count];
+        }
+        
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        float maxZ = Float.NEGATIVE_INFINITY;
+        for( int i = 0; i < count; i++ ) {
+            int p = i * LeafTipBuffer.STRIDE;
+            minX = Math.min(minX, data[p]);
+            minY = Math.min(minY, data[p + 1]);
+            minZ = Math.min(minZ, data[p + 2]);
+            maxX = Math.max(maxX, data[p]);
+            maxY = Math.max(maxY, data[p + 1]);
+            maxZ = Math.max(maxZ, data[p + 2]);
+        }
+        float extent = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+        float scale = extent > 0 ? 1023 / extent : 0;
+ 
+        // Morton code in the high bits, tip index in the low bits so 
+        // that equal codes keep their original order       
+        long[] keys = new long[count];
+        for( int i = 0; i < count; i++ ) {
+            int p = i * LeafTipBuffer.STRIDE;
+            long code = mortonCode((int)((data[p] - minX) * scale), 
+                                   (int)((data[p + 1] - minY) * scale), 
+                                   (int)((data[p + 2] - minZ) * scale));
+            keys[i] = (code << 32) | i;
+        }
+        Arrays.sort(keys);
+ 
+        int bits = 32 - Integer.numberOfLeadingZeros(count - 1);
+        int[] result = new int[count];
+        int next = 0;
+        for( int i = 0; i < (1 << bits); i++ ) {
+            int r = Integer.reverse(i) >>> (32 - bits);
+            if( r < count ) {
+                result[next++] = (int)keys[r];
+            }
+        }
+        return result;
+    }
+ 
+    private static long mortonCode( int x, int y, int z ) {
+        return spread(x) | (spread(y) << 1) | (spread(z) << 2);
+    }
+ 
+    private static long spread( int v ) {
+        long result = 0;
+        for( int i = 0; i < 10; i++ ) {
+            result |= (long)((v >> i) & 1) << (i * 3);
+        }
+        return result;
+    }
+ 
+    public Mesh generateMesh( LeafTipBuffer tips, float quadSize ) {
+ 
+        if( log.isDebugEnabled() ) {
+            log.debug("Generating:" + tips.size() + " leaves with quad size:" + quadSize);
+        }
+        
+        Mesh mesh = createMesh(tips, quadSize);
+        if( createCollisionData ) {
+            mesh.createCollisionData();
+        }
+        return mesh;               
+    }
+ 
+    /**
+     *  Writes the leaf quads directly into the mesh's direct buffers
+     *  without any per-leaf allocation.  The bounds are calculated from
+     *  the tips during the same pass and expanded by the quad size so 
+     *  that the leaves don't clip early.
+     */   
+    protected Mesh createMesh( LeafTipBuffer tips, float quadSize ) {
+        int count = tips.size();
+        
         // Generate quads, four points each, where each corner
         // has the same model position.
         // Corner information is encoded into the texture coordinate.
-        Vector3f[] posArray = new Vector3f[locations.size() * 4];
-        Vector3f[] normArray = new Vector3f[locations.size() * 4];
-        Vector4f[] uvArray = new Vector4f[locations.size() * 4];
-        float[] sizeArray = new float[locations.size() * 4];
-        short[] indexArray = new short[locations.size() * 2 * 3];
-        int index = 0;
-        int baseIndex = 0;
+        int vertCount = count * 4;
+        FloatBuffer pb = BufferUtils.createFloatBuffer(vertCount * 3);
+        FloatBuffer nb = BufferUtils.createFloatBuffer(vertCount * 3);
+        FloatBuffer tb = BufferUtils.createFloatBuffer(vertCount * 4);
+        FloatBuffer sizeb = BufferUtils.createFloatBuffer(vertCount);
+        ShortBuffer sib = null;
+        IntBuffer iib = null;
+        if( vertCount <= 0xffff ) {
+            sib = BufferUtils.createShortBuffer(count * 2 * 3);
+        } else {
+            iib = BufferUtils.createIntBuffer(count * 2 * 3);
+        }
+ 
+        // Scratch arrays for bulk puts
+        float[] corners = new float[12];
+        short[] shortQuad = new short[6];
+        int[] intQuad = new int[6];
+        
+        float maxScale = 0;
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        float maxZ = Float.NEGATIVE_INFINITY;
+        
+        float[] data = tips.getArray();
+        for( int tip = 0; tip < count; tip++ ) {
+            int p = tip * LeafTipBuffer.STRIDE;
+            
+            float x = data[p];
+            float y = data[p + 1];
+            float z = data[p + 2];
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+            
+            float size = quadSize * data[p + LeafTipBuffer.SCALE];
+            maxScale = Math.max(maxScale, data[p + LeafTipBuffer.SCALE]);
+            sizeb.put(size).put(size).put(size).put(size);
+            
+            fillCorners(corners, data, p + LeafTipBuffer.POSITION);
+            pb.put(corners);
+            fillCorners(corners, data, p + LeafTipBuffer.DIRECTION);
+            nb.put(corners);
+            
+            // Could have done random coordinates or something but
+            // I'm just assigning them sequentially.
+            tb.put(CELL_TEXCOORDS, (tip % CELL_COUNT) * 16, 16);
+ 
+            int baseIndex = tip * 4;
+            if( sib != null ) {
+                fillQuad(shortQuad, baseIndex);
+                sib.put(shortQuad);
+            } else {
+                fillQuad(intQuad, baseIndex);
+                iib.put(intQuad);
+            }
+        }
         
-        // Could have done random coordinates or something but
-        // I'm just assigning them sequentially.
-        int textureCellIndex = 0;
+        Mesh mesh = new Mesh();
+        mesh.setBuffer(Type.Position, 3, pb);
+        mesh.setBuffer(Type.Normal, 3, nb);
+        mesh.setBuffer(Type.TexCoord, 4, tb);
+        mesh.setBuffer(Type.Size, 1, sizeb);
+        if( sib != null ) {
+            mesh.setBuffer(Type.Index, 3, sib);
+        } else {
+            mesh.setBuffer(Type.Index, 3, iib);
+        }
+ 
+        float pad = quadSize * Math.max(1, maxScale) * 0.6f;
+        if( count == 0 ) {
+            mesh.setBound(new BoundingBox(new Vector3f(), pad, pad, pad));
+        } else {
+            Vector3f center = new Vector3f((minX + maxX) * 0.5f, (minY + maxY) * 0.5f, (minZ + maxZ) * 0.5f);
+            mesh.setBound(new BoundingBox(center, 
+                                          (maxX - minX) * 0.5f + pad, 
+                                          (maxY - minY) * 0.5f + pad, 
+                                          (maxZ - minZ) * 0.5f + pad));
+        }
+        
+        return mesh;
+    }
+ 
+    /**
+     *  Streams the leaf quads directly into the specified sink.  Unlike
+     *  the Mesh version, this does not pad the bounds or create collision
+     *  data since those are specific to JME meshes.
+     */   
+    public <T> T generateMesh( LeafTipBuffer tips, float quadSize, MeshSink<T> sink ) {
+    
+        int count = tips.size();
+        sink.begin(Mesh.Mode.Triangles, count * 4, count * 2 * 3);
+        sink.addAttribute(Type.Position, 3);
+        sink.addAttribute(Type.Normal, 3);
+        sink.addAttribute(Type.TexCoord, 4);
+        sink.addAttribute(Type.Size, 1);
+        
+        float[] data = tips.getArray();
+        for( int tip = 0; tip < count; tip++ ) {
+            int p = tip * LeafTipBuffer.STRIDE;
+            int n = p + LeafTipBuffer.DIRECTION;
+            int t = (tip % CELL_COUNT) * 16;
+            float size = quadSize * data[p + LeafTipBuffer.SCALE];
+            for( int corner = 0; corner < 4; corner++, t += 4 ) {
+                sink.put(Type.Position, data[p], data[p + 1], data[p + 2]);
+                sink.put(Type.Normal, data[n], data[n + 1], data[n + 2]);
+                sink.put(Type.TexCoord, CELL_TEXCOORDS[t], CELL_TEXCOORDS[t + 1], 
+                                        CELL_TEXCOORDS[t + 2], CELL_TEXCOORDS[t + 3]);
+                sink.put(Type.Size, size);
+            }
+ 
+            int baseIndex = tip * 4;
+            sink.putIndex(baseIndex);           
+            sink.putIndex(baseIndex + 1);           
+            sink.putIndex(baseIndex + 2);           
+            sink.putIndex(baseIndex + 2);           
+            sink.putIndex(baseIndex + 3);           
+            sink.putIndex(baseIndex);
+        }
+        
+        return sink.end();
+    }
+ 
+    private static void fillCorners( float[] corners, float[] data, int offset ) {
+        float x = data[offset];
+        float y = data[offset + 1];
+        float z = data[offset + 2];
+        for( int i = 0; i < 12; i += 3 ) {
+            corners[i] = x;
+            corners[i + 1] = y;
+            corners[i + 2] = z;
+        }
+    }
+    
+    private static void fillQuad( short[] quad, int baseIndex ) {
+        quad[0] = (short)baseIndex;
+        quad[1] = (short)(baseIndex + 1);
+        quad[2] = (short)(baseIndex + 2);
+        quad[3] = (short)(baseIndex + 2);
+        quad[4] = (short)(baseIndex + 3);
+        quad[5] = (short)baseIndex;
+    }
+ 
+    private static void fillQuad( int[] quad, int baseIndex ) {
+        quad[0] = baseIndex;
+        quad[1] = baseIndex + 1;
+        quad[2] = baseIndex + 2;
+        quad[3] = baseIndex + 2;
+        quad[4] = baseIndex + 3;
+        quad[5] = baseIndex;
+    }
+ 
+    /**
+     *  Precalculates the texture coordinates for each cell in the leaf
+     *  atlas sequence.  Each corner's x,y is the quad corner and z,w is
+     *  the atlas coordinate where negative values flip the cell.
+     */   
+    private static float[] createCellTexCoords() {
         int uCells = 1;
         float uCellSize = 1f / 4; // uCells;  we only use one column but the atlas really has 4
         int vCells = 4;
         float vCellSize = 1f / vCells;
-        
-        for( Vertex v : locations ) {
-            Vector3f p = v.pos;
-
-            posArray[baseIndex+0] = p; 
-            posArray[baseIndex+1] = p; 
-            posArray[baseIndex+2] = p; 
-            posArray[baseIndex+3] = p;
-
+ 
+        // The cells cycle through the negative and positive versions of each
+        int cellCount = vCells * 2 * uCells * 2;
+        float[] result = new float[cellCount * 16];
+        int i = 0;
+        for( int textureCellIndex = 0; textureCellIndex < cellCount; textureCellIndex++ ) {
             int vCell = (textureCellIndex % (vCells * 2)); 
             int uCell = ((textureCellIndex / (vCells * 2)) % (uCells * 2));
             
@@ -110,65 +434,16 @@ System.out.println( "Quad size:" + quadSize );
                 vBase = (vCell - vCells) * vCellSize;
                 vTop = vBase + vCellSize;
             }
-             
-            uvArray[baseIndex+0] = new Vector4f(0, 0, uBase, vBase);            
-            uvArray[baseIndex+1] = new Vector4f(1, 0, uTop, vBase);            
-            uvArray[baseIndex+2] = new Vector4f(1, 1, uTop, vTop);            
-            uvArray[baseIndex+3] = new Vector4f(0, 1, uBase, vTop);
-                
-            textureCellIndex++;
- 
-
-            normArray[baseIndex+0] = v.normal;
-            normArray[baseIndex+1] = v.normal;
-            normArray[baseIndex+2] = v.normal;
-            normArray[baseIndex+3] = v.normal;
- 
-            sizeArray[baseIndex+0] = quadSize;
-            sizeArray[baseIndex+1] = quadSize;
-            sizeArray[baseIndex+2] = quadSize;
-            sizeArray[baseIndex+3] = quadSize;
- 
-            indexArray[index++] = (short)(baseIndex);           
-            indexArray[index++] = (short)(baseIndex + 1);           
-            indexArray[index++] = (short)(baseIndex + 2);           
-            indexArray[index++] = (short)(baseIndex + 2);           
-            indexArray[index++] = (short)(baseIndex + 3);           
-            indexArray[index++] = (short)(baseIndex);
             
-            baseIndex += 4;                       
+            float[] cell = new float[] {
+                    0, 0, uBase, vBase,
+                    1, 0, uTop, vBase,
+                    1, 1, uTop, vTop,
+                    0, 1, uBase, vTop
+                };
+            System.arraycopy(cell, 0, result, i, 16);
+            i += 16;
         }
-        
-        Mesh mesh = new Mesh();
-        
-        FloatBuffer pb = BufferUtils.createFloatBuffer(posArray);
-        FloatBuffer nb = BufferUtils.createFloatBuffer(normArray);
-        FloatBuffer tb = BufferUtils.createFloatBuffer(uvArray);
-        FloatBuffer sizeb = BufferUtils.createFloatBuffer(sizeArray);
-        ShortBuffer sb = BufferUtils.createShortBuffer(indexArray);
- 
-        mesh.setBuffer(Type.Position, 3, pb);
-        mesh.setBuffer(Type.Normal, 3, nb);
-        mesh.setBuffer(Type.TexCoord, 4, tb);
-        mesh.setBuffer(Type.Size, 1, sizeb);
-        mesh.setBuffer(Type.Index, 3, sb);
-
-        mesh.updateBound();                                
-        mesh.createCollisionData();
- 
-        // Expand the bounds by the size so that the leaves don't clip
-        // early.
-        BoundingBox bb = (BoundingBox)mesh.getBound();
-        Vector3f extents = bb.getExtent(null);
-        extents.addLocal(quadSize * 0.6f, quadSize * 0.6f, quadSize * 0.6f);        
-        bb.setXExtent(extents.x);  
-        bb.setYExtent(extents.y);  
-        bb.setZExtent(extents.z);
-        mesh.setBound(bb);  
-        
-        return mesh;               
+        return result;
     }
-
 }
-
-
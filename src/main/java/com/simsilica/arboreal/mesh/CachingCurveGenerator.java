@@ -0,0 +1,308 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *  A CurveGenerator that memoizes the curves of some delegate
+ *  generator.  Each joint is canonicalized into a local frame where
+ *  the start direction is +z and the end direction lies in the y/z plane.
+ *  The resulting step profile is cached by joint angle and radii and then
+ *  rotated back into the joint's real frame.  Joints with the same
+ *  relative angle and radii will share the same profile regardless of
+ *  how they are oriented in the tree.
+ *
+ *  <p>The delegate must produce curves that are independent of orientation
+ *  and whose 'v' values are linear in the supplied v and vScale, which
+ *  is true of the LegacyCurveGenerator.  Joint angles are quantized to
+ *  the angle resolution so that slightly different joints can share 
+ *  a profile.  The last step of a curve always points exactly along the 
+ *  end direction.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class CachingCurveGenerator implements CurveGenerator {
+
+    public static final float DEFAULT_ANGLE_RESOLUTION = FastMath.DEG_TO_RAD * 0.25f;
+    public static final int DEFAULT_MAX_SIZE = 4096;
+    
+    // Per-step profile layout
+    private static final int DIR = 0;
+    private static final int DISTANCE = 3;
+    private static final int RADIUS = 4;
+    private static final int CENTER = 5;
+    private static final int OFFSET = 8;
+    private static final int V = 11;
+    private static final int STRIDE = 12;
+
+    private final CurveGenerator delegate;
+    private final float angleResolution;
+    private final int maxSize;
+    private final ConcurrentHashMap<CurveKey, float[]> cache = new ConcurrentHashMap<CurveKey, float[]>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong(); 
+    
+    public CachingCurveGenerator() {
+        this(new LegacyCurveGenerator(), DEFAULT_ANGLE_RESOLUTION, DEFAULT_MAX_SIZE);
+    }
+ 
+    public CachingCurveGenerator( CurveGenerator delegate ) {
+        this(delegate, DEFAULT_ANGLE_RESOLUTION, DEFAULT_MAX_SIZE);
+    }
+    
+    /**
+     *  Creates a caching curve generator that will memoize the curves of the 
+     *  specified delegate.  angleResolution controls how joint angles are quantized
+     *  when looking up a profile.  An angleResolution of 0 will only share profiles 
+     *  for joints with exactly the same angle.  When the cache grows beyond
+     *  maxSize profiles then it is cleared and starts over. 
+     */
+    public CachingCurveGenerator( CurveGenerator delegate, float angleResolution, int maxSize ) {
+        this.delegate = delegate;
+        this.angleResolution = angleResolution;
+        this.maxSize = maxSize;
+    }
+    
+    public CurveGenerator getDelegate() {
+        return delegate;
+    }
+    
+    public float getAngleResolution() {
+        return angleResolution;
+    }
+ 
+    /**
+     *  Returns the number of generateCurve() calls that were satisfied
+     *  from the cache.
+     */   
+    public long getHitCount() {
+        return hits.get();
+    }
+ 
+    /**
+     *  Returns the number of generateCurve() calls that required a new
+     *  profile from the delegate.
+     */   
+    public long getMissCount() {
+        return misses.get();
+    }
+ 
+    /**
+     *  Returns the fraction of generateCurve() calls that were satisfied
+     *  from the cache or 0 if there have been no calls.
+     */   
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double)h / total;
+    }
+    
+    public int getSize() {
+        return cache.size();
+    }
+ 
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+    }
+    
+    public void clear() {
+        cache.clear();
+    }
+
+    @Override
+    public List<CurveStep> generateCurve( Vector3f startDir, float startRadius,
+                                          Vector3f endDir, float endRadius,
+                                          float v, float vScale ) {
+
+        float dot = FastMath.clamp(startDir.dot(endDir), -1, 1);
+        
+        // Build the joint's local frame: z is along the start direction,
+        // y points toward the end direction, and x is the hinge of the bend.
+        Vector3f perp = endDir.subtract(startDir.x * dot, startDir.y * dot, startDir.z * dot);
+        float perpLength = perp.length();
+        if( perpLength > FastMath.ZERO_TOLERANCE ) {
+            perp.multLocal(1 / perpLength);
+        } else {
+            // Straight through (or exactly backwards) so any orthogonal 
+            // axis will do
+            perp = findOrthogonal(startDir);
+        }
+        Vector3f hinge = perp.cross(startDir);
+        
+        CurveKey key = createKey(dot, startRadius, endRadius);
+        float[] profile = cache.get(key);
+        if( profile == null ) {
+            misses.incrementAndGet();
+            profile = createProfile(key, startRadius, endRadius);
+            if( cache.size() >= maxSize ) {
+                cache.clear();
+            }
+            cache.put(key, profile);
+        } else {
+            hits.incrementAndGet();
+        } 
+        
+        int count = profile.length / STRIDE;
+        CurveStep[] result = new CurveStep[count];
+        for( int i = 0; i < count; i++ ) {
+            int base = i * STRIDE;
+            Vector3f dir;
+            if( i == count - 1 ) {
+                dir = endDir.clone();
+            } else {
+                dir = toWorld(profile, base + DIR, hinge, perp, startDir);
+            }
+            result[i] = new CurveStep(dir, profile[base + DISTANCE], profile[base + RADIUS], 
+                                      toWorld(profile, base + CENTER, hinge, perp, startDir),
+                                      toWorld(profile, base + OFFSET, hinge, perp, startDir),
+                                      v + vScale * profile[base + V]);
+        }
+        return Arrays.asList(result);
+    }
+ 
+    protected CurveKey createKey( float dot, float startRadius, float endRadius ) {
+        int angle;
+        if( angleResolution > 0 ) {
+            angle = Math.round(FastMath.acos(dot) / angleResolution);
+        } else {
+            angle = Float.floatToIntBits(dot);
+        }
+        return new CurveKey(angle, Float.floatToIntBits(startRadius), Float.floatToIntBits(endRadius));
+    }
+ 
+    /**
+     *  Calls the delegate with a canonical version of the joint and
+     *  flattens the results into a profile array.
+     */   
+    protected float[] createProfile( CurveKey key, float startRadius, float endRadius ) {
+        Vector3f endDir;
+        if( angleResolution > 0 ) {
+            float angle = key.angle * angleResolution;
+            endDir = new Vector3f(0, FastMath.sin(angle), FastMath.cos(angle));
+        } else {
+            float dot = Float.intBitsToFloat(key.angle);
+            endDir = new Vector3f(0, FastMath.sqrt(Math.max(0, 1 - dot * dot)), dot);
+        }
+        
+        List<CurveStep> steps = delegate.generateCurve(Vector3f.UNIT_Z, startRadius, 
+                                                       endDir, endRadius, 0, 1);
+        float[] profile = new float[steps.size() * STRIDE];
+        int base = 0;
+        for( CurveStep step : steps ) {
+            put(profile, base + DIR, step.dir);
+            profile[base + DISTANCE] = step.distance;
+            profile[base + RADIUS] = step.radius;
+            put(profile, base + CENTER, step.center);
+            put(profile, base + OFFSET, step.offset);
+            profile[base + V] = step.v;
+            base += STRIDE; 
+        }
+        return profile;
+    }
+    
+    private static void put( float[] profile, int index, Vector3f v ) {
+        if( v == null ) {
+            return;
+        }
+        profile[index] = v.x;
+        profile[index + 1] = v.y;
+        profile[index + 2] = v.z;
+    }
+    
+    private static Vector3f toWorld( float[] profile, int index, 
+                                     Vector3f x, Vector3f y, Vector3f z ) {
+        float lx = profile[index];
+        float ly = profile[index + 1];
+        float lz = profile[index + 2];
+        return new Vector3f(x.x * lx + y.x * ly + z.x * lz,
+                            x.y * lx + y.y * ly + z.y * lz,
+                            x.z * lx + y.z * ly + z.z * lz);
+    }
+    
+    private static Vector3f findOrthogonal( Vector3f dir ) {
+        Vector3f axis = Math.abs(dir.x) < 0.9f ? Vector3f.UNIT_X : Vector3f.UNIT_Y;
+        return dir.cross(axis).normalizeLocal();
+    }
+    
+    protected static final class CurveKey {
+        final int angle;
+        final int startRadius;
+        final int endRadius;
+        
+        CurveKey( int angle, int startRadius, int endRadius ) {
+            this.angle = angle;
+            this.startRadius = startRadius;
+            this.endRadius = endRadius;
+        }
+        
+        @Override
+        public int hashCode() {
+            int result = angle;
+            result = 31 * result + startRadius;
+            result = 31 * result + endRadius;
+            return result;  
+        }
+        
+        @Override
+        public boolean equals( Object o ) {
+            if( o == this ) {
+                return true;
+            }
+            if( !(o instanceof CurveKey) ) {
+                return false;
+            }
+            CurveKey other = (CurveKey)o;
+            return angle == other.angle 
+                    && startRadius == other.startRadius 
+                    && endRadius == other.endRadius;
+        }
+        
+        @Override
+        public String toString() {
+            return "CurveKey[" + angle + ", " + Float.intBitsToFloat(startRadius) 
+                                + ", " + Float.intBitsToFloat(endRadius) + "]";
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *  A thread-safe pool of direct byte buffers bucketed by power-of-two
+ *  capacity.  Native memory is slow to allocate and only freed when the
+ *  garbage collector gets around to it, so tools that generate many
+ *  transient meshes can reuse the same buffers instead.
+ *
+ *  @author    Paul Speed
+ */
+public class DirectBufferPool {
+
+    private static final int MIN_CAPACITY = 1024;
+
+    private final long maxPooledBytes;
+    private final ConcurrentHashMap<Integer, Queue<ByteBuffer>> free 
+                    = new ConcurrentHashMap<Integer, Queue<ByteBuffer>>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    
+    public DirectBufferPool() {
+        this(64L * 1024 * 1024);
+    }
+    
+    /**
+     *  Creates a pool that will hold on to at most maxPooledBytes of
+     *  released buffers.  Buffers released beyond that are left for
+     *  the garbage collector.
+     */
+    public DirectBufferPool( long maxPooledBytes ) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+ 
+    /**
+     *  Returns a native-ordered direct buffer with at least the specified
+     *  capacity.  The buffer's position is 0 and its limit is the requested
+     *  size.
+     */   
+    public ByteBuffer acquire( int size ) {
+        int capacity = bucketSize(size);
+        Queue<ByteBuffer> queue = free.get(capacity);
+        ByteBuffer result = queue == null ? null : queue.poll();
+        if( result != null ) {
+            pooledBytes.addAndGet(-capacity);
+            reused.incrementAndGet();
+            result.clear();
+        } else {
+            allocated.incrementAndGet();
+            result = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        result.limit(size);
+        return result;
+    }
+ 
+    /**
+     *  Returns a buffer previously acquired from this pool.  The buffer and
+     *  any views of it must not be used after release.
+     */   
+    public void release( ByteBuffer buffer ) {
+        int capacity = buffer.capacity();
+        if( capacity != bucketSize(capacity) ) {
+            throw new IllegalArgumentException("Buffer did not come from this pool:" + buffer);
+        }
+        if( pooledBytes.addAndGet(capacity) > maxPooledBytes ) {
+            // Too much is already pooled
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        Queue<ByteBuffer> queue = free.get(capacity);
+        if( queue == null ) {
+            queue = new ConcurrentLinkedQueue<ByteBuffer>();
+            Queue<ByteBuffer> existing = free.putIfAbsent(capacity, queue);
+            if( existing != null ) {
+                queue = existing;
+            }
+        }
+        queue.add(buffer);
+    }
+ 
+    /**
+     *  Returns the number of bytes currently held by the pool waiting
+     *  to be reused.
+     */   
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+    
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+    
+    public long getReusedCount() {
+        return reused.get();
+    }
+ 
+    protected static int bucketSize( int size ) {
+        if( size <= MIN_CAPACITY ) {
+            return MIN_CAPACITY;
+        }
+        int result = Integer.highestOneBit(size);
+        return result == size ? result : result << 1;
+    }
+    
+    @Override
+    public String toString() {
+        return "DirectBufferPool[pooledBytes=" + pooledBytes + ", allocated=" + allocated 
+                                + ", reused=" + reused + "]";
+    }
+}
@@ -36,15 +36,16 @@
 
 package com.simsilica.arboreal.mesh;
 
+import com.jme3.math.Vector2f;
 import com.jme3.math.Vector3f;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.VertexBuffer.Type;
-import com.jme3.util.BufferUtils;
 import com.simsilica.arboreal.LevelOfDetailParameters;
 import com.simsilica.arboreal.Segment;
 import com.simsilica.arboreal.Segment.ConnectionType;
 import com.simsilica.arboreal.Tree;
-import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 
@@ -54,13 +55,85 @@ import java.util.List;
  */
 public class FlatPolyTreeMeshGenerator {
 
+    /**
+     *  The number of bytes per vertex in the generated meshes: position,
+     *  normal, texture coordinate, and size.
+     */
+    public static final int VERTEX_SIZE = (3 + 3 + 2 + 1) * 4;
+
     private CurveGenerator curveGen = CurveGenerator.DEFAULT;
+    private boolean presizeBuffers = false;
+    
+    public void setCurveGenerator( CurveGenerator curveGen ) {
+        this.curveGen = curveGen;
+    }
+    
+    public CurveGenerator getCurveGenerator() {
+        return curveGen;
+    }
+ 
+    /**
+     *  Set to true to have the generator make a counting pass over the
+     *  tree before generating so that the mesh builders and tip lists can
+     *  be allocated at their final size.  Flat-poly counting never needs
+     *  to generate curves so it is always cheap.
+     */   
+    public void setPresizeBuffers( boolean presizeBuffers ) {
+        this.presizeBuffers = presizeBuffers;
+    }
     
+    public boolean getPresizeBuffers() {
+        return presizeBuffers;
+    }
+ 
     public Mesh generateMesh( Tree tree, LevelOfDetailParameters lod, 
                               float yOffset, int uRepeat, float vScale, 
                               List<Vertex> tips ) {
+        return generateMeshes(tree, Collections.singletonList(lod), yOffset, uRepeat, vScale, tips).get(0);
+    }
+    
+    /**
+     *  Generates the meshes for all of the specified levels of detail in
+     *  a single walk of the tree.  Curve steps and branch positions are
+     *  shared by all of the levels.  The resulting list contains one
+     *  mesh per level of detail, in the same order as the supplied LODs.
+     *  Flat-poly tips do not depend on the level of detail so if tips is 
+     *  not null then it is filled only once.
+     */
+    public List<Mesh> generateMeshes( Tree tree, List<LevelOfDetailParameters> lods, 
+                                      float yOffset, int uRepeat, float vScale, 
+                                      List<Vertex> tips ) {
+        List<JmeMeshSink> sinks = new ArrayList<JmeMeshSink>(lods.size());
+        for( int i = 0; i < lods.size(); i++ ) {
+            sinks.add(new JmeMeshSink());
+        }
+        LeafTipBuffer tipBuffer = tips == null ? null : new LeafTipBuffer();
+        List<Mesh> results = generateMeshes(tree, lods, yOffset, uRepeat, vScale, tipBuffer, sinks);
+        if( tips != null ) {
+            tipBuffer.toVertexes(tips);
+        }
+        return results;
+    }
+    
+    public <T> T generateMesh( Tree tree, LevelOfDetailParameters lod, 
+                               float yOffset, int uRepeat, float vScale, 
+                               LeafTipBuffer tips, MeshSink<T> sink ) {
+        return generateMeshes(tree, Collections.singletonList(lod), yOffset, uRepeat, vScale, 
+                              tips, Collections.singletonList(sink)).get(0);
+    }
+    
+    /**
+     *  Generates all of the specified levels of detail in a single walk
+     *  of the tree, streaming each level into the corresponding sink.
+     *  The resulting list contains each sink's result in LOD order.
+     */
+    public <T> List<T> generateMeshes( Tree tree, List<LevelOfDetailParameters> lods, 
+                                       float yOffset, int uRepeat, float vScale, 
+                                       LeafTipBuffer tips, List<? extends MeshSink<T>> sinks ) {
  
-        MeshBuilder mb = new MeshBuilder();
+        int count = lods.size(); 
+        LevelOfDetailParameters[] lodArray = lods.toArray(new LevelOfDetailParameters[count]);
+        MeshBuilder[] mbs = new MeshBuilder[count];
         
         Segment trunk = tree.getTrunk();        
         Vector3f center = new Vector3f(0, yOffset, 0);
@@ -78,14 +151,29 @@ public class FlatPolyTreeMeshGenerator {
         // possible to properly "direction" the join for multiple branch
         // points.
  
-        // parms: float x, float y, float z, float u, float v, int group, float epsilon         
-        Vertex base1 = mb.createVertex(0, yOffset, 0, 0, 0, 0, -1);
-        base1.normal = new Vector3f(0, 1, 0); 
-        base1.weight = -trunk.startRadius;
-        Vertex base2 = mb.createVertex(0, yOffset, 0, uRepeat * 0.5f, 0, 0, -1);
-        base2.normal = base1.normal;
-        base2.weight = trunk.startRadius;
- 
+        Vertex[] base1 = new Vertex[count];
+        Vertex[] base2 = new Vertex[count];
+        for( int i = 0; i < count; i++ ) {
+            MeshBuilder mb;
+            if( presizeBuffers ) {
+                MeshCounts counts = countMesh(tree, lodArray[i]);
+                mb = new MeshBuilder(counts.getVertexCount(), counts.getTriangleCount());
+                if( i == 0 && tips != null ) {
+                    tips.ensureCapacity(tips.size() + counts.getTipCount());
+                }
+            } else {
+                mb = new MeshBuilder();
+            }
+            mbs[i] = mb;
+             
+            // parms: float x, float y, float z, float u, float v, int group, float epsilon         
+            base1[i] = mb.createVertex(0, yOffset, 0, 0, 0, 0, -1);
+            base1[i].normal = new Vector3f(0, 1, 0); 
+            base1[i].weight = -trunk.startRadius;
+            base2[i] = mb.createVertex(0, yOffset, 0, uRepeat * 0.5f, 0, 0, -1);
+            base2[i].normal = base1[i].normal;
+            base2[i].weight = trunk.startRadius;
+        } 
                 
         // Note: we coopt weight for 'size' because MeshBuilder doesn't support
         //       size directly and it's a little too specific to add in my opinion.
@@ -98,23 +186,105 @@ public class FlatPolyTreeMeshGenerator {
             }
             
             if( seg.isInverted() ) {
-                renderSegment(center, base1, base2, seg, 0, uRepeat, -vScale, lod, 0, mb, null);
+                renderSegment(center, base1, base2, seg, 0, uRepeat, -vScale, lodArray, 0, mbs, null);
             } else {
-                renderSegment(center, base1, base2, seg, 0, uRepeat, vScale, lod, 0, mb, tips);
+                renderSegment(center, base1, base2, seg, 0, uRepeat, vScale, lodArray, 0, mbs, tips);
             }
         }
  
-        Mesh result = mb.build();
-        
-        // Now build the size buffer from the vertexes
+        List<T> results = new ArrayList<T>(count);
+        for( int i = 0; i < count; i++ ) {
+            results.add(writeMesh(mbs[i], sinks.get(i)));
+        }
+ 
+        return results;
+    }
+
+    /**
+     *  Streams the builder's vertexes into the sink along with a Size
+     *  attribute taken from the vertex weights.
+     */
+    protected <T> T writeMesh( MeshBuilder mb, MeshSink<T> sink ) {
         List<Vertex> verts = mb.getVertexes();
-        FloatBuffer sb = BufferUtils.createFloatBuffer(verts.size());
+        List<Triangle> triangles = mb.getTriangles();
+        if( verts.isEmpty() || triangles.isEmpty() ) {
+            return null;
+        }
+        
+        sink.begin(Mesh.Mode.Triangles, verts.size(), triangles.size() * 3);
+        sink.addAttribute(Type.Position, 3);
+        sink.addAttribute(Type.Normal, 3);
+        sink.addAttribute(Type.TexCoord, 2);
+        sink.addAttribute(Type.Size, 1);
         for( Vertex v : verts ) {
-            sb.put(v.weight);
+            sink.put(Type.Position, v.pos.x, v.pos.y, v.pos.z);
+            sink.put(Type.Normal, v.normal.x, v.normal.y, v.normal.z);
+            Vector2f uv = v.uv != null ? v.uv : Vector2f.ZERO;
+            sink.put(Type.TexCoord, uv.x, uv.y);
+            sink.put(Type.Size, v.weight);
         }
-        result.setBuffer(Type.Size, 1, sb);
+        for( Triangle tri : triangles ) {
+            sink.putIndex(tri.v1.index);
+            sink.putIndex(tri.v2.index);
+            sink.putIndex(tri.v3.index);
+        }
+        return sink.end();
+    }
+
+    /**
+     *  Calculates the exact number of vertexes, triangles, and tips that
+     *  generateMesh() would produce for the specified tree and level of
+     *  detail without creating any vertexes.
+     */
+    public MeshCounts countMesh( Tree tree, LevelOfDetailParameters lod ) {
+        MeshCounts counts = new MeshCounts(VERTEX_SIZE);
+        
+        // The two base vertexes
+        counts.addVertexes(2);
+        for( Segment seg : tree ) {
+            if( seg == null ) {
+                continue;
+            }
+            countSegment(seg, lod, 0, counts, !seg.isInverted());
+        }
+        return counts;
+    }
  
-        return result;
+    /**
+     *  Mirrors renderSegment() for a single level of detail.
+     */
+    protected void countSegment( Segment seg, LevelOfDetailParameters lod, int depth,
+                                 MeshCounts counts, boolean countTips ) {
+        boolean renderDepth = renderDepth(depth, seg.isInverted(), lod);
+        if( renderDepth ) {
+            counts.addVertexes(2);
+            counts.addTriangles(2);
+        }
+        
+        if( !seg.hasChildren() ) {
+            if( countTips ) {
+                counts.addTips(1);
+            }
+            return;
+        }
+        
+        boolean renderNextDepth = renderDepth && renderDepth(depth + 1, seg.isInverted(), lod);
+        for( Segment child : seg ) {
+            switch( child.parentConnection ) {
+                case Extrude:
+                    countSegment(child, lod, depth, counts, countTips);
+                    break;
+                case Abut:
+                    throw new UnsupportedOperationException("Abutment not yet supported.");
+                case Curve:
+                    if( renderNextDepth ) {
+                        // New bases for the child
+                        counts.addVertexes(2);
+                    }
+                    countSegment(child, lod, depth + 1, counts, countTips);
+                    break;
+            }
+        }
     }
 
     protected boolean renderDepth( int depth, boolean inverted, LevelOfDetailParameters lod ) {    
@@ -127,92 +297,102 @@ public class FlatPolyTreeMeshGenerator {
         }
     } 
     
-    protected void renderSegment( Vector3f center, Vertex base1, Vertex base2, Segment seg, 
+    /**
+     *  Renders the segment and its children into each of the mesh builders,
+     *  one per level of detail.  The base arrays contain the current base
+     *  vertexes for each level of detail or null if that level is not 
+     *  rendering this depth.
+     */
+    protected void renderSegment( Vector3f center, Vertex[] base1, Vertex[] base2, Segment seg, 
                                   float vBase, int uRepeat, float vScale,
-                                  LevelOfDetailParameters lod, int depth,  
-                                  MeshBuilder mb, List<Vertex> tips ) {
+                                  LevelOfDetailParameters[] lods, int depth,  
+                                  MeshBuilder[] mbs, LeafTipBuffer tips ) {
                                   
+        int count = lods.length;
+        
         // Calculate the next center location
         // If we don't render we'll still need to pass it along for the
         // tip and we don't want to create mesh builder vertexes and then
         // not use them.
 
         Vector3f next = center.add(seg.dir.mult(seg.length));
-        Vertex tip1 = null;
-        Vertex tip2 = null;
+        Vertex[] tip1 = new Vertex[count];
+        Vertex[] tip2 = new Vertex[count];
         
         float vScaleLocal = vScale * (1 / seg.endRadius);
         vBase += seg.length * vScaleLocal;
+ 
+        // So... how we render this level is actually dependent on whether we're
+        // extending to the next level or not (extrusion) since we'll need to "average"
+        // the normals.
         
-        boolean renderDepth = renderDepth(depth, seg.isInverted(), lod);
-        
-        if( renderDepth ) {
-            // So... how we render this level is actually dependent on whether we're
-            // extending to the next level or not (extrusion) since we'll need to "average"
-            // the normals.
-        
-            // See if there is an extusion that can define the shared dir
-            Vector3f tipDir = seg.dir;
-            for( Segment child : seg ) {
-                if( child.parentConnection == ConnectionType.Extrude ) {
-                    tipDir = seg.dir.add(child.dir).mult(0.5f).normalizeLocal();
-                    break;
-                }
+        // See if there is an extusion that can define the shared dir
+        Vector3f tipDir = seg.dir;
+        for( Segment child : seg ) {
+            if( child.parentConnection == ConnectionType.Extrude ) {
+                tipDir = seg.dir.add(child.dir).mult(0.5f).normalizeLocal();
+                break;
             }
+        }
             
-            float v = vBase;
+        float v = vBase;
  
-            Vector3f nextCenter = next;
-            if( tipDir == seg.dir && seg.hasChildren() ) {
-                // Bump the next vertexs out a little bit to make up for
-                // the lack of joining curves.
-                nextCenter = next.add(seg.dir.mult(seg.endRadius));
+        Vector3f nextCenter = next;
+        if( tipDir == seg.dir && seg.hasChildren() ) {
+            // Bump the next vertexs out a little bit to make up for
+            // the lack of joining curves.
+            nextCenter = next.add(seg.dir.mult(seg.endRadius));
                 
-                // And v
-                v += vScaleLocal * seg.endRadius;
+            // And v
+            v += vScaleLocal * seg.endRadius;
+        }
+        
+        boolean[] renderNextDepth = new boolean[count];
+        boolean anyNextDepth = false;
+        for( int i = 0; i < count; i++ ) {
+            boolean renderDepth = renderDepth(depth, seg.isInverted(), lods[i]);
+            if( !renderDepth ) {
+                continue;
             }
+            MeshBuilder mb = mbs[i];
             
             // Now we can properly define the new tips and add this segment's quad
-            tip1 = mb.createVertex(nextCenter.x, nextCenter.y, nextCenter.z, 0, v, 0, -1);
-            tip1.weight = -seg.endRadius;
-            tip2 = mb.createVertex(nextCenter.x, nextCenter.y, nextCenter.z, uRepeat * 0.5f, v, 0, -1);
-            tip2.weight = seg.endRadius;
+            tip1[i] = mb.createVertex(nextCenter.x, nextCenter.y, nextCenter.z, 0, v, 0, -1);
+            tip1[i].weight = -seg.endRadius;
+            tip2[i] = mb.createVertex(nextCenter.x, nextCenter.y, nextCenter.z, uRepeat * 0.5f, v, 0, -1);
+            tip2[i].weight = seg.endRadius;
  
             if( vScale > 0 ) {
-                tip1.normal = tipDir; 
-                tip2.normal = tipDir; 
-                mb.addTriangle(base1, base2, tip2);
-                mb.addTriangle(base1, tip2, tip1);
+                tip1[i].normal = tipDir; 
+                tip2[i].normal = tipDir; 
+                mb.addTriangle(base1[i], base2[i], tip2[i]);
+                mb.addTriangle(base1[i], tip2[i], tip1[i]);
             } else {
                 // We're extending down 
-                mb.addTriangle(tip1, tip2, base2);
-                mb.addTriangle(tip1, base2, base1);
-                tip1.normal = tipDir.negate(); 
-                tip2.normal = tip1.normal;
-            } 
+                mb.addTriangle(tip1[i], tip2[i], base2[i]);
+                mb.addTriangle(tip1[i], base2[i], base1[i]);
+                tip1[i].normal = tipDir.negate(); 
+                tip2[i].normal = tip1[i].normal;
+            }
+            
+            renderNextDepth[i] = renderDepth(depth + 1, seg.isInverted(), lods[i]);
+            anyNextDepth |= renderNextDepth[i];
         }            
  
         if( !seg.hasChildren() ) {
         
             if( tips != null ) {            
                 // Add the tip and be done
-                Vertex branchTip = new Vertex(next);
-                branchTip.normal = seg.dir;
-                tips.add(branchTip);
+                tips.add(next, seg.dir, depth, seg.endRadius);
             }
             return;
         }
  
-        boolean renderNextDepth = renderDepth;
-        if( !renderDepth(depth + 1, seg.isInverted(), lod) ) {
-            renderNextDepth = false;             
-        }                    
-                
         for( Segment child : seg ) {
             switch( child.parentConnection ) {
                 case Extrude:
                     // We can just continue directly
-                    renderSegment(next, tip1, tip2, child, vBase, uRepeat, vScale, lod, depth, mb, tips);
+                    renderSegment(next, tip1, tip2, child, vBase, uRepeat, vScale, lods, depth, mbs, tips);
                     break;
                 case Abut:
                     throw new UnsupportedOperationException("Abutment not yet supported.");
@@ -223,38 +403,44 @@ public class FlatPolyTreeMeshGenerator {
                     CurveStep last = steps.get(steps.size()-1);
                     Vector3f childCenter = next.add(last.center);
                     
-                    // Bump the base back a little
-                    Vector3f baseCenter = childCenter.subtract(child.dir.mult(child.startRadius));
-                    
-                    float v = vBase + last.v;
-                    
-                    // Bump it back a little to go with the moved base
-                    float adjustedV = v - vScaleLocal * child.startRadius;
+                    float childV = vBase + last.v;
  
-                    if( !renderNextDepth ) {
-                        // Then just push through
-                        renderSegment(childCenter, null, null, child, v, uRepeat, vScale, lod, depth + 1, mb, tips);
-                    } else {                    
-                        // Create some new bases for this child 
-                        Vertex cBase1 = mb.createVertex(baseCenter.x, 
+                    Vertex[] cBase1 = new Vertex[count];
+                    Vertex[] cBase2 = new Vertex[count];
+                    if( anyNextDepth ) {                    
+                        // Bump the base back a little
+                        Vector3f baseCenter = childCenter.subtract(child.dir.mult(child.startRadius));
+                    
+                        // Bump it back a little to go with the moved base
+                        float adjustedV = childV - vScaleLocal * child.startRadius;
+                        
+                        // Create some new bases for this child for the levels that
+                        // render it.  The others just push through. 
+                        for( int i = 0; i < count; i++ ) {
+                            if( !renderNextDepth[i] ) {
+                                continue;
+                            }
+                            MeshBuilder mb = mbs[i];
+                            cBase1[i] = mb.createVertex(baseCenter.x, 
                                                         baseCenter.y, 
                                                         baseCenter.z,
                                                         0, adjustedV, 0, -1);
-                        cBase1.weight = -child.startRadius;
-                        Vertex cBase2 = mb.createVertex(baseCenter.x, 
+                            cBase1[i].weight = -child.startRadius;
+                            cBase2[i] = mb.createVertex(baseCenter.x, 
                                                         baseCenter.y, 
                                                         baseCenter.z,
                                                         uRepeat * 0.5f, adjustedV, 0, -1);
-                        cBase2.weight = child.startRadius;
-                        if( vScale > 0 ) {
-                            cBase1.normal = child.dir;
-                            cBase2.normal = child.dir;
-                        } else {                                                        
-                            cBase1.normal = child.dir.negate();
-                            cBase2.normal = cBase1.normal;
+                            cBase2[i].weight = child.startRadius;
+                            if( vScale > 0 ) {
+                                cBase1[i].normal = child.dir;
+                                cBase2[i].normal = child.dir;
+                            } else {                                                        
+                                cBase1[i].normal = child.dir.negate();
+                                cBase2[i].normal = cBase1[i].normal;
+                            }
                         }
-                        renderSegment(childCenter, cBase1, cBase2, child, v, uRepeat, vScale, lod, depth + 1, mb, tips);
-                    }                   
+                    }
+                    renderSegment(childCenter, cBase1, cBase2, child, childV, uRepeat, vScale, lods, depth + 1, mbs, tips);
                     break;
             }
         }                                   
@@ -0,0 +1,787 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.Spatial.CullHint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+
+/**
+ *  Switches the levels of detail for a whole forest of trees from one
+ *  place instead of a LodSwitchControl per tree.  Trees are kept in a
+ *  grid of cells on the x/z plane.  When a cell is evaluated, the
+ *  manager records how far the camera can travel before any tree in the
+ *  cell could cross one of its level boundaries.  Cells are only evaluated
+ *  again once the camera has moved that far, so a still camera costs
+ *  nothing and a moving camera only touches the cells near a boundary.
+ *  Level changes only toggle the cull hints of the two affected levels.
+ *
+ *  <p>Evaluation can be spread over frames with setMaxCellsPerFrame(),
+ *  serving the most overdue cells first.  setRoundRobinCellsPerFrame()
+ *  also refreshes a rotating slice of all cells each frame, which picks
+ *  up changes the manager can't see, like trees that were moved directly.</p>
+ *
+ *  <p>Each tree has its own levels: spatials that are usually children
+ *  of the same tree node, along with the far distance of each level in
+ *  ascending order.  Like LodSwitchControl, the distances are in the tree's
+ *  model space and are multiplied by the tree's scale.  Beyond the last 
+ *  distance no level is shown.  The manager must be updated from the
+ *  render thread.</p>
+ *
+ *  <p>setPolicy() can supply a LodPolicy, like ScreenSpaceLodPolicy,
+ *  that decides the world distances of the ranges instead.  Policies
+ *  that depend on the camera's projection need update(Camera) and
+ *  all cells are evaluated again when the projection changes.</p>
+ *
+ *  <p>setTriangleBudget() caps the total triangles of the shown levels.
+ *  The ranges still decide each tree's preferred level but when the
+ *  preferred levels add up to more than the budget then trees are moved
+ *  to coarser levels, smallest on screen first, until the total fits or
+ *  every tree is at its coarsest level.  Triangle counts come from the
+ *  levels' meshes unless set with setTriangleCounts().  Changes that
+ *  lower the total or still fit are shown right away.  The rest wait for
+ *  the next allocation, which runs once the camera has moved a quarter of
+ *  a cell since the last one.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class ForestLodManager {
+ 
+    private static final Comparator<Entry> PRIORITY_ORDER = new Comparator<Entry>() {
+            public int compare( Entry a, Entry b ) {
+                return Float.compare(a.priority, b.priority);
+            }
+        };
+ 
+    private static final Comparator<DueCheck> DUE_ORDER = new Comparator<DueCheck>() {
+            public int compare( DueCheck a, DueCheck b ) {
+                return Double.compare(a.time, b.time);
+            }
+        };
+ 
+    private final float cellSize;
+    private final Map<Long, Cell> cells = new HashMap<Long, Cell>();
+    private final List<Cell> cellList = new ArrayList<Cell>();
+    private final PriorityQueue<DueCheck> due = new PriorityQueue<DueCheck>(64, DUE_ORDER);
+    private final Vector3f lastCamera = new Vector3f();
+    private boolean hasCamera;
+    private double travel;
+    private int treeCount;
+    
+    private LodPolicy policy;
+    private Camera camera;
+    private float lastFrustumSlope;
+    private int lastHeight;
+    private float[] worldRanges;
+ 
+    private int maxCellsPerFrame = Integer.MAX_VALUE;
+    private int roundRobinCellsPerFrame;
+    private int roundRobinIndex;
+    
+    private int triangleBudget;
+    private long desiredTriangles;
+    private long shownTriangles;
+    private boolean budgetDirty;
+    private boolean budgetPending;
+    private double budgetTravel;
+    private int degradedCount;
+    private final List<Entry> budgetEntries = new ArrayList<Entry>();
+ 
+    private int lastFrameCells;
+    private int lastFrameTrees;
+    private int lastFrameSwitches;
+    private long switchCount;
+    
+    public ForestLodManager( float cellSize ) {
+        this.cellSize = cellSize;
+    }
+    
+    public float getCellSize() {
+        return cellSize;
+    }
+ 
+    /**
+     *  Sets the maximum number of due cells that are evaluated per frame.
+     *  Cells that don't fit are evaluated first on following frames.
+     *  Defaults to no limit.
+     */   
+    public void setMaxCellsPerFrame( int maxCellsPerFrame ) {
+        this.maxCellsPerFrame = maxCellsPerFrame;
+    }
+    
+    public int getMaxCellsPerFrame() {
+        return maxCellsPerFrame;
+    }
+ 
+    /**
+     *  Sets the number of cells that are evaluated each frame in rotation
+     *  whether they are due or not.  Defaults to 0.
+     */   
+    public void setRoundRobinCellsPerFrame( int roundRobinCellsPerFrame ) {
+        this.roundRobinCellsPerFrame = roundRobinCellsPerFrame;
+    }
+    
+    public int getRoundRobinCellsPerFrame() {
+        return roundRobinCellsPerFrame;
+    }
+ 
+    /**
+     *  Sets the maximum total triangle count of the shown levels.  Trees
+     *  are moved to coarser levels than their ranges select, smallest on
+     *  screen first, to stay under it.  0 disables the budget and is the
+     *  default.
+     */
+    public void setTriangleBudget( int triangleBudget ) {
+        this.triangleBudget = triangleBudget;
+        budgetDirty = true;
+    }
+    
+    public int getTriangleBudget() {
+        return triangleBudget;
+    }
+ 
+    /**
+     *  Returns the total triangle count of the levels selected by the
+     *  ranges, before the budget is applied.
+     */
+    public long getDesiredTriangleCount() {
+        return desiredTriangles;
+    }
+ 
+    /**
+     *  Returns the total triangle count of the shown levels.
+     */
+    public long getShownTriangleCount() {
+        return shownTriangles;
+    }
+ 
+    /**
+     *  Returns the number of trees that the last budget allocation moved
+     *  to a coarser level than their ranges select.
+     */
+    public int getDegradedCount() {
+        return degradedCount;
+    }
+ 
+    /**
+     *  Sets the triangle count of each of the tree's levels, used by the
+     *  triangle budget instead of counting the levels' meshes.  The array
+     *  is not copied and can be shared by trees of the same species.
+     */
+    public void setTriangleCounts( Entry entry, int... counts ) {
+        if( counts.length != entry.levels.length ) {
+            throw new IllegalArgumentException("Count does not match level count");
+        }
+        if( entry.cell == null ) {
+            // Removed trees are no longer part of the totals
+            entry.triangles = counts;
+            return;
+        }
+        desiredTriangles -= entry.getTriangleCount(entry.desired);
+        shownTriangles -= entry.getTriangleCount(entry.current);
+        entry.triangles = counts;
+        desiredTriangles += entry.getTriangleCount(entry.desired);
+        shownTriangles += entry.getTriangleCount(entry.current);
+        budgetDirty = true;
+    }
+ 
+    /**
+     *  Sets the policy that decides the world distances of the trees'
+     *  ranges.  Defaults to null which uses the ranges times the tree's
+     *  scale.
+     */
+    public void setPolicy( LodPolicy policy ) {
+        this.policy = policy;
+        invalidate();
+    }
+    
+    public LodPolicy getPolicy() {
+        return policy;
+    }
+ 
+    /**
+     *  Adds a tree at the specified world location.  ranges are the far
+     *  distances of the levels in model space, ascending, with one range
+     *  per level.  Null levels show nothing.  All of the levels are hidden
+     *  until the tree's cell is evaluated.  The ranges array is not copied
+     *  and can be shared by trees of the same species.
+     */   
+    public Entry add( Vector3f location, float scale, float[] ranges, Spatial... levels ) {
+        if( ranges.length != levels.length ) {
+            throw new IllegalArgumentException("Range count does not match level count");
+        }
+        for( Spatial s : levels ) {
+            if( s != null ) {
+                s.setCullHint(CullHint.Always);
+            }
+        }
+        Entry result = new Entry(location.clone(), scale, ranges, levels);
+        insert(result);
+        treeCount++;
+        return result;
+    }
+ 
+    /**
+     *  Removes the tree from the manager leaving its levels' cull hints
+     *  as they are.  Trees held back by the triangle budget are given
+     *  the freed triangles on the next update.
+     */   
+    public void remove( Entry entry ) {
+        if( entry.cell == null ) {
+            return;
+        }
+        extract(entry);
+        treeCount--;
+        desiredTriangles -= entry.getTriangleCount(entry.desired);
+        shownTriangles -= entry.getTriangleCount(entry.current);
+        entry.desired = -1;
+        if( degradedCount > 0 || budgetPending ) {
+            budgetDirty = true;
+        }
+    }
+ 
+    /**
+     *  Moves the tree to a new world location.  Removed trees only have
+     *  their location changed.
+     */   
+    public void setLocation( Entry entry, Vector3f location ) {
+        if( entry.cell == null ) {
+            entry.location.set(location);
+            return;
+        }
+        extract(entry);
+        entry.location.set(location);
+        insert(entry);
+    }
+ 
+    /**
+     *  Changes the tree's scale.
+     */   
+    public void setScale( Entry entry, float scale ) {
+        entry.scale = scale;
+        if( entry.cell == null ) {
+            return;
+        }
+        markDue(entry.cell);
+    }
+ 
+    /**
+     *  Sets the world radius of the tree's bounds for policies that
+     *  use the projected size of the tree.
+     */
+    public void setRadius( Entry entry, float radius ) {
+        entry.radius = radius;
+        if( entry.cell == null ) {
+            return;
+        }
+        markDue(entry.cell);
+    }
+ 
+    /**
+     *  Forces all cells to be evaluated on the next update, for example
+     *  after the ranges of a species were changed.
+     */   
+    public void invalidate() {
+        for( Cell cell : cellList ) {
+            markDue(cell);
+        }
+    }
+    
+    public int getTreeCount() {
+        return treeCount;
+    }
+    
+    public int getCellCount() {
+        return cellList.size();
+    }
+ 
+    /**
+     *  Returns the number of cells that are due for evaluation.  Only
+     *  meaningful after update().
+     */   
+    public int getDueCellCount() {
+        int result = 0;
+        for( DueCheck check : due ) {
+            if( check.isCurrent() && check.time < travel ) {
+                result++;
+            }
+        }
+        return result;
+    }
+ 
+    /**
+     *  Evaluates the cells that might have changed since the camera moved
+     *  to its new location.  Must be called once per frame from the render
+     *  thread.
+     */   
+    public void update( Camera camera ) {
+        float slope = camera.getFrustumTop() / camera.getFrustumNear();
+        if( this.camera != null && policy != null
+            && (slope != lastFrustumSlope || camera.getHeight() != lastHeight) ) {
+            invalidate();
+        }
+        this.camera = camera;
+        this.lastFrustumSlope = slope;
+        this.lastHeight = camera.getHeight();
+        update(camera.getLocation());
+    }
+ 
+    /**
+     *  Evaluates the cells that might have changed since the camera moved
+     *  to its new location.  Must be called once per frame from the render
+     *  thread.  Policies that need the camera's projection use the camera
+     *  of the last update(Camera), if any.
+     */   
+    public void update( Vector3f cameraLocation ) {
+        if( hasCamera ) {
+            travel += lastCamera.distance(cameraLocation);
+        }
+        lastCamera.set(cameraLocation);
+        hasCamera = true;
+        
+        lastFrameCells = 0;
+        lastFrameTrees = 0;
+        lastFrameSwitches = 0;
+        
+        while( lastFrameCells < maxCellsPerFrame && !due.isEmpty() ) {
+            DueCheck check = due.peek();
+            if( !check.isCurrent() ) {
+                // Replaced by a later schedule() or the cell was removed
+                due.poll();
+                continue;
+            }
+            if( check.time >= travel ) {
+                break;
+            }
+            due.poll();
+            evaluate(check.cell);
+        }
+        
+        int count = Math.min(roundRobinCellsPerFrame, cellList.size());
+        for( int i = 0; i < count; i++ ) {
+            if( roundRobinIndex >= cellList.size() ) {
+                roundRobinIndex = 0;
+            }
+            evaluate(cellList.get(roundRobinIndex++));
+        }
+        
+        if( budgetDirty || ((budgetPending || degradedCount > 0) 
+                            && travel - budgetTravel >= cellSize * 0.25) ) {
+            allocate();
+        }
+        
+        if( due.size() > cellList.size() * 2 + 64 ) {
+            // Drop the replaced checks that are still waiting in the queue
+            List<DueCheck> current = new ArrayList<DueCheck>(cellList.size());
+            for( DueCheck check : due ) {
+                if( check.isCurrent() ) {
+                    current.add(check);
+                }
+            }
+            due.clear();
+            due.addAll(current);
+        }
+    }
+ 
+    /**
+     *  Returns the number of cells evaluated by the last update().
+     */   
+    public int getLastFrameCellCount() {
+        return lastFrameCells;
+    }
+ 
+    /**
+     *  Returns the number of trees evaluated by the last update().
+     */   
+    public int getLastFrameTreeCount() {
+        return lastFrameTrees;
+    }
+    
+    public int getLastFrameSwitchCount() {
+        return lastFrameSwitches;
+    }
+ 
+    /**
+     *  Returns the total number of level changes.
+     */   
+    public long getSwitchCount() {
+        return switchCount;
+    }
+ 
+    /**
+     *  Returns the index of the level to show for the specified world
+     *  distance or -1 if the tree is beyond its last level.  Also stores
+     *  in the entry how far the camera can move before that could change.
+     */   
+    protected int selectLevel( Entry entry, float distance ) {
+        float[] ranges = entry.ranges;
+        float scale = entry.scale;
+        if( policy != null ) {
+            worldRanges = policy.getWorldRanges(camera, ranges, scale, entry.radius, worldRanges);
+            ranges = worldRanges;
+            scale = 1;
+        }
+        float near = 0;
+        for( int i = 0; i < ranges.length; i++ ) {
+            float far = ranges[i] * scale;
+            if( distance <= far ) {
+                entry.margin = i == 0 ? far - distance : Math.min(distance - near, far - distance);
+                return i;
+            }
+            near = far;
+        }
+        entry.margin = distance - near;
+        return -1;
+    }
+ 
+    protected void evaluate( Cell cell ) {
+        lastFrameCells++;
+        float margin = Float.POSITIVE_INFINITY;
+        List<Entry> list = cell.entries;
+        for( int i = 0, size = list.size(); i < size; i++ ) {
+            Entry entry = list.get(i);
+            int level = selectLevel(entry, entry.location.distance(lastCamera));
+            margin = Math.min(margin, entry.margin);
+            if( level != entry.desired ) {
+                desiredTriangles += entry.getTriangleCount(level) - entry.getTriangleCount(entry.desired);
+                entry.desired = level;
+                if( triangleBudget > 0 ) {
+                    // Coarser levels and finer levels that still fit can
+                    // be shown right away, the rest wait for allocate()
+                    int added = entry.getTriangleCount(level) - entry.getTriangleCount(entry.current);
+                    if( added <= 0 || shownTriangles + added <= triangleBudget ) {
+                        show(entry, level);
+                    } else {
+                        budgetPending = true;
+                    }
+                    continue;
+                }
+            }
+            if( triangleBudget <= 0 && level != entry.current ) {
+                show(entry, level);
+            }
+        }
+        lastFrameTrees += list.size();
+        
+        schedule(cell, travel + margin);
+    }
+ 
+    /**
+     *  Shows each tree's preferred level if they fit in the triangle budget
+     *  or otherwise moves trees to coarser levels, smallest on screen first,
+     *  until they fit.
+     */
+    protected void allocate() {
+        budgetDirty = false;
+        budgetPending = false;
+        budgetTravel = travel;
+        degradedCount = 0;
+        
+        List<Entry> list = budgetEntries;
+        list.clear();
+        for( Cell cell : cellList ) {
+            for( Entry entry : cell.entries ) {
+                entry.allocated = entry.desired;
+                if( entry.desired >= 0 ) {
+                    list.add(entry);
+                }
+            }
+        }
+        
+        if( triangleBudget > 0 && desiredTriangles > triangleBudget ) {
+            for( Entry entry : list ) {
+                float size = entry.radius > 0 ? entry.radius : entry.scale;
+                entry.priority = size / Math.max(entry.location.distance(lastCamera), 0.001f);
+            }
+            Collections.sort(list, PRIORITY_ORDER);
+            
+            // Each pass moves trees one level coarser, smallest first, so
+            // the far trees run out of levels before the near ones degrade
+            // much.
+            long total = desiredTriangles;
+            boolean changed = true;
+            while( changed && total > triangleBudget ) {
+                changed = false;
+                for( int i = 0, size = list.size(); i < size && total > triangleBudget; i++ ) {
+                    Entry entry = list.get(i);
+                    int next = entry.allocated + 1;
+                    if( next >= entry.levels.length || entry.levels[next] == null ) {
+                        continue;
+                    }
+                    int saved = entry.getTriangleCount(entry.allocated) - entry.getTriangleCount(next);
+                    if( saved <= 0 ) {
+                        continue;
+                    }
+                    if( entry.allocated == entry.desired ) {
+                        degradedCount++;
+                    }
+                    entry.allocated = next;
+                    total -= saved;
+                    changed = true;
+                }
+            }
+        }
+        
+        for( Cell cell : cellList ) {
+            for( Entry entry : cell.entries ) {
+                if( entry.allocated != entry.current ) {
+                    show(entry, entry.allocated);
+                }
+            }
+        }
+        list.clear();
+    }
+ 
+    private void show( Entry entry, int level ) {
+        shownTriangles += entry.getTriangleCount(level) - entry.getTriangleCount(entry.current);
+        entry.setLevel(level);
+        lastFrameSwitches++;
+        switchCount++;
+    }
+ 
+    /**
+     *  Returns the total triangle count of the spatial's geometry using
+     *  each geometry's current mesh LOD level.
+     */
+    protected static int countTriangles( Spatial spatial ) {
+        if( spatial instanceof Geometry ) {
+            Geometry geom = (Geometry)spatial;
+            Mesh mesh = geom.getMesh();
+            if( mesh == null ) {
+                return 0;
+            }
+            if( mesh.getNumLodLevels() > 0 ) {
+                return mesh.getTriangleCount(geom.getLodLevel());
+            }
+            return mesh.getTriangleCount();
+        }
+        if( spatial instanceof Node ) {
+            int result = 0;
+            for( Spatial child : ((Node)spatial).getChildren() ) {
+                result += countTriangles(child);
+            }
+            return result;
+        }
+        return 0;
+    }
+ 
+    private void schedule( Cell cell, double time ) {
+        cell.check = new DueCheck(cell, time);
+        due.add(cell.check);
+    }
+    
+    private void markDue( Cell cell ) {
+        if( cell == null || (cell.check != null && cell.check.time == Double.NEGATIVE_INFINITY) ) {
+            return;
+        }
+        schedule(cell, Double.NEGATIVE_INFINITY);
+    }
+ 
+    private void insert( Entry entry ) {
+        int x = (int)Math.floor(entry.location.x / cellSize);
+        int z = (int)Math.floor(entry.location.z / cellSize);
+        Long key = ((long)x << 32) | (z & 0xffffffffL);
+        Cell cell = cells.get(key);
+        if( cell == null ) {
+            cell = new Cell(key);
+            cells.put(key, cell);
+            cell.listIndex = cellList.size();
+            cellList.add(cell);
+        }
+        entry.cell = cell;
+        entry.cellIndex = cell.entries.size();
+        cell.entries.add(entry);
+        markDue(cell);
+    }
+    
+    private void extract( Entry entry ) {
+        Cell cell = entry.cell;
+        List<Entry> list = cell.entries;
+        Entry last = list.remove(list.size() - 1);
+        if( last != entry ) {
+            list.set(entry.cellIndex, last);
+            last.cellIndex = entry.cellIndex;
+        }
+        entry.cell = null;
+        entry.cellIndex = -1;
+        
+        if( list.isEmpty() ) {
+            cell.check = null;
+            cells.remove(cell.key);
+            Cell moved = cellList.remove(cellList.size() - 1);
+            if( moved != cell ) {
+                cellList.set(cell.listIndex, moved);
+                moved.listIndex = cell.listIndex;
+            }
+        }
+    }
+ 
+    /**
+     *  A tree managed by the ForestLodManager.
+     */   
+    public static class Entry {
+        private final Vector3f location;
+        private float scale;
+        private float radius;
+        private final float[] ranges;
+        private final Spatial[] levels;
+        private int current = -1;
+        private int desired = -1;
+        private int allocated = -1;
+        private int[] triangles;
+        private float priority;
+        private float margin;
+        private Cell cell;
+        private int cellIndex = -1;
+        
+        protected Entry( Vector3f location, float scale, float[] ranges, Spatial[] levels ) {
+            this.location = location;
+            this.scale = scale;
+            this.ranges = ranges;
+            this.levels = levels;
+        }
+        
+        public Vector3f getLocation() {
+            return location;
+        }
+        
+        public float getScale() {
+            return scale;
+        }
+        
+        public float getRadius() {
+            return radius;
+        }
+ 
+        /**
+         *  Returns the index of the currently shown level or -1 if none.
+         */       
+        public int getLevel() {
+            return current;
+        }
+        
+        public int getLevelCount() {
+            return levels.length;
+        }
+ 
+        /**
+         *  Returns the index of the level selected by the ranges, which
+         *  differs from getLevel() when the triangle budget moved the tree
+         *  to a coarser level.
+         */       
+        public int getDesiredLevel() {
+            return desired;
+        }
+        
+        /**
+         *  Returns the triangle count of the specified level or 0 for -1.
+         */       
+        public int getTriangleCount( int level ) {
+            if( level < 0 ) {
+                return 0;
+            }
+            if( triangles == null ) {
+                triangles = new int[levels.length];
+                for( int i = 0; i < levels.length; i++ ) {
+                    triangles[i] = levels[i] == null ? 0 : countTriangles(levels[i]);
+                }
+            }
+            return triangles[level];
+        }
+        
+        public Spatial getLevel( int index ) {
+            return levels[index];
+        }
+        
+        protected void setLevel( int level ) {
+            if( current >= 0 && levels[current] != null ) {
+                levels[current].setCullHint(CullHint.Always);
+            }
+            current = level;
+            if( current >= 0 && levels[current] != null ) {
+                levels[current].setCullHint(CullHint.Inherit);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return "Entry[" + location + ", level=" + current + "]";
+        }
+    }
+    
+    protected static class Cell {
+        final Long key;
+        final List<Entry> entries = new ArrayList<Entry>();
+        int listIndex;
+        DueCheck check;
+        
+        public Cell( Long key ) {
+            this.key = key;
+        }
+    }
+ 
+    /**
+     *  The camera travel at which a cell needs to be evaluated again.
+     *  Rescheduling a cell replaces its check and the old one is skipped
+     *  when it reaches the head of the queue.
+     */   
+    private static class DueCheck {
+        final Cell cell;
+        final double time;
+        
+        public DueCheck( Cell cell, double time ) {
+            this.cell = cell;
+            this.time = time;
+        }
+        
+        public boolean isCurrent() {
+            return cell.check == this;
+        }
+    }
+}
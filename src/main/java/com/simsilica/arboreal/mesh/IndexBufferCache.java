@@ -0,0 +1,326 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import java.nio.Buffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ *  Shares identical index buffers across meshes.  Passing each generated
+ *  mesh through share() lets meshes with the same triangle topology use
+ *  one index VertexBuffer (and one set of LOD level buffers) instead of
+ *  one per seed.
+ *
+ *  <p>Only flat-poly levels reliably share between seeds of the same
+ *  TreeParameters.  Skinned levels add joint corners depending on how far
+ *  each joint bends, which depends on the seed even with the legacy curve
+ *  generator, so their index buffers only match when the seeds happen to
+ *  produce the same joint curves.  Meshes are matched by a fingerprint of
+ *  their index data and LOD levels and then compared exactly, so meshes
+ *  whose topology differs are simply not shared.  The cache holds on to
+ *  the shared buffers until clear() is called.</p>
+ *
+ *  <p>The cache is guarded by a ReentrantLock rather than synchronized
+ *  so that it does not pin virtual threads during generation.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class IndexBufferCache {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Long, List<Entry>> entries = new HashMap<Long, List<Entry>>();
+    private long hits;
+    private long misses;
+    private long sharedBytes;
+    
+    public IndexBufferCache() {
+    }
+ 
+    /**
+     *  Replaces the mesh's index buffer and LOD levels with previously
+     *  shared ones when they are identical or otherwise registers them
+     *  as the shared buffers for this topology.  Returns true if the
+     *  mesh now uses buffers shared with an earlier mesh.  Meshes that
+     *  are not indexed are left alone.
+     */   
+    public boolean share( Mesh mesh ) {
+        VertexBuffer ib = mesh.getBuffer(Type.Index);
+        if( ib == null ) {
+            return false;
+        }
+        long key = fingerprint(mesh);
+        VertexBuffer[] lods = getLodLevels(mesh);
+        
+        lock.lock();
+        try {
+            List<Entry> list = entries.get(key);
+            if( list == null ) {
+                list = new ArrayList<Entry>(1);
+                entries.put(key, list);
+            }
+            for( Entry e : list ) {
+                if( e.index == ib ) {
+                    // Already shared
+                    return true;
+                } 
+                if( e.matches(ib, lods) ) {
+                    hits++;
+                    sharedBytes += byteSize(ib);
+                    mesh.clearBuffer(Type.Index);
+                    mesh.setBuffer(e.index);
+                    if( e.lods != null ) {
+                        mesh.setLodLevels(e.lods);
+                    }
+                    return true;
+                }
+            }
+            misses++;
+            list.add(new Entry(ib, lods));
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Shares the index buffers of all of the non-null meshes in the list.
+     */   
+    public void shareAll( List<Mesh> meshes ) {
+        for( Mesh mesh : meshes ) {
+            if( mesh != null ) {
+                share(mesh);
+            }
+        }
+    }
+ 
+    /**
+     *  Returns a 64 bit hash of the mesh's index data and LOD level
+     *  index data.  Meshes with the same topology have the same fingerprint.
+     */   
+    public static long fingerprint( Mesh mesh ) {
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, mesh.getMode().ordinal());
+        hash = hash(hash, mesh.getBuffer(Type.Index).getData());
+        VertexBuffer[] lods = getLodLevels(mesh);
+        if( lods != null ) {
+            for( VertexBuffer lod : lods ) {
+                hash = hash(hash, lod.getData());
+            }
+        }
+        return hash;
+    }
+ 
+    /**
+     *  Releases all of the shared buffers.  Meshes that already share them
+     *  keep using them.
+     */   
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Returns the number of distinct index buffers held by the cache.
+     */   
+    public int size() {
+        lock.lock();
+        try {
+            int result = 0;
+            for( List<Entry> list : entries.values() ) {
+                result += list.size();
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Returns the number of meshes that were given an existing shared
+     *  index buffer.
+     */   
+    public long getHitCount() {
+        lock.lock();
+        try {
+            return hits;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     *  Returns the number of meshes whose index buffer became the shared
+     *  buffer for a new topology.
+     */   
+    public long getMissCount() {
+        lock.lock();
+        try {
+            return misses;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Returns the total size in bytes of the index buffers that were
+     *  replaced by shared ones.
+     */   
+    public long getSharedBytes() {
+        lock.lock();
+        try {
+            return sharedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    private static VertexBuffer[] getLodLevels( Mesh mesh ) {
+        int count = mesh.getNumLodLevels();
+        if( count == 0 ) {
+            return null;
+        }
+        VertexBuffer[] result = new VertexBuffer[count];
+        for( int i = 0; i < count; i++ ) {
+            result[i] = mesh.getLodLevel(i);
+        }
+        return result;
+    }
+    
+    private static long hash( long hash, long value ) {
+        hash ^= value;
+        return hash * 0x100000001b3L;
+    }
+    
+    private static long hash( long hash, Buffer data ) {
+        int size = data.limit();
+        hash = hash(hash, size);
+        if( data instanceof ShortBuffer ) {
+            ShortBuffer sb = (ShortBuffer)data;
+            hash = hash(hash, 2);
+            for( int i = 0; i < size; i++ ) {
+                hash = hash(hash, sb.get(i) & 0xffff);
+            }
+        } else if( data instanceof IntBuffer ) {
+            IntBuffer ib = (IntBuffer)data;
+            hash = hash(hash, 4);
+            for( int i = 0; i < size; i++ ) {
+                hash = hash(hash, ib.get(i));
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported index buffer:" + data);
+        }
+        return hash;
+    }
+ 
+    private static boolean sameData( VertexBuffer a, VertexBuffer b ) {
+        if( a.getFormat() != b.getFormat() || a.getNumComponents() != b.getNumComponents() ) {
+            return false;
+        }
+        Buffer da = a.getData();
+        Buffer db = b.getData();
+        int size = da.limit();
+        if( db.limit() != size ) {
+            return false;
+        }
+        if( da instanceof ShortBuffer && db instanceof ShortBuffer ) {
+            ShortBuffer sa = (ShortBuffer)da;
+            ShortBuffer sb = (ShortBuffer)db;
+            for( int i = 0; i < size; i++ ) {
+                if( sa.get(i) != sb.get(i) ) {
+                    return false;
+                }
+            }
+            return true;
+        } else if( da instanceof IntBuffer && db instanceof IntBuffer ) {
+            IntBuffer ia = (IntBuffer)da;
+            IntBuffer ib = (IntBuffer)db;
+            for( int i = 0; i < size; i++ ) {
+                if( ia.get(i) != ib.get(i) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+    
+    private static long byteSize( VertexBuffer vb ) {
+        return (long)vb.getData().capacity() * vb.getFormat().getComponentSize();
+    }
+ 
+    private static class Entry {
+        VertexBuffer index;
+        VertexBuffer[] lods;
+        
+        public Entry( VertexBuffer index, VertexBuffer[] lods ) {
+            this.index = index;
+            this.lods = lods;
+        }
+        
+        public boolean matches( VertexBuffer ib, VertexBuffer[] otherLods ) {
+            if( !sameData(index, ib) ) {
+                return false;
+            }
+            if( lods == null || otherLods == null ) {
+                return lods == otherLods;
+            }
+            if( lods.length != otherLods.length ) {
+                return false;
+            }
+            for( int i = 0; i < lods.length; i++ ) {
+                if( !sameData(lods[i], otherLods[i]) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
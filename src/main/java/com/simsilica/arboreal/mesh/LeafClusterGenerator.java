@@ -0,0 +1,227 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.math.FastMath;
+import java.util.Arrays;
+
+
+/**
+ *  Reduces a set of leaf tips by merging nearby tips into larger
+ *  leaf cards.  Tips are clustered on a regular grid whose cell size is 
+ *  searched to get as close as possible to the requested tip count.  Each 
+ *  cluster becomes one tip at the cluster centroid with the averaged 
+ *  direction and a size scale that preserves the total leaf area.  The 
+ *  results are deterministic for a given input and clusters are output 
+ *  in the order of their first tip.
+ *
+ *  @author    Paul Speed
+ */
+public class LeafClusterGenerator {
+
+    private static final int SEARCH_ITERATIONS = 24;
+
+    // Open-addressed cell key to cluster index map, reused between passes
+    private long[] keys = new long[0];
+    private int[] values = new int[0];
+    private int[] cellIndexes = new int[0];
+ 
+    public LeafClusterGenerator() {
+    }
+ 
+    /**
+     *  Returns the tips reduced by the specified ratio where 0 keeps all
+     *  of the tips and 0.75 keeps about a quarter of them.  The original
+     *  buffer is returned if there is nothing to reduce.
+     */   
+    public LeafTipBuffer reduce( LeafTipBuffer tips, float reduction ) {
+        if( reduction <= 0 ) {
+            return tips;
+        }
+        int target = Math.max(1, Math.round(tips.size() * (1 - reduction)));
+        return cluster(tips, target); 
+    }
+ 
+    /**
+     *  Clusters the tips into approximately the target number of tips.
+     */   
+    public LeafTipBuffer cluster( LeafTipBuffer tips, int target ) {
+        int count = tips.size();
+        if( target >= count || count == 0 ) {
+            return tips;
+        }
+        
+        float[] data = tips.getArray();
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        float maxZ = Float.NEGATIVE_INFINITY;
+        for( int i = 0; i < count; i++ ) {
+            int p = i * LeafTipBuffer.STRIDE;
+            minX = Math.min(minX, data[p]);
+            minY = Math.min(minY, data[p + 1]);
+            minZ = Math.min(minZ, data[p + 2]);
+            maxX = Math.max(maxX, data[p]);
+            maxY = Math.max(maxY, data[p + 1]);
+            maxZ = Math.max(maxZ, data[p + 2]);
+        }
+        float extent = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+        if( extent <= 0 ) {
+            // Everything is in one spot
+            return merge(tips, extent + 1, minX, minY, minZ);
+        }
+ 
+        ensureCapacity(count);
+        
+        // Bisect the cell size on a log scale.  The number of clusters
+        // shrinks (mostly) monotonically as the cells get bigger.
+        float lo = extent * 0.0001f;
+        float hi = extent * 1.001f;
+        float best = hi;
+        int bestError = Integer.MAX_VALUE;
+        for( int i = 0; i < SEARCH_ITERATIONS; i++ ) {
+            float cellSize = (float)Math.sqrt(lo * hi);
+            int clusters = assignCells(data, count, cellSize, minX, minY, minZ);
+            int error = Math.abs(clusters - target);
+            if( error < bestError ) {
+                bestError = error;
+                best = cellSize;
+            }
+            if( clusters == target ) {
+                break;
+            } else if( clusters > target ) {
+                lo = cellSize;
+            } else {
+                hi = cellSize;
+            }
+        }
+        return merge(tips, best, minX, minY, minZ);
+    }
+ 
+    private void ensureCapacity( int count ) {
+        int size = Integer.highestOneBit(Math.max(count, 8) * 2) * 2;
+        if( keys.length < size ) {
+            keys = new long[size];
+            values = new int[size];
+        }
+        if( cellIndexes.length < count ) {
+            cellIndexes = new int[count];
+        }
+    }
+ 
+    /**
+     *  Assigns each tip to a cluster index for the specified cell size
+     *  and returns the number of clusters.
+     */   
+    private int assignCells( float[] data, int count, float cellSize, 
+                             float minX, float minY, float minZ ) {
+        Arrays.fill(values, -1);
+        int mask = keys.length - 1;
+        int clusters = 0;
+        float inv = 1 / cellSize;
+        for( int i = 0; i < count; i++ ) {
+            int p = i * LeafTipBuffer.STRIDE;
+            long x = (long)((data[p] - minX) * inv);
+            long y = (long)((data[p + 1] - minY) * inv);
+            long z = (long)((data[p + 2] - minZ) * inv);
+            long key = (x << 42) | (y << 21) | z;
+            
+            int slot = (int)(key ^ (key >>> 21) ^ (key >>> 42)) * 0x9E3779B1 & mask;
+            while( values[slot] >= 0 && keys[slot] != key ) {
+                slot = (slot + 1) & mask;
+            }
+            if( values[slot] < 0 ) {
+                keys[slot] = key;
+                values[slot] = clusters++;
+            }
+            cellIndexes[i] = values[slot];
+        }
+        return clusters;
+    }
+ 
+    private LeafTipBuffer merge( LeafTipBuffer tips, float cellSize, float minX, float minY, float minZ ) {
+        int count = tips.size();
+        float[] data = tips.getArray();
+        ensureCapacity(count);
+        int clusters = assignCells(data, count, cellSize, minX, minY, minZ);
+ 
+        // Per cluster: position sum, direction sum, min depth, radius sum, 
+        // area (scale squared) sum, count
+        float[] sums = new float[clusters * 10];
+        for( int c = 0; c < clusters; c++ ) {
+            sums[c * 10 + 6] = Float.MAX_VALUE;
+        }
+        for( int i = 0; i < count; i++ ) {
+            int p = i * LeafTipBuffer.STRIDE;
+            int c = cellIndexes[i] * 10;
+            for( int j = 0; j < 6; j++ ) {
+                sums[c + j] += data[p + j];
+            }
+            sums[c + 6] = Math.min(sums[c + 6], data[p + LeafTipBuffer.DEPTH]);
+            sums[c + 7] += data[p + LeafTipBuffer.RADIUS];
+            float scale = data[p + LeafTipBuffer.SCALE];
+            sums[c + 8] += scale * scale;
+            sums[c + 9]++;
+        }
+ 
+        LeafTipBuffer result = new LeafTipBuffer(clusters);
+        for( int c = 0; c < clusters; c++ ) {
+            int s = c * 10;
+            float n = sums[s + 9];
+            float dx = sums[s + 3];
+            float dy = sums[s + 4];
+            float dz = sums[s + 5];
+            float length = FastMath.sqrt(dx * dx + dy * dy + dz * dz);
+            if( length > FastMath.ZERO_TOLERANCE ) {
+                dx /= length;
+                dy /= length;
+                dz /= length;
+            } else {
+                // Opposing directions cancelled out
+                dx = 0;
+                dy = 1;
+                dz = 0;
+            }
+            result.add(sums[s] / n, sums[s + 1] / n, sums[s + 2] / n, 
+                       dx, dy, dz, (int)sums[s + 6], sums[s + 7] / n,
+                       FastMath.sqrt(sums[s + 8]));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.math.Vector3f;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *  A compact list of branch tips stored in a single float array.  
+ *  Each tip has a position, a unit direction, the branch depth, 
+ *  the branch end radius, and a leaf size scale that is 1 except for
+ *  clustered tips.  The tree mesh generators fill this during
+ *  their traversal and the leaf generators read it directly without
+ *  any per-tip objects.
+ *
+ *  @author    Paul Speed
+ */
+public class LeafTipBuffer {
+
+    public static final int POSITION = 0;
+    public static final int DIRECTION = 3;
+    public static final int DEPTH = 6;
+    public static final int RADIUS = 7;
+    public static final int SCALE = 8;
+    
+    /**
+     *  The number of floats used by each tip in the backing array.
+     */
+    public static final int STRIDE = 9;
+
+    private float[] data;
+    private int size;
+    
+    public LeafTipBuffer() {
+        this(64);
+    }
+    
+    public LeafTipBuffer( int capacity ) {
+        this.data = new float[Math.max(1, capacity) * STRIDE];
+    }
+ 
+    /**
+     *  Creates a tip buffer from a list of tip vertexes as produced
+     *  by the older List-based generator methods.  Depth and radius 
+     *  are unknown and will be 0.
+     */   
+    public static LeafTipBuffer fromVertexes( List<Vertex> tips ) {
+        LeafTipBuffer result = new LeafTipBuffer(tips.size());
+        for( Vertex v : tips ) {
+            result.add(v.pos, v.normal, 0, 0);
+        }
+        return result;
+    }
+ 
+    public void ensureCapacity( int tips ) {
+        if( tips * STRIDE > data.length ) {
+            data = Arrays.copyOf(data, Math.max(tips * STRIDE, data.length * 2));
+        }
+    }
+ 
+    public void add( Vector3f pos, Vector3f dir, int depth, float radius ) {
+        add(pos.x, pos.y, pos.z, dir.x, dir.y, dir.z, depth, radius);
+    }
+    
+    public void add( float x, float y, float z, float dx, float dy, float dz, int depth, float radius ) {
+        add(x, y, z, dx, dy, dz, depth, radius, 1);
+    }
+    
+    public void add( float x, float y, float z, float dx, float dy, float dz, 
+                     int depth, float radius, float scale ) {
+        ensureCapacity(size + 1);
+        int i = size * STRIDE;
+        data[i++] = x;
+        data[i++] = y;
+        data[i++] = z;
+        data[i++] = dx;
+        data[i++] = dy;
+        data[i++] = dz;
+        data[i++] = depth;
+        data[i++] = radius;
+        data[i] = scale;
+        size++;
+    }
+    
+    /**
+     *  Appends all of the tips in the specified buffer to this one.
+     */
+    public void addAll( LeafTipBuffer tips ) {
+        ensureCapacity(size + tips.size);
+        System.arraycopy(tips.data, 0, data, size * STRIDE, tips.size * STRIDE);
+        size += tips.size;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    public void clear() {
+        size = 0;
+    }
+ 
+    /**
+     *  Returns the backing array.  Only the first size() * STRIDE
+     *  values are valid and the array may be replaced when tips
+     *  are added.
+     */   
+    public float[] getArray() {
+        return data;
+    }
+    
+    public Vector3f getPosition( int tip, Vector3f store ) {
+        if( store == null ) {
+            store = new Vector3f();
+        }
+        int i = tip * STRIDE + POSITION;
+        return store.set(data[i], data[i + 1], data[i + 2]);
+    }
+    
+    public Vector3f getDirection( int tip, Vector3f store ) {
+        if( store == null ) {
+            store = new Vector3f();
+        }
+        int i = tip * STRIDE + DIRECTION;
+        return store.set(data[i], data[i + 1], data[i + 2]);
+    }
+    
+    public int getDepth( int tip ) {
+        return (int)data[tip * STRIDE + DEPTH];
+    }
+    
+    public float getRadius( int tip ) {
+        return data[tip * STRIDE + RADIUS];
+    }
+    
+    public float getScale( int tip ) {
+        return data[tip * STRIDE + SCALE];
+    }
+ 
+    /**
+     *  Returns a new buffer containing the tips in the specified order
+     *  where order[i] is the index of the tip to put at i.
+     */
+    public LeafTipBuffer reorder( int[] order ) {
+        LeafTipBuffer result = new LeafTipBuffer(order.length);
+        for( int i = 0; i < order.length; i++ ) {
+            System.arraycopy(data, order[i] * STRIDE, result.data, i * STRIDE, STRIDE);
+        }
+        result.size = order.length;
+        return result;
+    }
+ 
+    /**
+     *  Adds a Vertex for each tip to the specified list for code that
+     *  still uses the List-based tip methods.
+     */   
+    public List<Vertex> toVertexes( List<Vertex> store ) {
+        for( int i = 0; i < size; i++ ) {
+            Vertex v = new Vertex(getPosition(i, null));
+            v.normal = getDirection(i, null);
+            store.add(v);
+        }
+        return store;
+    }
+    
+    @Override
+    public String toString() {
+        return "LeafTipBuffer[size=" + size + "]";
+    }
+}
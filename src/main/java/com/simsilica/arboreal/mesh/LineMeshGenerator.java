@@ -39,12 +39,8 @@ package com.simsilica.arboreal.mesh;
 import com.jme3.math.Vector3f;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.VertexBuffer;
-import com.jme3.util.BufferUtils;
 import com.simsilica.arboreal.Segment;
 import com.simsilica.arboreal.Tree;
-import java.nio.FloatBuffer;
-import java.util.ArrayList;
-import java.util.List;
 
 
 /**
@@ -56,34 +52,52 @@ import java.util.List;
 public class LineMeshGenerator {
 
     public Mesh generateMesh( Tree tree ) {
-    
-        List<Vector3f> points = new ArrayList<Vector3f>();
+        return generateMesh(tree, new JmeMeshSink());
+    }
+ 
+    /**
+     *  Streams the branch lines directly into the specified sink.
+     */   
+    public <T> T generateMesh( Tree tree, MeshSink<T> sink ) {
+ 
+        int count = 0;
+        for( Segment seg : tree ) {
+            if( seg == null ) {
+                continue;
+            }
+            count += countSegments(seg);
+        }
+        
+        sink.begin(Mesh.Mode.Lines, count * 2, 0);
+        sink.addAttribute(VertexBuffer.Type.Position, 3);
  
         Vector3f base = new Vector3f();
         for( Segment seg : tree ) {
             if( seg == null ) {
                 continue;
             }       
-            addBranches(base, seg, points);
+            addBranches(base, seg, sink);
         }
         
-        Mesh mesh = new Mesh();           
-        mesh.setMode(Mesh.Mode.Lines);
-        FloatBuffer fb = BufferUtils.createFloatBuffer(points.toArray(new Vector3f[0]));
-        mesh.setBuffer(VertexBuffer.Type.Position, 3, fb);
-        mesh.updateBound();
-
-        return mesh;                
+        return sink.end();                
+    }
+ 
+    protected int countSegments( Segment seg ) {
+        int result = 1;
+        for( Segment child : seg ) {
+            result += countSegments(child);
+        }
+        return result;
     }
     
-    protected void addBranches( Vector3f start, Segment seg, List<Vector3f> points ) {
+    protected void addBranches( Vector3f start, Segment seg, MeshSink<?> sink ) {
         
-        points.add(start);
+        sink.put(VertexBuffer.Type.Position, start.x, start.y, start.z);
         Vector3f end = start.add(seg.dir.mult(seg.length));
-        points.add(end);
+        sink.put(VertexBuffer.Type.Position, end.x, end.y, end.z);
         
         for( Segment child : seg ) {
-            addBranches(end, child, points);
+            addBranches(end, child, sink);
         }
     }
 }
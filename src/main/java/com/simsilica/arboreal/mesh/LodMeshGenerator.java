@@ -0,0 +1,271 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.simsilica.arboreal.LevelOfDetailParameters;
+import com.simsilica.arboreal.LevelOfDetailParameters.ReductionType;
+import com.simsilica.arboreal.Tree;
+import com.simsilica.arboreal.TreeParameters;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ *  Generates the branch meshes for all of a tree's levels of detail
+ *  at once.  Levels are grouped by reduction type and each group is
+ *  generated with a single walk of the tree so that curve and tip 
+ *  calculations are only performed once per group instead of once 
+ *  per level.
+ *
+ *  @author    Paul Speed
+ */
+public class LodMeshGenerator {
+
+    private SkinnedTreeMeshGenerator skinnedGenerator = new SkinnedTreeMeshGenerator();
+    private FlatPolyTreeMeshGenerator flatPolyGenerator = new FlatPolyTreeMeshGenerator();
+    private IndexBufferCache indexCache;
+ 
+    public LodMeshGenerator() {
+    }
+
+    /**
+     *  Sets the curve generator used for both the skinned and
+     *  flat-poly levels of detail. 
+     */
+    public void setCurveGenerator( CurveGenerator curveGen ) {
+        skinnedGenerator.setCurveGenerator(curveGen);
+        flatPolyGenerator.setCurveGenerator(curveGen);
+    }
+    
+    public CurveGenerator getCurveGenerator() {
+        return skinnedGenerator.getCurveGenerator();
+    }
+ 
+    /**
+     *  Sets a cache that generated meshes will share their index buffers
+     *  through.  Using the same cache for all of the seeds of a species
+     *  lets every variant's level of detail use the same index buffer.
+     *  Defaults to null for no sharing.
+     */   
+    public void setIndexBufferCache( IndexBufferCache indexCache ) {
+        this.indexCache = indexCache;
+    }
+    
+    public IndexBufferCache getIndexBufferCache() {
+        return indexCache;
+    }
+    
+    public List<Mesh> generateMeshes( Tree tree, TreeParameters treeParms, LeafTipBuffer tips ) {
+        return generateMeshes(tree, treeParms.getLods(), treeParms.getYOffset(), 
+                              treeParms.getTextureURepeat(), treeParms.getTextureVScale(),
+                              tips);
+    }
+ 
+    /**
+     *  Returns one mesh per specified level of detail, in the same order as
+     *  the levels.  Impostor levels are not generated here and will have a 
+     *  null entry in the results.  If tips is not null then it is filled
+     *  using the generator of the first non-impostor level.
+     */   
+    public List<Mesh> generateMeshes( Tree tree, List<LevelOfDetailParameters> lods,
+                                      float yOffset, int uRepeat, float vScale, 
+                                      LeafTipBuffer tips ) {
+        List<Mesh> result = generateMeshes(tree, lods, yOffset, uRepeat, vScale, tips, 
+                                           createSinks(lods.size()));
+        if( indexCache != null ) {
+            indexCache.shareAll(result);
+        }                
+        return result;
+    }
+ 
+    public boolean updateMeshes( List<Mesh> meshes, Tree tree, TreeParameters treeParms, LeafTipBuffer tips ) {
+        return updateMeshes(meshes, tree, treeParms.getLods(), treeParms.getYOffset(), 
+                            treeParms.getTextureURepeat(), treeParms.getTextureVScale(),
+                            tips);
+    }
+ 
+    /**
+     *  Regenerates the levels of detail of a changed tree directly into the
+     *  existing meshes previously returned by generateMeshes(), leaving the
+     *  index buffers and any other unchanged buffers alone.  Returns false 
+     *  if the topology of any level changed, for example, because the number 
+     *  of branches or radials changed, in which case the caller must generate
+     *  new meshes.  All levels are generated and checked before any of them
+     *  are written so when this returns false none of the meshes, nor tips, 
+     *  have been modified.  Geometries using the meshes must have their
+     *  updateModelBound() called afterwards, see updateGeometries().
+     */   
+    public boolean updateMeshes( List<Mesh> meshes, Tree tree, List<LevelOfDetailParameters> lods,
+                                 float yOffset, int uRepeat, float vScale, 
+                                 LeafTipBuffer tips ) {
+        if( meshes.size() != lods.size() ) {
+            return false;
+        }
+        List<MeshUpdateSink> sinks = new ArrayList<MeshUpdateSink>(lods.size());
+        for( int i = 0; i < lods.size(); i++ ) {
+            Mesh mesh = meshes.get(i);
+            if( mesh == null ) {
+                if( lods.get(i).reduction != ReductionType.Impostor ) {
+                    return false;
+                }
+                sinks.add(null);
+                continue;
+            }
+            sinks.add(new MeshUpdateSink(mesh));
+        }
+        
+        // Tips are staged like the meshes so that a failed update
+        // leaves the caller's buffer alone
+        LeafTipBuffer stagedTips = tips == null ? null : new LeafTipBuffer();        
+        for( Boolean staged : generateMeshes(tree, lods, yOffset, uRepeat, vScale, stagedTips, sinks) ) {
+            if( staged == Boolean.FALSE ) {
+                return false;
+            }
+        }
+        
+        // Every level passed so now it's safe to write them
+        for( MeshUpdateSink sink : sinks ) {
+            if( sink != null ) {
+                sink.apply();
+            }
+        }
+        if( tips != null ) {
+            tips.addAll(stagedTips);
+        }
+        return true;
+    }
+ 
+    /**
+     *  Like updateMeshes() but for the geometries of the levels, which
+     *  also refreshes the geometries' bounds when the update succeeds.  
+     *  Null geometries are treated as null meshes.
+     */   
+    public boolean updateGeometries( List<Geometry> geometries, Tree tree, TreeParameters treeParms, 
+                                     LeafTipBuffer tips ) {
+        List<Mesh> meshes = new ArrayList<Mesh>(geometries.size());
+        for( Geometry geom : geometries ) {
+            meshes.add(geom == null ? null : geom.getMesh());
+        }
+        if( !updateMeshes(meshes, tree, treeParms, tips) ) {
+            return false;
+        }
+        for( Geometry geom : geometries ) {
+            if( geom != null ) {
+                geom.updateModelBound();
+            }
+        }
+        return true;
+    }
+ 
+    /**
+     *  Streams each specified level of detail into the corresponding sink
+     *  and returns the sinks' results in LOD order.  Impostor levels are not 
+     *  generated here, their sinks are not used, and will have a null entry 
+     *  in the results.  If tips is not null then it is filled using the 
+     *  generator of the first non-impostor level.
+     */   
+    public <T> List<T> generateMeshes( Tree tree, List<LevelOfDetailParameters> lods,
+                                       float yOffset, int uRepeat, float vScale, 
+                                       LeafTipBuffer tips, List<? extends MeshSink<T>> sinks ) {
+ 
+        List<LevelOfDetailParameters> normal = new ArrayList<LevelOfDetailParameters>();
+        List<LevelOfDetailParameters> flatPoly = new ArrayList<LevelOfDetailParameters>();
+        List<MeshSink<T>> normalSinks = new ArrayList<MeshSink<T>>();
+        List<MeshSink<T>> flatPolySinks = new ArrayList<MeshSink<T>>();
+        ReductionType tipSource = null;
+        for( int i = 0; i < lods.size(); i++ ) {
+            LevelOfDetailParameters lod = lods.get(i);
+            switch( lod.reduction ) {
+                case Normal:
+                    normal.add(lod);
+                    normalSinks.add(sinks.get(i));
+                    break;
+                case FlatPoly:
+                    flatPoly.add(lod);
+                    flatPolySinks.add(sinks.get(i));
+                    break;
+                default:
+                    continue;
+            }
+            if( tipSource == null ) {
+                tipSource = lod.reduction;
+            }
+        }
+ 
+        List<T> normalMeshes = null;
+        if( !normal.isEmpty() ) {
+            normalMeshes = skinnedGenerator.generateMeshes(tree, normal, yOffset, uRepeat, vScale,
+                                                           tipSource == ReductionType.Normal ? tips : null,
+                                                           normalSinks);
+        }
+        List<T> flatPolyMeshes = null;
+        if( !flatPoly.isEmpty() ) {
+            flatPolyMeshes = flatPolyGenerator.generateMeshes(tree, flatPoly, yOffset, uRepeat, vScale,
+                                                              tipSource == ReductionType.FlatPoly ? tips : null,
+                                                              flatPolySinks);
+        }
+        
+        // Put them back in LOD order
+        List<T> results = new ArrayList<T>(lods.size());
+        int nextNormal = 0;
+        int nextFlatPoly = 0;
+        for( int i = 0; i < lods.size(); i++ ) {
+            switch( lods.get(i).reduction ) {
+                case Normal:
+                    results.add(normalMeshes.get(nextNormal++));
+                    break;
+                case FlatPoly:
+                    results.add(flatPolyMeshes.get(nextFlatPoly++));
+                    break;
+                default:
+                    results.add(null);
+                    break;
+            }
+        }
+        return results;
+    }
+    
+    protected List<JmeMeshSink> createSinks( int count ) {
+        List<JmeMeshSink> result = new ArrayList<JmeMeshSink>(count);
+        for( int i = 0; i < count; i++ ) {
+            result.add(new JmeMeshSink());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.renderer.Camera;
+
+
+/** 
+ *  Decides at what world distances an object switches levels of detail
+ *  for a particular camera.  Levels are described by their far ranges in
+ *  the object's model space, in ascending order, as given to
+ *  LodSwitchControl.addLevel() or ForestLodManager.add().  The policy
+ *  turns those into world distances for the camera, which lets the
+ *  callers keep their hysteresis and scheduling in distance terms.
+ *
+ *  @author    Paul Speed
+ */
+public interface LodPolicy {
+
+    public static final LodPolicy DEFAULT = new DistanceLodPolicy();
+ 
+    /**
+     *  Fills store with the world space far distance of each level, in
+     *  ascending order, and returns it.  scale is the object's world scale
+     *  and radius its world bounding radius or 0 if unknown.  If store is
+     *  null or too small then a new array is returned.  camera can be null
+     *  when only the camera location is known.
+     */
+    public float[] getWorldRanges( Camera camera, float[] ranges, float scale, float radius, 
+                                   float[] store );
+}
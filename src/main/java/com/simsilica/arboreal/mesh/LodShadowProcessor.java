@@ -0,0 +1,130 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.post.SceneProcessor;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.texture.FrameBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ *  Lets LodSwitchControls with a shadow level offset cast shadows from
+ *  a coarser level than they show.  The controls that render in the
+ *  viewport register themselves and are switched to their shadow levels
+ *  after the scene is queued and back again once the frame is rendered.
+ *  The shadow renderer only sees the switch if it comes after this
+ *  processor in the viewport's processor list, so add this processor
+ *  first.  Trees outside of the viewport's frustum are not rendered by it
+ *  and cast shadows with their shown level.
+ *
+ *  @author    Paul Speed
+ */
+public class LodShadowProcessor implements SceneProcessor {
+ 
+    private final List<LodSwitchControl> controls = new ArrayList<LodSwitchControl>();
+    private final List<LodSwitchControl> switched = new ArrayList<LodSwitchControl>();
+    private boolean initialized;
+    private int lastSwitchCount;
+ 
+    public LodShadowProcessor() {
+    }
+ 
+    /**
+     *  Called by LodSwitchControl when it renders in this processor's
+     *  viewport.
+     */
+    protected void add( LodSwitchControl control ) {
+        controls.add(control);
+    }
+ 
+    /**
+     *  Returns the number of controls that cast from their shadow level
+     *  in the last frame.
+     */
+    public int getLastSwitchCount() {
+        return lastSwitchCount;
+    }
+ 
+    @Override
+    public void initialize( RenderManager rm, ViewPort vp ) {
+        initialized = true;
+    }
+
+    @Override
+    public void reshape( ViewPort vp, int w, int h ) {
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    @Override
+    public void preFrame( float tpf ) {
+        controls.clear();
+    }
+
+    @Override
+    public void postQueue( RenderQueue rq ) {
+        for( LodSwitchControl control : controls ) {
+            if( control.beginShadowPass() ) {
+                switched.add(control);
+            }
+        }
+        controls.clear();
+        lastSwitchCount = switched.size();
+    }
+
+    @Override
+    public void postFrame( FrameBuffer out ) {
+        for( LodSwitchControl control : switched ) {
+            control.endShadowPass();
+        }
+        switched.clear();
+    }
+
+    @Override
+    public void cleanup() {
+        postFrame(null);
+        controls.clear();
+        initialized = false;
+    }
+}
@@ -36,36 +36,105 @@
 
 package com.simsilica.arboreal.mesh;
 
+import com.jme3.bounding.BoundingBox;
+import com.jme3.bounding.BoundingSphere;
+import com.jme3.bounding.BoundingVolume;
 import com.jme3.export.InputCapsule;
 import com.jme3.export.JmeExporter;
 import com.jme3.export.JmeImporter;
 import com.jme3.export.OutputCapsule;
 import com.jme3.export.Savable;
+import com.jme3.material.MatParamOverride;
+import com.jme3.post.SceneProcessor;
 import com.jme3.renderer.Camera;
 import com.jme3.renderer.RenderManager;
 import com.jme3.renderer.ViewPort;
+import com.jme3.renderer.queue.RenderQueue.ShadowMode;
 import com.jme3.scene.Node;
 import com.jme3.scene.Spatial;
 import com.jme3.scene.Spatial.CullHint;
 import com.jme3.scene.control.AbstractControl;
+import com.jme3.shader.VarType;
+import com.jme3.util.clone.Cloner;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
+ *  Shows one child of the controlled node based on its distance from
+ *  the camera.
+ *
+ *  <p>A hysteresis fraction can be set so that once a level is showing
+ *  it is kept until the distance is that fraction beyond its range.  This
+ *  keeps trees that sit right at a boundary from switching back and forth
+ *  as the camera moves slightly.  A fade time can also be set so that 
+ *  both levels are shown for a short time after a switch.  During the fade,
+ *  each of the two children gets a Float material parameter override 
+ *  (named "LodFade" by default) going from 0 to 1 for the new level and
+ *  from -1 to 0 for the old one, the sign telling the shader which side of
+ *  a complementary dither pattern to keep.  Of the shipped materials only
+ *  LeafLighting dithers with it.  TreeLighting and the billboard materials
+ *  declare the parameter but their shared fragment shader does not use it
+ *  yet, so with those both levels are simply drawn on top of each other for
+ *  the fade time, which costs a second draw and can z-fight.  Leave the
+ *  fade time at 0 for them.</p>
+ *
+ *  <p>By default the distance to the camera divided by the world scale
+ *  is compared to the ranges.  setPolicy() can supply a different
+ *  LodPolicy, like ScreenSpaceLodPolicy, to decide the world distances
+ *  of the ranges instead.  The policy is not saved with the control.</p>
+ *
+ *  <p>Levels are normally chosen for the first camera that renders the
+ *  control, or the one given to setCamera().  With viewport selection
+ *  enabled, other viewports that render the node see the level for their
+ *  own camera, chosen without hysteresis or fading.  Separately, a shadow
+ *  level offset makes the level that many steps coarser cast the shadows
+ *  in viewports that have a LodShadowProcessor ahead of their shadow
+ *  renderer, while the shown level only receives them.</p>
  *
  *  @author    Paul Speed
  */
 public class LodSwitchControl extends AbstractControl
                               implements Cloneable {
-
+ 
+    public static final String DEFAULT_FADE_PARAMETER = "LodFade";
+ 
+    private static final AtomicLong totalSwitches = new AtomicLong();
+    
     private LodRange current = null;
     private List<LodRange> ranges = new ArrayList<LodRange>();
     
     private Camera camera = null;
+    
+    private float hysteresis;
+    private float fadeTime;
+    private String fadeParameter = DEFAULT_FADE_PARAMETER;
+    private LodRange fadeFrom;
+    private LodRange fadeTo;
+    private MatParamOverride fadeOut;
+    private MatParamOverride fadeIn;
+    private float fadeElapsed;
+    private long switchCount;
+    
+    private LodPolicy policy;
+    private float[] modelRanges;
+    private float[] worldRanges;
+    
+    private boolean viewportSelection;
+    private LodRange override;
+    private boolean overridden;
+    
+    private int shadowLevelOffset;
+    private Spatial shadowCaster;
+    private Spatial[] shadowReceivers = new Spatial[2];
+    private ShadowMode[] savedModes = new ShadowMode[3];
+    private CullHint savedHint;
+    private boolean hideLevels;
 
     public LodSwitchControl() {
     }
@@ -73,18 +142,165 @@ public class LodSwitchControl extends AbstractControl
     public LodSwitchControl clone() {
         try {
             LodSwitchControl c = (LodSwitchControl)super.clone();
-            
-            c.ranges = new ArrayList<LodRange>();
-            for( LodRange r : ranges ) {
-                c.ranges.add(r.clone());
-            }           
-            
+            c.resetClonedState();
             return c;
         } catch(CloneNotSupportedException e) {
             throw new RuntimeException( "Can't clone control", e );
         } 
     }
+ 
+    /**
+     *  Called by JME's Cloner when the spatial is cloned.  jmeClone() is
+     *  a shallow Object.clone() so this is where the copy gets its own
+     *  ranges and state.
+     */
+    @Override
+    public void cloneFields( Cloner cloner, Object original ) {
+        super.cloneFields(cloner, original);
+        resetClonedState();
+    }
+ 
+    /**
+     *  Gives a shallow copy its own ranges and scratch arrays and clears
+     *  the per-instance level, fade, override, and shadow state.
+     */
+    private void resetClonedState() {
+        List<LodRange> copy = new ArrayList<LodRange>(ranges.size());
+        for( LodRange r : ranges ) {
+            copy.add(r.clone());
+        }
+        ranges = copy;          
+        current = null;
+        fadeFrom = null;
+        fadeTo = null;
+        fadeOut = null;
+        fadeIn = null;
+        fadeElapsed = 0;
+        switchCount = 0;
+        modelRanges = null;
+        worldRanges = null;
+        override = null;
+        overridden = false;
+        shadowCaster = null;
+        shadowReceivers = new Spatial[2];
+        savedModes = new ShadowMode[3];
+        savedHint = null;
+        
+        // The copied children keep whatever levels the original was
+        // showing so they are hidden on the first update
+        hideLevels = true;
+    }
 
+    /**
+     *  Sets the fraction of a level's range that the distance must go
+     *  past before switching away from it.  For example, 0.1 keeps a level
+     *  with a range of 100 until 110 and one starting at 100 until 90.
+     *  Defaults to 0.
+     */
+    public void setHysteresis( float hysteresis ) {
+        this.hysteresis = hysteresis;
+    }
+    
+    public float getHysteresis() {
+        return hysteresis;
+    }
+ 
+    /**
+     *  Sets the number of seconds over which the old and new levels are
+     *  cross-faded after a switch.  Defaults to 0 for instant switches.
+     */   
+    public void setFadeTime( float fadeTime ) {
+        this.fadeTime = fadeTime;
+    }
+    
+    public float getFadeTime() {
+        return fadeTime;
+    }
+ 
+    /**
+     *  Sets the name of the Float material parameter that is overridden
+     *  on the levels while they fade.  Defaults to "LodFade".
+     */   
+    public void setFadeParameter( String fadeParameter ) {
+        this.fadeParameter = fadeParameter;
+    }
+    
+    public String getFadeParameter() {
+        return fadeParameter;
+    }
+ 
+    /**
+     *  Returns true if two levels are currently being cross-faded.
+     */   
+    public boolean isFading() {
+        return fadeOut != null || fadeIn != null;
+    }
+ 
+    /**
+     *  Returns the number of times this control has switched levels.
+     */   
+    public long getSwitchCount() {
+        return switchCount;
+    }
+ 
+    /**
+     *  Returns the number of level switches made by all LodSwitchControls.
+     */   
+    public static long getTotalSwitchCount() {
+        return totalSwitches.get();
+    }
+ 
+    /**
+     *  Sets the camera that the levels are chosen for.  Defaults to the
+     *  camera of the first viewport that renders the control.
+     */
+    public void setCamera( Camera camera ) {
+        this.camera = camera;
+    }
+    
+    public Camera getCamera() {
+        return camera;
+    }
+ 
+    /**
+     *  Set to true to have viewports other than the camera's pick their own
+     *  level while they render the node.  Defaults to false, where every 
+     *  viewport sees the camera's level.
+     */
+    public void setViewportSelection( boolean viewportSelection ) {
+        this.viewportSelection = viewportSelection;
+    }
+    
+    public boolean getViewportSelection() {
+        return viewportSelection;
+    }
+ 
+    /**
+     *  Sets how many levels coarser than the shown level cast shadows in
+     *  viewports with a LodShadowProcessor.  The last level is used when
+     *  there are not enough levels.  Defaults to 0 for the shown level.
+     */
+    public void setShadowLevelOffset( int shadowLevelOffset ) {
+        this.shadowLevelOffset = shadowLevelOffset;
+    }
+    
+    public int getShadowLevelOffset() {
+        return shadowLevelOffset;
+    }
+ 
+    /**
+     *  Sets the policy that decides the world distances of the levels'
+     *  ranges.  Defaults to null which uses the ranges times the world
+     *  scale.
+     */
+    public void setPolicy( LodPolicy policy ) {
+        this.policy = policy;
+    }
+    
+    public LodPolicy getPolicy() {
+        return policy;
+    }
+ 
     public void addLevel( float range, Spatial child ) {
         child.setCullHint(CullHint.Always);
         ((Node)getSpatial()).attachChild(child);
@@ -97,6 +313,7 @@ public class LodSwitchControl extends AbstractControl
             index = -(index + 1); 
         } 
         ranges.add(index, r);
+        modelRanges = null;
         
         // If there is a range already set after this one
         // then adjust its near range
@@ -114,13 +331,21 @@ public class LodSwitchControl extends AbstractControl
     }
 
     public void clearLevels() {
+        endShadowPass();
+        restoreLevel();
+        endFade();
         ranges.clear();
+        modelRanges = null;
         current = null;
     }
  
     public void removeLevel( Spatial child ) {
+        endShadowPass();
+        restoreLevel();
+        endFade();
         int childIndex = ((Node)getSpatial()).getChildIndex(child);
  
+        modelRanges = null;
         int removed = 0;
         for( Iterator<LodRange> it = ranges.iterator(); it.hasNext(); ) {
             LodRange r = it.next();
@@ -161,25 +386,109 @@ public class LodSwitchControl extends AbstractControl
     }
 
     protected final void resetLevel( float distSq ) {
-        if( current != null && distSq >= current.nearSq && distSq <= current.farSq ) {
+        if( current != null && isInRange(current, distSq) ) {
             // The current one is fine
             return;
         }
-        if( current != null ) {
-            getChild(current.child).setCullHint(CullHint.Always); 
+        LodRange next = findLevel(distSq);
+        if( next == current ) {
+            return;
         }
-        current = findLevel(distSq);
+        switchCount++;
+        totalSwitches.incrementAndGet();
         
-        if( current != null ) {
-            getChild(current.child).setCullHint(CullHint.Inherit);
-        }       
+        if( fadeTime > 0 ) {
+            startFade(current, next);
+        } else {
+            if( current != null ) {
+                getChild(current.child).setCullHint(CullHint.Always);
+            }
+            if( next != null ) {
+                getChild(next.child).setCullHint(CullHint.Inherit);
+            }
+        }
+        current = next;
+    }
+ 
+    /**
+     *  Returns true if the distance is within the range's bounds expanded
+     *  by the hysteresis.
+     */   
+    protected final boolean isInRange( LodRange range, float distSq ) {
+        if( hysteresis == 0 ) {
+            return distSq >= range.nearSq && distSq <= range.farSq;
+        }
+        float low = Math.max(0, 1 - hysteresis);
+        float high = 1 + hysteresis;
+        return distSq >= range.nearSq * low * low && distSq <= range.farSq * high * high;
+    }
+ 
+    protected void startFade( LodRange from, LodRange to ) {
+        // Only one fade at a time
+        endFade();
+        
+        fadeFrom = from;
+        fadeTo = to;
+        fadeElapsed = 0;
+        if( from != null ) {
+            fadeOut = new MatParamOverride(VarType.Float, fadeParameter, -1f);
+            getChild(from.child).addMatParamOverride(fadeOut);
+        }
+        if( to != null ) {
+            fadeIn = new MatParamOverride(VarType.Float, fadeParameter, 0f);
+            Spatial child = getChild(to.child);
+            child.addMatParamOverride(fadeIn);
+            child.setCullHint(CullHint.Inherit);
+        }
+    }
+    
+    protected void updateFade( float tpf ) {
+        if( !isFading() ) {
+            return;
+        }
+        fadeElapsed += tpf;
+        float t = fadeTime <= 0 ? 1 : Math.min(1, fadeElapsed / fadeTime);
+        if( t >= 1 ) {
+            endFade();
+            return;
+        }
+        if( fadeOut != null ) {
+            fadeOut.setValue(t - 1);
+        }
+        if( fadeIn != null ) {
+            fadeIn.setValue(t);
+        }
+    }
+    
+    protected void endFade() {
+        if( fadeOut != null ) {
+            Spatial child = getChild(fadeFrom.child);
+            child.removeMatParamOverride(fadeOut);
+            if( fadeFrom != current ) {
+                child.setCullHint(CullHint.Always);
+            }
+        }
+        if( fadeIn != null ) {
+            getChild(fadeTo.child).removeMatParamOverride(fadeIn);
+        }
+        fadeFrom = null;
+        fadeTo = null;
+        fadeOut = null;
+        fadeIn = null;
     }
 
     protected float calculateDistance() {
+        return calculateDistance(camera);
+    }
+ 
+    protected float calculateDistance( Camera camera ) {
         if( camera == null || getSpatial() == null ) {
             return 0;
         }
         float distanceSq = camera.getLocation().distanceSquared(getSpatial().getWorldTranslation());
+        if( policy != null ) {
+            return toModelDistanceSq(camera, distanceSq);
+        }
         float scale = getSpatial().getWorldScale().x;
         if( scale != 1 ) {
             scale = 1 / scale;
@@ -189,15 +498,191 @@ public class LodSwitchControl extends AbstractControl
         return distanceSq; 
     }
 
+    /**
+     *  Maps a squared world distance to the squared model space distance
+     *  that falls at the same relative position between the levels' ranges
+     *  as the world distance does between the policy's world ranges.  This
+     *  keeps findLevel() and the hysteresis working in model space.
+     */
+    protected float toModelDistanceSq( Camera camera, float distanceSq ) {
+        if( ranges.isEmpty() ) {
+            return distanceSq;
+        }
+        if( modelRanges == null || modelRanges.length != ranges.size() ) {
+            modelRanges = new float[ranges.size()];
+            for( int i = 0; i < modelRanges.length; i++ ) {
+                modelRanges[i] = (float)Math.sqrt(ranges.get(i).farSq);
+            }
+        }
+        worldRanges = policy.getWorldRanges(camera, modelRanges, getSpatial().getWorldScale().x,
+                                            getRadius(getSpatial().getWorldBound()), worldRanges);
+        
+        float d = (float)Math.sqrt(distanceSq);
+        float lowWorld = 0;
+        float lowModel = 0;
+        for( int i = 0; i < modelRanges.length; i++ ) {
+            float highWorld = worldRanges[i];
+            float highModel = modelRanges[i];
+            if( d <= highWorld ) {
+                float t = highWorld > lowWorld ? (d - lowWorld) / (highWorld - lowWorld) : 1;
+                float m = lowModel + t * (highModel - lowModel);
+                return m * m;
+            }
+            lowWorld = highWorld;
+            lowModel = highModel;
+        }
+        float m = lowWorld > 0 ? lowModel * d / lowWorld : d;
+        return m * m;
+    }
+ 
+    private static float getRadius( BoundingVolume bound ) {
+        if( bound instanceof BoundingSphere ) {
+            return ((BoundingSphere)bound).getRadius();
+        }
+        if( bound instanceof BoundingBox ) {
+            return ((BoundingBox)bound).getExtent(null).length();
+        }
+        return 0;
+    }
+ 
+    /**
+     *  Shows the specified level in place of the camera's level until
+     *  restoreLevel() is called.
+     */
+    protected void overrideLevel( LodRange range ) {
+        if( overridden ) {
+            if( range == override ) {
+                return;
+            }
+            setVisible(override, false);
+        } else {
+            setVisible(fadeFrom, false);
+            setVisible(current, false);
+        }
+        override = range;
+        overridden = true;
+        setVisible(override, true);
+    }
+ 
+    /**
+     *  Shows the camera's level again after overrideLevel().
+     */
+    protected void restoreLevel() {
+        if( !overridden ) {
+            return;
+        }
+        setVisible(override, false);
+        override = null;
+        overridden = false;
+        setVisible(fadeFrom, true);
+        setVisible(current, true);
+    }
+    
+    private void setVisible( LodRange range, boolean visible ) {
+        if( range != null ) {
+            getChild(range.child).setCullHint(visible ? CullHint.Inherit : CullHint.Always);
+        }
+    }
+ 
+    /**
+     *  Swaps in the shadow level as the only shadow caster while the
+     *  shown levels only receive.  Returns false if nothing changed, in
+     *  which case endShadowPass() need not be called.  Used by
+     *  LodShadowProcessor.
+     */
+    public boolean beginShadowPass() {
+        if( shadowLevelOffset <= 0 || shadowCaster != null ) {
+            return false;
+        }
+        LodRange shown = overridden ? override : current;
+        if( shown == null ) {
+            return false;
+        }
+        int index = Math.min(ranges.indexOf(shown) + shadowLevelOffset, ranges.size() - 1);
+        LodRange caster = ranges.get(index);
+        if( caster == shown ) {
+            return false;
+        }
+        Spatial casterChild = getChild(caster.child);
+        ShadowMode mode = casterChild.getShadowMode();
+        if( mode != ShadowMode.Cast && mode != ShadowMode.CastAndReceive ) {
+            return false;
+        }
+        
+        shadowReceivers[0] = getChild(shown.child);
+        shadowReceivers[1] = !overridden && fadeFrom != null && fadeFrom != caster ? getChild(fadeFrom.child) : null;
+        for( int i = 0; i < shadowReceivers.length; i++ ) {
+            Spatial receiver = shadowReceivers[i];
+            if( receiver == null ) {
+                continue;
+            }
+            savedModes[i] = receiver.getLocalShadowMode();
+            mode = receiver.getShadowMode();
+            if( mode == ShadowMode.CastAndReceive ) {
+                receiver.setShadowMode(ShadowMode.Receive);
+            } else if( mode == ShadowMode.Cast ) {
+                receiver.setShadowMode(ShadowMode.Off);
+            }
+        }
+        shadowCaster = casterChild;
+        savedModes[2] = casterChild.getLocalShadowMode();
+        savedHint = casterChild.getLocalCullHint();
+        casterChild.setShadowMode(ShadowMode.Cast);
+        casterChild.setCullHint(CullHint.Inherit);
+        return true;
+    }
+ 
+    /**
+     *  Undoes beginShadowPass().
+     */
+    public void endShadowPass() {
+        if( shadowCaster == null ) {
+            return;
+        }
+        for( int i = 0; i < shadowReceivers.length; i++ ) {
+            if( shadowReceivers[i] != null ) {
+                shadowReceivers[i].setShadowMode(savedModes[i]);
+                shadowReceivers[i] = null;
+            }
+        }
+        shadowCaster.setShadowMode(savedModes[2]);
+        shadowCaster.setCullHint(savedHint);
+        shadowCaster = null;
+        Arrays.fill(savedModes, null);
+    }
+ 
     @Override
     protected void controlUpdate( float tpf ) {
+        if( hideLevels ) {
+            for( LodRange r : ranges ) {
+                getChild(r.child).setCullHint(CullHint.Always);
+            }
+            hideLevels = false;
+        }
+        endShadowPass();
+        restoreLevel();
         resetLevel(calculateDistance());
+        updateFade(tpf);
     }
 
     @Override
     protected void controlRender( RenderManager rm, ViewPort vp ) {
+        Camera viewCamera = vp.getCamera();
         if( camera == null ) {
-            camera = vp.getCamera();
+            camera = viewCamera;
+        }
+        if( viewCamera == camera ) {
+            restoreLevel();
+        } else if( viewportSelection ) {
+            overrideLevel(findLevel(calculateDistance(viewCamera)));
+        }
+        if( shadowLevelOffset > 0 ) {
+            for( SceneProcessor proc : vp.getProcessors() ) {
+                if( proc instanceof LodShadowProcessor ) {
+                    ((LodShadowProcessor)proc).add(this);
+                    break;
+                }
+            }
         }
     }
  
@@ -206,6 +691,11 @@ public class LodSwitchControl extends AbstractControl
         super.write(ex);
         OutputCapsule oc = ex.getCapsule(this);
         oc.writeSavableArrayList((ArrayList)ranges, "ranges", new ArrayList());
+        oc.write(hysteresis, "hysteresis", 0);
+        oc.write(fadeTime, "fadeTime", 0);
+        oc.write(fadeParameter, "fadeParameter", DEFAULT_FADE_PARAMETER);
+        oc.write(viewportSelection, "viewportSelection", false);
+        oc.write(shadowLevelOffset, "shadowLevelOffset", 0);
     }
 
     @Override
@@ -213,6 +703,12 @@ public class LodSwitchControl extends AbstractControl
         super.read(im);
         InputCapsule ic = im.getCapsule(this);
         ranges = (ArrayList<LodRange>)ic.readSavableArrayList("ranges", new ArrayList());
+        modelRanges = null;
+        hysteresis = ic.readFloat("hysteresis", 0);
+        fadeTime = ic.readFloat("fadeTime", 0);
+        fadeParameter = ic.readString("fadeParameter", DEFAULT_FADE_PARAMETER);
+        viewportSelection = ic.readBoolean("viewportSelection", false);
+        shadowLevelOffset = ic.readInt("shadowLevelOffset", 0);
     }
  
     @Override
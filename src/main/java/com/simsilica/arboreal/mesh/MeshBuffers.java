@@ -0,0 +1,194 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer.Type;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ *  The direct buffers for a mesh as produced by a buffer-based
+ *  MeshSink.  Buffers can be used as-is or wrapped into a JME Mesh.
+ *  If the buffers came from a DirectBufferPool then release() will
+ *  return them to the pool.
+ *
+ *  @author    Paul Speed
+ */
+public class MeshBuffers {
+ 
+    private final Mesh.Mode mode;
+    private final int vertexCount;
+    private final List<Type> types;
+    private final int[] components;
+    private final FloatBuffer[] buffers;
+    private final Buffer indexes;
+    private DirectBufferPool pool;
+    private List<ByteBuffer> pooled;
+ 
+    public MeshBuffers( Mesh.Mode mode, int vertexCount, Type[] types, 
+                        int[] components, FloatBuffer[] buffers, Buffer indexes ) {
+        this.mode = mode;
+        this.vertexCount = vertexCount;
+        this.types = Collections.unmodifiableList(Arrays.asList(types));
+        this.components = components;
+        this.buffers = buffers;
+        this.indexes = indexes;
+    }
+ 
+    /**
+     *  Sets the pool and pooled byte buffers backing this mesh's buffers
+     *  so that they can be returned with release().
+     */   
+    protected void setPool( DirectBufferPool pool, List<ByteBuffer> pooled ) {
+        this.pool = pool;
+        this.pooled = pooled;
+    }
+ 
+    public Mesh.Mode getMode() {
+        return mode;
+    }
+    
+    public int getVertexCount() {
+        return vertexCount;
+    }
+ 
+    /**
+     *  Returns the attribute types in the order they were declared.
+     */   
+    public List<Type> getTypes() {
+        return types;
+    }
+    
+    public int getComponents( Type type ) {
+        int i = types.indexOf(type);
+        return i < 0 ? 0 : components[i];
+    }
+    
+    public FloatBuffer getBuffer( Type type ) {
+        int i = types.indexOf(type);
+        return i < 0 ? null : buffers[i];
+    }
+ 
+    /**
+     *  Returns the ShortBuffer or IntBuffer index buffer or null if
+     *  the mesh is not indexed.
+     */   
+    public Buffer getIndexBuffer() {
+        return indexes;
+    }
+    
+    public int getIndexCount() {
+        return indexes == null ? 0 : indexes.limit();
+    }
+ 
+    /**
+     *  Returns the total size of all of the buffers in bytes.
+     */   
+    public long getByteSize() {
+        long result = 0;
+        for( FloatBuffer fb : buffers ) {
+            result += fb.capacity() * 4L;
+        }
+        if( indexes instanceof ShortBuffer ) {
+            result += indexes.capacity() * 2L;
+        } else if( indexes != null ) {
+            result += indexes.capacity() * 4L;
+        }
+        return result;
+    }
+ 
+    /**
+     *  Creates a JME Mesh that uses these buffers directly.  Pooled
+     *  buffers must not be released while the mesh is still in use.
+     */   
+    public Mesh toMesh() {
+        Mesh mesh = new Mesh();
+        mesh.setMode(mode);
+        for( int i = 0; i < buffers.length; i++ ) {
+            mesh.setBuffer(types.get(i), components[i], buffers[i]);
+        }
+        if( indexes instanceof ShortBuffer ) {
+            mesh.setBuffer(Type.Index, indexComponents(mode), (ShortBuffer)indexes);
+        } else if( indexes instanceof IntBuffer ) {
+            mesh.setBuffer(Type.Index, indexComponents(mode), (IntBuffer)indexes);
+        }
+        mesh.updateBound();
+        return mesh;
+    }
+ 
+    /**
+     *  Returns the buffers to the pool they came from, if any.  The buffers
+     *  must not be used after they are released.
+     */   
+    public void release() {
+        if( pool == null ) {
+            return;
+        }
+        for( ByteBuffer bb : pooled ) {
+            pool.release(bb);
+        }
+        pool = null;
+        pooled = null;
+    }
+ 
+    protected static int indexComponents( Mesh.Mode mode ) {
+        switch( mode ) {
+            case Points:
+                return 1;
+            case Lines:
+            case LineStrip:
+            case LineLoop:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "MeshBuffers[mode=" + mode + ", vertexes=" + vertexCount + ", types=" + types 
+                            + ", indexes=" + getIndexCount() + "]";
+    }
+}
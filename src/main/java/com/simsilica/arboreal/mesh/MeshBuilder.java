@@ -43,10 +43,6 @@ import com.jme3.math.Vector2f;
 import com.jme3.math.Vector3f;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.VertexBuffer.Type;
-import com.jme3.util.BufferUtils;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
 import java.util.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,12 +61,28 @@ public class MeshBuilder {
     public static final float DEFAULT_EPSILON = 0.001f;
     public static final float EXACT_EPSILON = 0;
 
-    private List<Vertex> verts = new ArrayList<Vertex>();
-    private List<Triangle> triangles = new ArrayList<Triangle>();
+    private ArrayList<Vertex> verts;
+    private ArrayList<Triangle> triangles;
     private Map<Vertex, NormalLinks> linksMap = new HashMap<Vertex, NormalLinks>();
     private List<NormalLinks> links = new ArrayList<NormalLinks>(); 
     
     public MeshBuilder() {
+        this(10, 10);
+    }
+ 
+    /**
+     *  Creates a mesh builder that is presized to hold the specified
+     *  number of vertexes and triangles without growing, for example, 
+     *  from a generator's MeshCounts.
+     */   
+    public MeshBuilder( int vertexCapacity, int triangleCapacity ) {
+        this.verts = new ArrayList<Vertex>(vertexCapacity);
+        this.triangles = new ArrayList<Triangle>(triangleCapacity);
+    }
+ 
+    public void ensureCapacity( int vertexCapacity, int triangleCapacity ) {
+        verts.ensureCapacity(vertexCapacity);
+        triangles.ensureCapacity(triangleCapacity);
     }
  
     protected Vertex newVertex( Vector3f v, int group ) {
@@ -108,6 +120,10 @@ public class MeshBuilder {
     }
     
     public Vertex createVertex( float x, float y, float z, int group, float epsilon ) {
+        if( epsilon < 0 ) {
+            // Nothing can match so don't bother looking
+            return newVertex(x, y, z, group);
+        }
         // See if we've already got one
         for( Vertex vert : verts ) {
             if( group >= 0 && vert.group != group ) {
@@ -125,6 +141,10 @@ public class MeshBuilder {
     }
     
     public Vertex createVertex( float x, float y, float z, float u, float v, int group, float epsilon ) {
+        if( epsilon < 0 ) {
+            // Nothing can match so don't bother looking
+            return newVertex(x, y, z, u, v, group);
+        }
         // See if we've already got one
         for( Vertex vert : verts ) {
             if( group >= 0 && vert.group != group ) {
@@ -530,7 +550,20 @@ public class MeshBuilder {
         return verts;
     }
 
+    public List<Triangle> getTriangles() {
+        return triangles;
+    }
+
     public Mesh build() {
+        return build(new JmeMeshSink());
+    }
+ 
+    /**
+     *  Streams the vertexes and triangles of this builder into the 
+     *  specified sink and returns the sink's result or null if the
+     *  builder is empty.
+     */   
+    public <T> T build( MeshSink<T> sink ) {
         if( verts.isEmpty() || triangles.isEmpty() ) {
             return null;
         }
@@ -539,75 +572,46 @@ public class MeshBuilder {
             log.info("Creating a mesh with:" + verts.size() + " vertexes and:" + triangles.size() + " triangles.");
         }
         
-        Mesh mesh = new Mesh();
- 
         boolean hasNormals = verts.get(0).normal != null;
         boolean hasUvs = verts.get(0).uv != null;
         boolean hasTangents = verts.get(0).tangent != null;
-        
-        FloatBuffer pb = BufferUtils.createFloatBuffer(verts.size() * 3);
-        FloatBuffer nb = null;
+ 
+        sink.begin(Mesh.Mode.Triangles, verts.size(), triangles.size() * 3);       
+        sink.addAttribute(Type.Position, 3);
         if( hasNormals ) {
-            nb = BufferUtils.createFloatBuffer(verts.size() * 3); 
+            sink.addAttribute(Type.Normal, 3);
         }
-        FloatBuffer tb = null;
         if( hasUvs ) {
-            tb = BufferUtils.createFloatBuffer(verts.size() * 2); 
+            sink.addAttribute(Type.TexCoord, 2);
         }
-        FloatBuffer tanb = null;
         if( hasTangents ) {
-            tanb = BufferUtils.createFloatBuffer(verts.size() * 4); 
+            sink.addAttribute(Type.Tangent, 4);
         }
 
         for( Vertex vert : verts ) {
             Vector3f v = vert.pos;
-            pb.put(v.x).put(v.y).put(v.z);
-            if( nb != null ) {
+            sink.put(Type.Position, v.x, v.y, v.z);
+            if( hasNormals ) {
                 Vector3f n = vert.normal;
-                nb.put(n.x).put(n.y).put(n.z);
+                sink.put(Type.Normal, n.x, n.y, n.z);
             }
-            if( tb != null ) {
+            if( hasUvs ) {
                 Vector2f uv = vert.uv != null ? vert.uv : Vector2f.ZERO;
-                tb.put(uv.x).put(uv.y);
+                sink.put(Type.TexCoord, uv.x, uv.y);
             }
-            if( tanb != null ) {
+            if( hasTangents ) {
                 Vector3f t = vert.tangent;
-                tanb.put(t.x).put(t.y).put(t.z).put(1);
+                sink.put(Type.Tangent, t.x, t.y, t.z, 1);
             }
         }
 
-        mesh.setBuffer(Type.Position, 3, pb);
-        if( nb != null ) {
-            mesh.setBuffer(Type.Normal, 3, nb);
-        }
-        if( tb != null ) {
-            mesh.setBuffer(Type.TexCoord, 2, tb);
-        }
-        if( tanb != null ) {
-            mesh.setBuffer(Type.Tangent, 4, tanb);
-        }
-
-        // Now the index buffer
-        if( verts.size() <= 0xffff ) {
-            ShortBuffer ib = BufferUtils.createShortBuffer(triangles.size() * 3);
-            for( Triangle tri : triangles ) {
-                ib.put((short)tri.v1.index);
-                ib.put((short)tri.v2.index);
-                ib.put((short)tri.v3.index);
-            }
-            mesh.setBuffer(Type.Index, 3, ib);
-        } else {
-            IntBuffer ib = BufferUtils.createIntBuffer(triangles.size() * 3);
-            for( Triangle tri : triangles ) {
-                ib.put(tri.v1.index);
-                ib.put(tri.v2.index);
-                ib.put(tri.v3.index);
-            }
-            mesh.setBuffer(Type.Index, 3, ib);
+        for( Triangle tri : triangles ) {
+            sink.putIndex(tri.v1.index);
+            sink.putIndex(tri.v2.index);
+            sink.putIndex(tri.v3.index);
         }
         
-        mesh.updateBound();                                
-        return mesh;        
+        return sink.end();
     }
     
     private class NormalLinks {
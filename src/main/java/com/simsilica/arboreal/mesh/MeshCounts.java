@@ -0,0 +1,126 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+
+/**
+ *  The exact vertex, triangle, and tip counts that a mesh generator
+ *  will produce for a particular tree and level of detail.  These
+ *  can be calculated up front without generating the mesh and used
+ *  for presizing or memory accounting.
+ *
+ *  @author    Paul Speed
+ */
+public class MeshCounts {
+ 
+    private final int vertexSize;
+    private int vertexCount;
+    private int triangleCount;
+    private int tipCount;
+ 
+    /**
+     *  Creates an empty set of counts for a mesh that will use the specified
+     *  number of bytes per vertex across all of its vertex buffers.
+     */   
+    public MeshCounts( int vertexSize ) {
+        this.vertexSize = vertexSize;
+    }
+ 
+    public void addVertexes( int count ) {
+        this.vertexCount += count;
+    }
+    
+    public void addTriangles( int count ) {
+        this.triangleCount += count;
+    }
+    
+    public void addTips( int count ) {
+        this.tipCount += count;
+    }
+ 
+    /**
+     *  Adds the vertexes and triangles for a MeshBuilder extrusion of a loop
+     *  of loopSize vertexes into a new loop with the specified number of
+     *  segments.  Returns the size of the new loop.
+     */
+    public int addExtrusion( int loopSize, int segments ) {
+        addVertexes(segments + 1);
+        
+        // MeshBuilder.connect() creates one triangle per step along
+        // either loop.
+        addTriangles((loopSize - 1) + segments);
+        return segments + 1;
+    }
+    
+    public int getVertexSize() {
+        return vertexSize;
+    }
+    
+    public int getVertexCount() {
+        return vertexCount;
+    }
+    
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+ 
+    public int getTipCount() {
+        return tipCount;
+    }
+ 
+    /**
+     *  Returns the size of a single index, in bytes, based on whether
+     *  the vertex count will fit in a short index buffer.
+     */
+    public int getIndexSize() {
+        return vertexCount <= 0xffff ? 2 : 4;
+    }
+ 
+    /**
+     *  Returns the total size in bytes of all of the vertex and index buffers
+     *  for the mesh.
+     */   
+    public long getByteSize() {
+        return (long)vertexCount * vertexSize + (long)triangleCount * 3 * getIndexSize();
+    }
+    
+    @Override
+    public String toString() {
+        return "MeshCounts[vertexes=" + vertexCount + ", triangles=" + triangleCount 
+                                + ", tips=" + tipCount + ", bytes=" + getByteSize() + "]";
+    }
+}
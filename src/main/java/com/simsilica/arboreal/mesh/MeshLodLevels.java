@@ -0,0 +1,105 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.VertexBuffer.Usage;
+import java.nio.Buffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+
+/**
+ *  Utility methods for meshes whose levels of detail are prefixes
+ *  of a single index buffer.  Each JME LOD level is a view of the
+ *  mesh's index data limited to that level's index count so the
+ *  index data is only stored once on the CPU side.
+ *
+ *  <p>JME 3.1 has no way to draw a range of an index buffer, so every
+ *  LOD level VertexBuffer is uploaded as its own index buffer object.
+ *  On the GPU the index memory is the sum of the levels' index counts.
+ *  Levels that use all of the indexes reuse the mesh's own index buffer
+ *  which is not uploaded separately when a mesh has LOD levels, so the
+ *  most detailed level costs nothing extra.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class MeshLodLevels {
+
+    /**
+     *  Sets the mesh's LOD levels to prefixes of its index buffer with
+     *  the specified number of indexes for each level.  Levels that
+     *  use every index share the mesh's index buffer itself.
+     */
+    public static void setPrefixLevels( Mesh mesh, int[] indexCounts ) {
+        VertexBuffer ib = mesh.getBuffer(Type.Index);
+        int total = ib.getData().limit();
+        VertexBuffer[] levels = new VertexBuffer[indexCounts.length];
+        for( int i = 0; i < levels.length; i++ ) {
+            if( indexCounts[i] == total ) {
+                levels[i] = ib;
+                continue;
+            }
+            Buffer view = duplicate(ib.getData());
+            view.position(0);
+            view.limit(indexCounts[i]);
+            
+            VertexBuffer level = new VertexBuffer(Type.Index);
+            level.setupData(Usage.Static, ib.getNumComponents(), ib.getFormat(), view);
+            levels[i] = level;
+        }
+        mesh.setLodLevels(levels);
+    }
+ 
+    /**
+     *  Returns the number of indexes drawn at the specified LOD level.
+     */   
+    public static int getIndexCount( Mesh mesh, int lodLevel ) {
+        return mesh.getLodLevel(lodLevel).getData().limit();
+    }
+ 
+    private static Buffer duplicate( Buffer buffer ) {
+        if( buffer instanceof ShortBuffer ) {
+            return ((ShortBuffer)buffer).duplicate();
+        } else if( buffer instanceof IntBuffer ) {
+            return ((IntBuffer)buffer).duplicate();
+        }
+        throw new IllegalArgumentException("Unsupported index buffer:" + buffer);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer.Type;
+
+
+/**
+ *  Receives the vertexes and indexes of a generated mesh as they
+ *  are produced.  This lets the mesh generators stream directly into
+ *  whatever the caller actually needs (a JME Mesh, primitive arrays,
+ *  a file, etc.) without building intermediate structures.
+ *
+ *  <p>A sink is used for exactly one mesh.  The generator calls begin()
+ *  with the exact counts, declares each vertex attribute with addAttribute(),
+ *  and then puts the vertex data vertex by vertex with each vertex's attributes 
+ *  in declaration order.  Indexes may be put at any time after the attributes 
+ *  have been declared.  Finally, end() returns the result.</p>
+ *
+ *  @author    Paul Speed
+ */
+public interface MeshSink<T> {
+
+    /**
+     *  Called before any other method with the mesh mode and the
+     *  exact number of vertexes and indexes that will follow.  An index
+     *  count of 0 means the mesh is not indexed.
+     */
+    public void begin( Mesh.Mode mode, int vertexCount, int indexCount );
+ 
+    /**
+     *  Declares a float vertex attribute with the specified number
+     *  of components.  All attributes are declared before any data is put.
+     */   
+    public void addAttribute( Type type, int components );
+    
+    public void put( Type type, float x );
+    
+    public void put( Type type, float x, float y );
+    
+    public void put( Type type, float x, float y, float z );
+    
+    public void put( Type type, float x, float y, float z, float w );
+    
+    public void putIndex( int index );
+ 
+    /**
+     *  Called after all of the data has been put and returns the
+     *  sink-specific result.
+     */   
+    public T end();
+}
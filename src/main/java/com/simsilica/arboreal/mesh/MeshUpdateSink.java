@@ -0,0 +1,251 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  A MeshSink that writes a regenerated mesh into the buffers of an
+ *  existing JME Mesh instead of creating a new one.  Many parameters,
+ *  gravity, twist, variation, taper, and so on, only move vertexes
+ *  around without changing the tree's topology and in that case the
+ *  existing vertex buffers are overwritten in place and flagged for
+ *  update.  Buffers whose contents did not change, usually including 
+ *  the index buffer, are left alone so they are not uploaded again.
+ *
+ *  <p>Generation only stages the new data and nothing is written to the
+ *  mesh until apply() is called.  The result of end() is true if the staged
+ *  data can be applied.  If the mode, vertex count, attributes, or triangles
+ *  of the generated mesh differ from the existing mesh then the result is
+ *  false, apply() must not be called, and the caller must generate a new
+ *  mesh.  This lets a caller updating several meshes check all of them
+ *  before touching any.  A sink can only be used once.</p>
+ *
+ *  <p>When apply() changes the positions, the mesh's bound is updated and its
+ *  collision data is cleared so that it is rebuilt for the new shape.
+ *  Geometries cache their own bounds, though, so the caller must call
+ *  updateModelBound() on any Geometry using the mesh when 
+ *  isBoundChanged() returns true.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class MeshUpdateSink implements MeshSink<Boolean> {
+
+    static Logger log = LoggerFactory.getLogger(MeshUpdateSink.class);
+
+    private final Mesh mesh;
+    private final ArrayMeshSink arrays = new ArrayMeshSink();
+    private int updatedBuffers;
+    private boolean boundChanged;
+    private boolean staged;
+    
+    public MeshUpdateSink( Mesh mesh ) {
+        this.mesh = mesh;
+    }
+ 
+    public Mesh getMesh() {
+        return mesh;
+    }
+ 
+    /**
+     *  Returns the number of vertex buffers that were changed by
+     *  the update.
+     */   
+    public int getUpdatedBufferCount() {
+        return updatedBuffers;
+    }
+ 
+    /**
+     *  Returns true if the update moved the mesh's positions, in which
+     *  case geometries using the mesh need updateModelBound().
+     */
+    public boolean isBoundChanged() {
+        return boundChanged;
+    }
+
+    @Override
+    public void begin( Mesh.Mode mode, int vertexCount, int indexCount ) {
+        arrays.begin(mode, vertexCount, indexCount);
+    }
+
+    @Override
+    public void addAttribute( Type type, int size ) {
+        arrays.addAttribute(type, size);
+    }
+    
+    @Override
+    public void put( Type type, float x ) {
+        arrays.put(type, x);
+    }
+    
+    @Override
+    public void put( Type type, float x, float y ) {
+        arrays.put(type, x, y);
+    }
+    
+    @Override
+    public void put( Type type, float x, float y, float z ) {
+        arrays.put(type, x, y, z);
+    }
+    
+    @Override
+    public void put( Type type, float x, float y, float z, float w ) {
+        arrays.put(type, x, y, z, w);
+    }
+    
+    @Override
+    public void putIndex( int index ) {
+        arrays.putIndex(index);
+    }
+ 
+    @Override
+    public Boolean end() {
+        String reason = checkTopology();
+        if( reason != null ) {
+            if( log.isDebugEnabled() ) {
+                log.debug("Mesh requires a rebuild, " + reason);
+            }
+            return false;
+        }
+        staged = true;
+        return true;
+    }
+ 
+    /**
+     *  Writes the staged data into the mesh's buffers, flagging only the 
+     *  buffers that changed, and returns the number of buffers updated.  
+     *  Can only be called once and only after end() returned true.
+     */   
+    public int apply() {
+        if( !staged ) {
+            throw new IllegalStateException("No valid staged mesh data to apply");
+        }
+        staged = false;
+        
+        for( Type type : arrays.getTypes() ) {
+            VertexBuffer vb = mesh.getBuffer(type);
+            FloatBuffer data = (FloatBuffer)vb.getData();
+            float[] array = arrays.getArray(type);
+            if( sameData(data, array) ) {
+                continue;
+            }
+            data.clear();
+            data.put(array);
+            data.flip();
+            vb.updateData(data);
+            updatedBuffers++;
+            if( type == Type.Position ) {
+                boundChanged = true;
+            }
+        }
+        if( boundChanged ) {
+            mesh.updateBound();
+            mesh.clearCollisionData();
+        }
+        return updatedBuffers;
+    }
+ 
+    /**
+     *  Returns a description of why the generated mesh can't be written
+     *  into the existing mesh or null if it can.
+     */   
+    protected String checkTopology() {
+        if( arrays.getMode() != mesh.getMode() ) {
+            return "mode changed from:" + mesh.getMode() + " to:" + arrays.getMode();
+        }
+        if( arrays.getVertexCount() != mesh.getVertexCount() ) {
+            return "vertex count changed from:" + mesh.getVertexCount() + " to:" + arrays.getVertexCount();
+        }
+        for( Type type : arrays.getTypes() ) {
+            VertexBuffer vb = mesh.getBuffer(type);
+            if( vb == null || vb.getNumComponents() != arrays.getComponents(type) 
+                || !(vb.getData() instanceof FloatBuffer) ) {
+                return "attribute changed:" + type;
+            }
+        }
+        VertexBuffer ib = mesh.getBuffer(Type.Index);
+        if( ib == null || !sameIndexes(ib.getData(), arrays.getIndexes()) ) {
+            return "triangles changed";
+        }
+        return null;
+    }
+ 
+    private static boolean sameData( FloatBuffer data, float[] array ) {
+        if( data.limit() != array.length ) {
+            return false;
+        }
+        for( int i = 0; i < array.length; i++ ) {
+            if( Float.floatToIntBits(data.get(i)) != Float.floatToIntBits(array[i]) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean sameIndexes( Buffer data, int[] indexes ) {
+        if( data.limit() != indexes.length ) {
+            return false;
+        }
+        if( data instanceof ShortBuffer ) {
+            ShortBuffer sb = (ShortBuffer)data;
+            for( int i = 0; i < indexes.length; i++ ) {
+                if( (sb.get(i) & 0xffff) != indexes[i] ) {
+                    return false;
+                }
+            }
+            return true;
+        } else if( data instanceof IntBuffer ) {
+            IntBuffer ib = (IntBuffer)data;
+            for( int i = 0; i < indexes.length; i++ ) {
+                if( ib.get(i) != indexes[i] ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
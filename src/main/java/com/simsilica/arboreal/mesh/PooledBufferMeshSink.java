@@ -0,0 +1,90 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ *  A MeshSink that writes into direct buffers borrowed from a
+ *  DirectBufferPool.  Call MeshBuffers.release() on the result when
+ *  finished with it to return the buffers to the pool.
+ *
+ *  @author    Paul Speed
+ */
+public class PooledBufferMeshSink extends AbstractBufferMeshSink<MeshBuffers> {
+
+    private final DirectBufferPool pool;
+    private final List<ByteBuffer> pooled = new ArrayList<ByteBuffer>();
+    
+    public PooledBufferMeshSink( DirectBufferPool pool ) {
+        this.pool = pool;
+    }
+    
+    @Override
+    protected FloatBuffer createFloatBuffer( int size ) {
+        return acquire(size * 4).asFloatBuffer();
+    }
+    
+    @Override
+    protected ShortBuffer createShortBuffer( int size ) {
+        return acquire(size * 2).asShortBuffer();
+    }
+    
+    @Override
+    protected IntBuffer createIntBuffer( int size ) {
+        return acquire(size * 4).asIntBuffer();
+    }
+    
+    private ByteBuffer acquire( int bytes ) {
+        ByteBuffer result = pool.acquire(bytes);
+        pooled.add(result);
+        return result;
+    }
+ 
+    @Override
+    public MeshBuffers end() {
+        MeshBuffers result = finish();
+        result.setPool(pool, pooled);
+        return result;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.math.FastMath;
+import com.jme3.renderer.Camera;
+
+
+/** 
+ *  Picks levels of detail by how large an object appears on screen,
+ *  taking the camera's field of view and viewport height into account,
+ *  so that zooming in or rendering at a higher resolution gets more
+ *  detail and lower resolutions get less.  There are three ways to set
+ *  the thresholds:
+ *  <ul>
+ *  <li>Reference camera (the default): the levels' ranges are treated as
+ *  tuned for a camera with the reference field of view and viewport height.
+ *  For other cameras the ranges are scaled so that each switch happens at 
+ *  the same projected size.</li>
+ *  <li>setPixelSizes(): level i is used while the object's projected
+ *  bounding sphere diameter is at least pixelSizes[i] pixels.  This
+ *  needs the object's bounding radius.</li>
+ *  <li>setGeometricErrors(): each level has a model space geometric error
+ *  and a level is used until the next level's error projects to no
+ *  more than the maximum pixel error.</li>
+ *  </ul>
+ *  The last level always keeps its reference-scaled range so that 
+ *  objects are still culled at a distance.  Only perspective cameras are
+ *  supported.
+ *
+ *  @author    Paul Speed
+ */
+public class ScreenSpaceLodPolicy implements LodPolicy {
+ 
+    private float referenceTanHalfFov;
+    private float referenceHeight;
+    private float[] pixelSizes;
+    private float[] geometricErrors;
+    private float maxPixelError = 1;
+    
+    /**
+     *  Creates a policy with a 45 degree reference field of view and a
+     *  720 pixel reference viewport height.
+     */
+    public ScreenSpaceLodPolicy() {
+        this(45, 720);
+    }
+    
+    public ScreenSpaceLodPolicy( float referenceFovY, float referenceHeight ) {
+        setReferenceFovY(referenceFovY);
+        this.referenceHeight = referenceHeight;
+    }
+ 
+    /**
+     *  Sets the vertical field of view in degrees that the levels' ranges
+     *  were tuned for.
+     */   
+    public final void setReferenceFovY( float fovY ) {
+        this.referenceTanHalfFov = FastMath.tan(fovY * FastMath.DEG_TO_RAD * 0.5f);
+    }
+    
+    public float getReferenceFovY() {
+        return FastMath.atan(referenceTanHalfFov) * 2 * FastMath.RAD_TO_DEG;
+    }
+ 
+    /**
+     *  Sets the viewport height in pixels that the levels' ranges were
+     *  tuned for.
+     */   
+    public void setReferenceHeight( float referenceHeight ) {
+        this.referenceHeight = referenceHeight;
+    }
+    
+    public float getReferenceHeight() {
+        return referenceHeight;
+    }
+ 
+    /**
+     *  Sets the minimum projected diameter in pixels for each level, in
+     *  descending order.  Set to null to go back to the reference camera
+     *  ranges.
+     */   
+    public void setPixelSizes( float... pixelSizes ) {
+        this.pixelSizes = pixelSizes;
+        this.geometricErrors = null;
+    }
+    
+    public float[] getPixelSizes() {
+        return pixelSizes;
+    }
+ 
+    /**
+     *  Sets the model space geometric error of each level, in ascending
+     *  order, and the largest on-screen error in pixels that is acceptable.
+     *  Set errors to null to go back to the reference camera ranges.
+     */   
+    public void setGeometricErrors( float maxPixelError, float... errors ) {
+        this.maxPixelError = maxPixelError;
+        this.geometricErrors = errors;
+        this.pixelSizes = null;
+    }
+    
+    public float[] getGeometricErrors() {
+        return geometricErrors;
+    }
+    
+    public float getMaxPixelError() {
+        return maxPixelError;
+    }
+ 
+    /**
+     *  Returns the height of the camera's viewport in pixels.
+     */   
+    protected float getViewportHeight( Camera camera ) {
+        return camera.getHeight() * (camera.getViewPortTop() - camera.getViewPortBottom());
+    }
+ 
+    /**
+     *  Returns the tangent of half of the camera's vertical field of view.
+     */   
+    protected float getTanHalfFov( Camera camera ) {
+        return camera.getFrustumTop() / camera.getFrustumNear();
+    }
+ 
+    @Override
+    public float[] getWorldRanges( Camera camera, float[] ranges, float scale, float radius, 
+                                   float[] store ) {
+        if( store == null || store.length < ranges.length ) {
+            store = new float[ranges.length];
+        }
+        if( camera == null ) {
+            return DEFAULT.getWorldRanges(camera, ranges, scale, radius, store);
+        }
+        float height = getViewportHeight(camera);
+        float tanHalfFov = getTanHalfFov(camera);
+        
+        // Distance at which something appears the same size as it would at
+        // distance 1 for the reference camera
+        float referenceScale = (referenceTanHalfFov / tanHalfFov) * (height / referenceHeight);
+        
+        int last = ranges.length - 1;
+        for( int i = 0; i < ranges.length; i++ ) {
+            float range;
+            if( i < last && pixelSizes != null && radius > 0 && i < pixelSizes.length ) {
+                // diameter = radius * height / (distance * tanHalfFov)
+                range = radius * height / (pixelSizes[i] * tanHalfFov);
+            } else if( i < last && geometricErrors != null && i + 1 < geometricErrors.length ) {
+                // error = e * (height / 2) / (distance * tanHalfFov)
+                range = geometricErrors[i + 1] * scale * height / (2 * maxPixelError * tanHalfFov);
+            } else {
+                range = ranges[i] * scale * referenceScale;
+            }
+            store[i] = i > 0 ? Math.max(range, store[i - 1]) : range;
+        }
+        return store;
+    }
+    
+    @Override
+    public String toString() {
+        return "ScreenSpaceLodPolicy[referenceFovY=" + getReferenceFovY() 
+                    + ", referenceHeight=" + referenceHeight + "]";
+    }
+}
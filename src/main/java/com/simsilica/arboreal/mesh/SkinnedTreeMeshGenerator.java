@@ -45,7 +45,9 @@ import com.simsilica.arboreal.LevelOfDetailParameters;
 import com.simsilica.arboreal.Segment;
 import com.simsilica.arboreal.Tree;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 
@@ -56,46 +58,635 @@ import java.util.List;
  */
 public class SkinnedTreeMeshGenerator {
 
+    /**
+     *  The number of bytes per vertex in the generated meshes: position,
+     *  normal, texture coordinate, and tangent.
+     */
+    public static final int VERTEX_SIZE = (3 + 3 + 2 + 4) * 4;
+
     private CurveGenerator curveGen = CurveGenerator.DEFAULT;
+    private boolean presizeBuffers = false;
+    
+    public void setCurveGenerator( CurveGenerator curveGen ) {
+        this.curveGen = curveGen;
+    }
+    
+    public CurveGenerator getCurveGenerator() {
+        return curveGen;
+    }
+ 
+    /**
+     *  Set to true to have the generator make a counting pass over the
+     *  tree before generating so that the mesh builders and tip lists can
+     *  be allocated at their final size.  Defaults to false because the
+     *  counting pass must also generate the joint curves, which is only
+     *  cheap when using a CachingCurveGenerator.
+     */   
+    public void setPresizeBuffers( boolean presizeBuffers ) {
+        this.presizeBuffers = presizeBuffers;
+    }
     
+    public boolean getPresizeBuffers() {
+        return presizeBuffers;
+    }
+ 
     public Mesh generateMesh( Tree tree, LevelOfDetailParameters lod, float yOffset, int uRepeat, float vScale, List<Vertex> tips ) {
+        return generateMeshes(tree, Collections.singletonList(lod), yOffset, uRepeat, vScale, tips).get(0);
+    }
  
-        MeshBuilder mb = new MeshBuilder();
+    /**
+     *  Generates the meshes for all of the specified levels of detail in
+     *  a single walk of the tree.  Curve steps and tip calculations are
+     *  shared by all of the levels.  The resulting list contains one
+     *  mesh per level of detail, in the same order as the supplied LODs.
+     *  If tips is not null then it will be filled with the branch tips
+     *  as calculated for the first level of detail.
+     */
+    public List<Mesh> generateMeshes( Tree tree, List<LevelOfDetailParameters> lods, 
+                                      float yOffset, int uRepeat, float vScale, List<Vertex> tips ) {
+        List<JmeMeshSink> sinks = new ArrayList<JmeMeshSink>(lods.size());
+        for( int i = 0; i < lods.size(); i++ ) {
+            sinks.add(new JmeMeshSink());
+        }
+        LeafTipBuffer tipBuffer = tips == null ? null : new LeafTipBuffer();
+        List<Mesh> results = generateMeshes(tree, lods, yOffset, uRepeat, vScale, tipBuffer, sinks);
+        if( tips != null ) {
+            tipBuffer.toVertexes(tips);
+        }
+        return results;
+    }
+ 
+    public <T> T generateMesh( Tree tree, LevelOfDetailParameters lod, float yOffset, int uRepeat, float vScale, 
+                               LeafTipBuffer tips, MeshSink<T> sink ) {
+        return generateMeshes(tree, Collections.singletonList(lod), yOffset, uRepeat, vScale, 
+                              tips, Collections.singletonList(sink)).get(0);
+    }
+ 
+    /**
+     *  Generates all of the specified levels of detail in a single walk
+     *  of the tree, streaming each level into the corresponding sink.
+     *  The resulting list contains each sink's result in LOD order.
+     *  If tips is not null then it will be filled with the branch tips
+     *  as calculated for the first level of detail.
+     */
+    public <T> List<T> generateMeshes( Tree tree, List<LevelOfDetailParameters> lods, 
+                                       float yOffset, int uRepeat, float vScale, LeafTipBuffer tips,
+                                       List<? extends MeshSink<T>> sinks ) {
+ 
+        int count = lods.size(); 
+        LevelOfDetailParameters[] lodArray = lods.toArray(new LevelOfDetailParameters[count]);
+        MeshBuilder[] mbs = new MeshBuilder[count];
+        CurveGenerator[] curveGens = getCurveGenerators(lodArray);
  
         // Create the base loop for the main trunk... all
         // other segments branch off of that one.        
         Segment trunk = tree.getTrunk();
         
         Vector3f center = new Vector3f(0, yOffset, 0);
-
-        int effectiveRadials = Math.min(trunk.radials, lod.maxRadialSegments);
-
         Quaternion up = new Quaternion().fromAngles(-FastMath.HALF_PI, 0, 0);
+        
+        List<Vertex>[] baseLoops = newLoopArray(count);
+        List<Vertex>[] invertedLoops = null;
+        for( int i = 0; i < count; i++ ) {
+            if( presizeBuffers ) {
+                MeshCounts counts = countMesh(tree, lodArray[i], curveGens[i], i == 0);
+                mbs[i] = new MeshBuilder(counts.getVertexCount(), counts.getTriangleCount());
+                if( i == 0 && tips != null ) {
+                    tips.ensureCapacity(tips.size() + counts.getTipCount());
+                }
+            } else {
+                mbs[i] = new MeshBuilder();
+            }
+            
+            int effectiveRadials = Math.min(trunk.radials, lodArray[i].maxRadialSegments);
+            List<Vertex> baseLoop = mbs[i].createLoop(center, up, trunk.startRadius, effectiveRadials, 0, 0);
+            mbs[i].textureLoop(baseLoop, new Vector2f(0,0), new Vector2f(uRepeat, 0));        
+            applyTangents(baseLoop, false);
+            baseLoops[i] = baseLoop;
+        }
+           
+        for( Segment seg : tree ) {
+            if( seg == null ) {
+                continue;
+            }
+            
+            if( seg.isInverted() ) {
+                if( invertedLoops == null ) {
+                    invertedLoops = newLoopArray(count);
+                    for( int i = 0; i < count; i++ ) {
+                        invertedLoops[i] = invertLoop(baseLoops[i]);
+                    }
+                }
+                addBranches(invertedLoops, seg, 0, -uRepeat, -vScale, lodArray, curveGens, 0, mbs, null);
+            } else {
+                addBranches(baseLoops, seg, 0, uRepeat, vScale, lodArray, curveGens, 0, mbs, tips);
+            }
+        }
+ 
+        List<T> results = new ArrayList<T>(count);
+        for( int i = 0; i < count; i++ ) {
+            mbs[i].smooth();
+            results.add(mbs[i].build(sinks.get(i)));
+        }
+        return results;
+    }
+ 
+    /**
+     *  Generates a single mesh that contains all of the specified levels of
+     *  detail as prefixes of one index buffer over one shared vertex buffer.
+     *  Triangles are grouped by the least detailed level that renders them
+     *  along with the caps for each level's cut depth so that each level is 
+     *  simply an index range.  The mesh has one JME LOD level per supplied
+     *  level of detail, in the supplied order.  The vertex buffers are
+     *  shared by all levels but, as described in MeshLodLevels, each less
+     *  detailed level is uploaded as its own index buffer.
+     *
+     *  <p>The levels must be nested: sorted by branchDepth their rootDepths 
+     *  must not decrease.  Radial segments and curve error are taken from the 
+     *  most detailed level.  Caps for less detailed levels remain in the more 
+     *  detailed ranges but are enclosed by the branches that continue from 
+     *  them.</p>
+     */
+    public Mesh generateNestedMesh( Tree tree, List<LevelOfDetailParameters> lods, 
+                                    float yOffset, int uRepeat, float vScale, LeafTipBuffer tips ) {
+ 
+        LevelOfDetailParameters[] levels = sortNested(lods);
+        LevelOfDetailParameters top = levels[levels.length - 1];
+        CurveGenerator lodCurveGen = getCurveGenerators(new LevelOfDetailParameters[] { top })[0];
+        MeshBuilder mb = new MeshBuilder();
+        NestedLevels nested = new NestedLevels(levels, mb);
+        
+        Segment trunk = tree.getTrunk();
+        Vector3f center = new Vector3f(0, yOffset, 0);
+        Quaternion up = new Quaternion().fromAngles(-FastMath.HALF_PI, 0, 0);
+        int effectiveRadials = Math.min(trunk.radials, top.maxRadialSegments);
         List<Vertex> baseLoop = mb.createLoop(center, up, trunk.startRadius, effectiveRadials, 0, 0);
-        List<Vertex> invertedLoop = null;
-
         mb.textureLoop(baseLoop, new Vector2f(0,0), new Vector2f(uRepeat, 0));        
         applyTangents(baseLoop, false);
+        List<Vertex> invertedLoop = null;
         
-           
         for( Segment seg : tree ) {
             if( seg == null ) {
                 continue;
             }
-            
+            List<Vertex> base = baseLoop;
             if( seg.isInverted() ) {
                 if( invertedLoop == null ) {
                     invertedLoop = invertLoop(baseLoop);
                 }
-                addBranches(invertedLoop, seg, 0, -uRepeat, -vScale, lod, 0, mb, null);
+                base = invertedLoop;
+            }
+            
+            // Levels that don't render this depth at all need the base capped
+            int capGroup = nested.firstCut(-1, seg.isInverted());
+            if( capGroup >= 0 ) {
+                nested.addPendingCap(base, seg, 0, seg.isInverted() ? -uRepeat : uRepeat, 
+                                     (seg.isInverted() ? -vScale : vScale) / seg.endRadius, capGroup);
+            }
+            
+            if( seg.isInverted() ) {
+                addNestedBranches(base, seg, 0, -uRepeat, -vScale, lodCurveGen, 0, nested, null);
             } else {
-                addBranches(baseLoop, seg, 0, uRepeat, vScale, lod, 0, mb, tips);
+                addNestedBranches(base, seg, 0, uRepeat, vScale, lodCurveGen, 0, nested, tips);
             }
         }
- 
+        
         mb.smooth();
         
-        return mb.build();
+        // Now that the shared vertexes have their smoothed normals we can add
+        // the caps without affecting them. 
+        nested.addCaps();
+ 
+        int[] groupEnds = nested.sortTriangles();
+        Mesh mesh = mb.build();
+        if( mesh == null ) {
+            return null;
+        }
+        
+        int[] indexCounts = new int[lods.size()];
+        for( int i = 0; i < indexCounts.length; i++ ) {
+            int level = Arrays.asList(levels).indexOf(lods.get(i));
+            indexCounts[i] = groupEnds[level] * 3;
+        }
+        MeshLodLevels.setPrefixLevels(mesh, indexCounts);
+        return mesh;
+    }
+ 
+    /**
+     *  Creates a template for the specified level of detail from a
+     *  reference tree.  The template can then create the meshes of any
+     *  other tree generated from the same TreeParameters, ie: any seed,
+     *  without running a MeshBuilder.
+     */
+    public TreeMeshTemplate createTemplate( Tree tree, LevelOfDetailParameters lod,
+                                            float yOffset, int uRepeat, float vScale ) {
+        CurveGenerator lodCurveGen = getCurveGenerators(new LevelOfDetailParameters[] { lod })[0];
+        TreeMeshTemplate result = new TreeMeshTemplate(this, lod, lodCurveGen, yOffset, uRepeat, vScale);
+        result.build(tree);
+        return result;
+    }
+ 
+    /**
+     *  Returns the levels sorted from least to most detailed, verifying
+     *  that each level renders everything the previous level does.
+     */   
+    protected LevelOfDetailParameters[] sortNested( List<LevelOfDetailParameters> lods ) {
+        if( lods.isEmpty() ) {
+            throw new IllegalArgumentException("No levels of detail specified");
+        }
+        LevelOfDetailParameters[] levels = lods.toArray(new LevelOfDetailParameters[lods.size()]);
+        Arrays.sort(levels, new Comparator<LevelOfDetailParameters>() {
+                public int compare( LevelOfDetailParameters l1, LevelOfDetailParameters l2 ) {
+                    if( l1.branchDepth != l2.branchDepth ) {
+                        return l1.branchDepth < l2.branchDepth ? -1 : 1;
+                    }
+                    return l1.rootDepth < l2.rootDepth ? -1 : (l1.rootDepth == l2.rootDepth ? 0 : 1);
+                }
+            });
+        for( int i = 1; i < levels.length; i++ ) {
+            if( levels[i].rootDepth < levels[i - 1].rootDepth ) {
+                throw new IllegalArgumentException("Levels of detail are not nested:" + lods);
+            }
+        }
+        return levels;
+    }
+ 
+    /**
+     *  Mirrors addBranches() for the most detailed nested level, tagging the
+     *  generated triangles with their level group and deferring the caps for
+     *  the less detailed levels.
+     */   
+    protected void addNestedBranches( List<Vertex> base, Segment seg, float vBase, int uRepeat, float vScale,
+                                      CurveGenerator lodCurveGen, int depth, NestedLevels nested, 
+                                      LeafTipBuffer tips ) {
+        MeshBuilder mb = nested.mb;
+        boolean inverted = seg.isInverted();
+        int group = nested.firstRendered(depth, inverted);
+        if( group < 0 ) {
+            // No level renders this depth but we may still need the tips
+            if( tips != null ) {
+                addTips(mb.findCenter(base), seg, lodCurveGen, depth, tips);
+            }
+            return;
+        }
+        
+        float vScaleLocal = vScale * (1 / seg.endRadius); 
+        float vEnd = vBase + seg.length * vScaleLocal;
+        int effectiveRadials = Math.min(seg.radials, nested.top.maxRadialSegments);
+ 
+        List<Vertex> tip = mb.extrude(base, seg.dir, seg.length, effectiveRadials, 
+                                      seg.endRadius, seg.twist);
+        mb.textureLoop(tip, new Vector2f(0, vEnd), new Vector2f(uRepeat, 0));
+        applyTangents(tip, inverted);
+        
+        if( !seg.hasChildren() ) {
+            Vertex tipCenter = addCap(tip, seg, vEnd, uRepeat, vScaleLocal, mb);
+            nested.tag(group);
+            if( tips != null ) {
+                tips.add(tipCenter.pos, seg.dir, depth, seg.endRadius);
+            }
+            return;
+        }
+        nested.tag(group);
+ 
+        int capGroup = nested.firstCut(depth, inverted);
+        int nextGroup = nested.firstRendered(depth + 1, inverted);
+        boolean capped = false;
+        for( Segment child : seg ) {
+            switch( child.parentConnection ) {
+                case Extrude:
+                    addNestedBranches(tip, child, vEnd, uRepeat, vScale, lodCurveGen, depth, nested, tips);
+                    break;
+                case Abut:
+                    throw new UnsupportedOperationException("Abutment not yet supported.");
+                case Curve:
+                    if( capGroup >= 0 && !capped ) {
+                        capped = true;
+                        nested.addPendingCap(tip, seg, vEnd, uRepeat, vScaleLocal, capGroup);
+                    }
+                    List<CurveStep> steps = lodCurveGen.generateCurve(seg.dir, seg.endRadius,
+                                                                      child.dir, child.startRadius,
+                                                                      vEnd, vScale);
+                    CurveStep last = steps.get(steps.size() - 1);
+                    if( nextGroup >= 0 ) {
+                        List<Vertex> newTip = tip;
+                        for( CurveStep step : steps ) {
+                            newTip = mb.extrude(newTip, step.dir, step.distance, step.offset,
+                                                effectiveRadials, step.radius, 0);
+                            mb.textureLoop(newTip, new Vector2f(0, step.v), new Vector2f(uRepeat, 0));
+                            applyTangents(newTip, child.isInverted());
+                        }
+                        nested.tag(nextGroup);
+                        addNestedBranches(newTip, child, last.v, uRepeat, vScale, lodCurveGen, 
+                                          depth + 1, nested, tips);
+                    } else if( tips != null ) {
+                        addTips(mb.findCenter(tip).addLocal(last.center), child, lodCurveGen, depth + 1, tips);
+                    }
+                    break;
+            }
+        }
+    }
+ 
+    /**
+     *  Follows the unrendered segments from the specified start position
+     *  to their ends to add the branch tips.
+     */   
+    protected void addTips( Vector3f start, Segment seg, CurveGenerator lodCurveGen, 
+                            int depth, LeafTipBuffer tips ) {
+        Vector3f end = start.add(seg.dir.mult(seg.length));
+        if( !seg.hasChildren() ) {
+            tips.add(end, seg.dir, depth, seg.endRadius);
+            return;
+        }
+        for( Segment child : seg ) {
+            switch( child.parentConnection ) {
+                case Extrude:
+                    addTips(end, child, lodCurveGen, depth, tips);
+                    break;
+                case Abut:
+                    throw new UnsupportedOperationException("Abutment not yet supported.");
+                case Curve:
+                    List<CurveStep> steps = lodCurveGen.generateCurve(seg.dir, seg.endRadius,
+                                                                      child.dir, child.startRadius,
+                                                                      0, 0);
+                    addTips(end.add(steps.get(steps.size() - 1).center), child, lodCurveGen, depth + 1, tips);
+                    break;
+            }
+        }
+    }
+ 
+    /**
+     *  Tracks the level group of each triangle and the deferred caps
+     *  while generating a nested mesh.
+     */   
+    protected class NestedLevels {
+        final LevelOfDetailParameters[] levels;
+        final LevelOfDetailParameters top;
+        final MeshBuilder mb;
+        int[] groups = new int[256];
+        int tagged;
+        List<PendingCap> caps = new ArrayList<PendingCap>();
+        
+        public NestedLevels( LevelOfDetailParameters[] levels, MeshBuilder mb ) {
+            this.levels = levels;
+            this.top = levels[levels.length - 1];
+            this.mb = mb;
+        }
+ 
+        /**
+         *  Returns the first level that renders the specified depth or -1
+         *  if none do.
+         */       
+        public int firstRendered( int depth, boolean inverted ) {
+            for( int i = 0; i < levels.length; i++ ) {
+                if( renderDepth(depth, inverted, levels[i]) ) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+ 
+        /**
+         *  Returns the first level that renders the specified depth but not
+         *  the next one or -1 if none do.  A depth of -1 checks for levels that
+         *  render nothing at depth 0.
+         */       
+        public int firstCut( int depth, boolean inverted ) {
+            for( int i = 0; i < levels.length; i++ ) {
+                boolean rendered = depth < 0 || renderDepth(depth, inverted, levels[i]);
+                if( rendered && !renderDepth(depth + 1, inverted, levels[i]) ) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+ 
+        /**
+         *  Assigns any untagged triangles to the specified group.
+         */       
+        public void tag( int group ) {
+            int count = mb.getTriangles().size();
+            if( count > groups.length ) {
+                groups = Arrays.copyOf(groups, Math.max(count, groups.length * 2));
+            }
+            Arrays.fill(groups, tagged, count, group);
+            tagged = count;
+        }
+        
+        public void addPendingCap( List<Vertex> loop, Segment seg, float v, int uRepeat, 
+                                   float vScaleLocal, int group ) {
+            caps.add(new PendingCap(loop, seg, v, uRepeat, vScaleLocal, group));
+        }
+ 
+        /**
+         *  Adds the deferred caps with normals calculated only from their
+         *  own triangles.
+         */       
+        public void addCaps() {
+            for( PendingCap cap : caps ) {
+                int firstVertex = mb.getVertexes().size();
+                int firstTriangle = mb.getTriangles().size();
+                addCap(cap.loop, cap.seg, cap.v, cap.uRepeat, cap.vScaleLocal, mb);
+                
+                List<Triangle> triangles = mb.getTriangles();
+                for( int i = firstTriangle; i < triangles.size(); i++ ) {
+                    Triangle tri = triangles.get(i);
+                    Vector3f normal = tri.calculateNormal();
+                    for( Vertex v : tri.vertexes() ) {
+                        if( v.index < firstVertex ) {
+                            continue;
+                        }
+                        if( v.normal == null ) {
+                            v.normal = normal.clone();
+                        } else {
+                            v.normal.addLocal(normal);
+                        }
+                    }
+                }
+                List<Vertex> verts = mb.getVertexes();
+                for( int i = firstVertex; i < verts.size(); i++ ) {
+                    Vertex v = verts.get(i);
+                    if( v.normal == null ) {
+                        v.normal = cap.seg.dir.clone();
+                    } else {
+                        v.normal.normalizeLocal();
+                    }
+                }
+                tag(cap.group);
+            }
+        }
+ 
+        /**
+         *  Stable sorts the builder's triangles by group and returns the
+         *  triangle count through the end of each group.
+         */       
+        public int[] sortTriangles() {
+            List<Triangle> triangles = mb.getTriangles();
+            int count = triangles.size();
+            int[] ends = new int[levels.length];
+            for( int i = 0; i < count; i++ ) {
+                ends[groups[i]]++;
+            }
+            int[] next = new int[levels.length];
+            for( int g = 1; g < levels.length; g++ ) {
+                next[g] = next[g - 1] + ends[g - 1];
+                ends[g - 1] = next[g];
+            }
+            ends[levels.length - 1] = count;
+            
+            Triangle[] sorted = new Triangle[count];
+            for( int i = 0; i < count; i++ ) {
+                sorted[next[groups[i]]++] = triangles.get(i);
+            }
+            triangles.clear();
+            triangles.addAll(Arrays.asList(sorted));
+            return ends;
+        }
+    }
+    
+    protected static class PendingCap {
+        final List<Vertex> loop;
+        final Segment seg;
+        final float v;
+        final int uRepeat;
+        final float vScaleLocal;
+        final int group;
+        
+        public PendingCap( List<Vertex> loop, Segment seg, float v, int uRepeat, 
+                           float vScaleLocal, int group ) {
+            this.loop = loop;
+            this.seg = seg;
+            this.v = v;
+            this.uRepeat = uRepeat;
+            this.vScaleLocal = vScaleLocal;
+            this.group = group;
+        }
+    }
+ 
+    /**
+     *  Calculates the exact number of vertexes, triangles, and tips that
+     *  generateMesh() would produce for the specified tree and level of
+     *  detail without creating any vertexes.
+     */
+    public MeshCounts countMesh( Tree tree, LevelOfDetailParameters lod ) {
+        CurveGenerator lodCurveGen = getCurveGenerators(new LevelOfDetailParameters[] { lod })[0]; 
+        return countMesh(tree, lod, lodCurveGen, true);
+    }
+ 
+    protected MeshCounts countMesh( Tree tree, LevelOfDetailParameters lod, 
+                                    CurveGenerator lodCurveGen, boolean countTips ) {
+        MeshCounts counts = new MeshCounts(VERTEX_SIZE);
+        
+        Segment trunk = tree.getTrunk();
+        int effectiveRadials = Math.min(trunk.radials, lod.maxRadialSegments);
+        counts.addVertexes(effectiveRadials + 1);
+        
+        for( Segment seg : tree ) {
+            if( seg == null ) {
+                continue;
+            }
+            // The inverted base loop reuses the same vertexes
+            countBranches(effectiveRadials + 1, seg, lod, lodCurveGen, 0, counts, 
+                          countTips && !seg.isInverted());
+        }
+        return counts;
+    }
+ 
+    /**
+     *  Mirrors addBranches() for a single level of detail but only tracks the
+     *  size of the current loop.  A loop size of 1 represents a capped tip.
+     */
+    protected void countBranches( int loopSize, Segment seg, LevelOfDetailParameters lod,
+                                  CurveGenerator lodCurveGen, int depth, MeshCounts counts,
+                                  boolean countTips ) {
+                                  
+        int effectiveRadials = Math.min(seg.radials, lod.maxRadialSegments);
+        boolean renderDepth = renderDepth(depth, seg.isInverted(), lod);
+        
+        int tip = loopSize;
+        if( renderDepth ) {
+            tip = counts.addExtrusion(tip, effectiveRadials);
+        } else if( tip > 1 ) {
+            counts.addExtrusion(tip, 3);
+            tip = 1;
+        } 
+
+        if( !seg.hasChildren() ) {
+            if( renderDepth ) {
+                counts.addExtrusion(tip, 3);
+            }
+            if( countTips ) {
+                counts.addTips(1);
+            }
+            return;
+        }
+ 
+        boolean renderNextDepth = renderDepth && renderDepth(depth + 1, seg.isInverted(), lod);
+        boolean capped = tip == 1;
+        
+        for( Segment child : seg ) {
+            switch( child.parentConnection ) {
+                case Extrude:
+                    countBranches(tip, child, lod, lodCurveGen, depth, counts, countTips);
+                    break;
+                case Abut:
+                    throw new UnsupportedOperationException("Abutment not yet supported.");
+                case Curve:
+                    int newTip = 1;
+                    if( renderNextDepth ) {
+                        List<CurveStep> steps = lodCurveGen.generateCurve(seg.dir, seg.endRadius,
+                                                                          child.dir, child.startRadius,
+                                                                          0, 0);
+                        newTip = tip;
+                        for( int i = 0; i < steps.size(); i++ ) {
+                            newTip = counts.addExtrusion(newTip, effectiveRadials);
+                        }
+                    } else if( !capped ) {
+                        capped = true;
+                        counts.addExtrusion(tip, 3);
+                        tip = 1;
+                    }
+                    countBranches(newTip, child, lod, lodCurveGen, depth + 1, counts, countTips);
+                    break;
+            }
+        }
+    }
+ 
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<Vertex>[] newLoopArray( int size ) {
+        return new List[size];
+    }
+ 
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<CurveStep>[] newStepsArray( int size ) {
+        return new List[size];
+    }
+ 
+    /**
+     *  Returns the curve generator to use for each of the specified levels
+     *  of detail.  Levels with a curve error tolerance get an adaptive generator
+     *  wrapping this generator's curve generator.  Levels that share the same
+     *  tolerance will share the same generator instance.
+     */
+    protected CurveGenerator[] getCurveGenerators( LevelOfDetailParameters[] lods ) {
+        CurveGenerator[] results = new CurveGenerator[lods.length];
+        for( int i = 0; i < lods.length; i++ ) {
+            float error = lods[i].curveError;
+            if( error <= 0 ) {
+                results[i] = curveGen;
+                continue;
+            }
+            for( int j = 0; j < i; j++ ) {
+                if( lods[j].curveError == error ) {
+                    results[i] = results[j];
+                    break;
+                }
+            }
+            if( results[i] == null ) {
+                results[i] = new AdaptiveCurveGenerator(curveGen, error);
+            }
+        }
+        return results;
     }
  
     protected boolean renderDepth( int depth, boolean inverted, LevelOfDetailParameters lod ) {    
@@ -127,135 +718,170 @@ public class SkinnedTreeMeshGenerator {
         return tipCenter;
     } 
  
-    protected void addBranches( List<Vertex> base, Segment seg, 
+    /**
+     *  Adds the segment and its children to each of the mesh builders,
+     *  one per level of detail.  The bases array contains the current
+     *  loop (or single tip vertex) for each level of detail.  Only the
+     *  first level of detail contributes to the tips list.  curveGens 
+     *  contains the curve generator for each level of detail.  They must all
+     *  produce the same final curve step for any given joint.
+     */
+    protected void addBranches( List<Vertex>[] bases, Segment seg, 
                                 float vBase, int uRepeat, float vScale,
-                                LevelOfDetailParameters lod, int depth,  
-                                MeshBuilder mb, List<Vertex> tips ) {
+                                LevelOfDetailParameters[] lods, CurveGenerator[] curveGens,
+                                int depth, MeshBuilder[] mbs, LeafTipBuffer tips ) {
  
+        int count = lods.length;
+        
         // Base the 'v' scale on what the 'u' will do as the tree expands
         // but the length doesn't.  ie: a ratio of length to radius.
         float vScaleLocal = vScale * (1 / seg.endRadius); 
+        float vEnd = vBase + seg.length * vScaleLocal;
 
-        int effectiveRadials = Math.min(seg.radials, lod.maxRadialSegments);
-
-        boolean renderDepth = renderDepth(depth, seg.isInverted(), lod);
-        
-        List<Vertex> tip = base;                
-        if( renderDepth ) {
-            tip = mb.extrude(tip, seg.dir, seg.length, effectiveRadials, 
-                             seg.endRadius, seg.twist);       
-
-            vBase += seg.length * vScaleLocal;
-        
-            mb.textureLoop(tip, new Vector2f(0, vBase), new Vector2f(uRepeat, 0));
-            applyTangents(tip, seg.isInverted());
-        } else {
-            // We still need to pass along the tip and/or cap off the end
-            Vertex tipCenter;            
-            if( tip.size() > 1 ) {
-                // Cap it off
-                tipCenter = addCap(tip, seg, vBase, uRepeat, vScaleLocal, mb);
-                tip = new ArrayList<Vertex>();
-                tip.add(tipCenter);            
-            } else if( tip.size() == 1 ) {
-                tipCenter = tip.get(0);
-            } else {
-                throw new IllegalStateException("Tip state not properly passed through");
-            }
+        int[] effectiveRadials = new int[count];
+        boolean[] renderNextDepth = new boolean[count];
+        boolean[] capped = new boolean[count];
+        List<Vertex>[] tipLoops = newLoopArray(count);
  
-            // Extend the tip even though we don't render it.  We will
-            // need the tips for the leaves.
-            tipCenter.pos.addLocal(seg.dir.mult(seg.length));
-            tipCenter.normal = seg.dir;            
-            vBase += seg.length * vScaleLocal;
-        }                   
+        for( int i = 0; i < count; i++ ) {
+            LevelOfDetailParameters lod = lods[i];
+            MeshBuilder mb = mbs[i];
+            
+            effectiveRadials[i] = Math.min(seg.radials, lod.maxRadialSegments);
 
-        if( !seg.hasChildren() ) {
-            // Then cap it off by closing the loop.
-            Vertex tipCenter;
+            boolean renderDepth = renderDepth(depth, seg.isInverted(), lod);
+        
+            List<Vertex> tip = bases[i];                
             if( renderDepth ) {
-                tipCenter = addCap(tip, seg, vBase, uRepeat, vScaleLocal, mb);
+                tip = mb.extrude(tip, seg.dir, seg.length, effectiveRadials[i], 
+                                 seg.endRadius, seg.twist);       
+        
+                mb.textureLoop(tip, new Vector2f(0, vEnd), new Vector2f(uRepeat, 0));
+                applyTangents(tip, seg.isInverted());
             } else {
+                // We still need to pass along the tip and/or cap off the end
+                Vertex tipCenter;            
                 if( tip.size() > 1 ) {
+                    // Cap it off
+                    tipCenter = addCap(tip, seg, vBase, uRepeat, vScaleLocal, mb);
+                    tip = new ArrayList<Vertex>();
+                    tip.add(tipCenter);            
+                } else if( tip.size() == 1 ) {
+                    tipCenter = tip.get(0);
+                } else {
                     throw new IllegalStateException("Tip state not properly passed through");
                 }
-                tipCenter = tip.get(0);
-            }
+ 
+                // Extend the tip even though we don't render it.  We will
+                // need the tips for the leaves.
+                tipCenter.pos.addLocal(seg.dir.mult(seg.length));
+                tipCenter.normal = seg.dir;            
+            }                   
 
-            if( tips != null ) {
-                tips.add(tipCenter);
-            }            
+            if( !seg.hasChildren() ) {
+                // Then cap it off by closing the loop.
+                Vertex tipCenter;
+                if( renderDepth ) {
+                    tipCenter = addCap(tip, seg, vEnd, uRepeat, vScaleLocal, mb);
+                } else {
+                    if( tip.size() > 1 ) {
+                        throw new IllegalStateException("Tip state not properly passed through");
+                    }
+                    tipCenter = tip.get(0);
+                }
+
+                if( tips != null && i == 0 ) {
+                    tips.add(tipCenter.pos, tipCenter.normal, depth, seg.endRadius);
+                }            
+                continue;
+            }
             
-            return;
+            tipLoops[i] = tip;
+            capped[i] = tip.size() == 1;
+            renderNextDepth[i] = renderDepth && renderDepth(depth + 1, seg.isInverted(), lod);
         }
-
-        boolean renderNextDepth = renderDepth;
-        boolean capped = tip.size() == 1;
-        if( !renderDepth(depth + 1, seg.isInverted(), lod) ) {
-            renderNextDepth = false;             
-        }                    
+        
+        if( !seg.hasChildren() ) {
+            return;
+        }                  
 
         // And the follow on segments
         for( Segment child : seg ) {
             switch( child.parentConnection ) {
                 case Extrude:
                     // We can just continue directly
-                    addBranches(tip, child, vBase, uRepeat, vScale, lod, depth, mb, tips);
+                    addBranches(tipLoops, child, vEnd, uRepeat, vScale, lods, curveGens, depth, mbs, tips);
                     break;
                 case Abut:
                     throw new UnsupportedOperationException("Abutment not yet supported.");
                 case Curve:
- 
-                    List<Vertex> newTip = tip;
-                    float v = 0;
-                    
-                    if( !renderNextDepth ) {
-                        if( !capped ) {
-                            // Cap the previous level off... but only for the first child do we need to
-                            capped = true;
-                            Vertex tipCenter = addCap(tip, seg, vBase, uRepeat, vScaleLocal, mb);
-                            tip = new ArrayList<Vertex>();
-                            tip.add(tipCenter);
-                        } else if( newTip.size() != 1 ) {
-                            // check should be unnecessary
-                            throw new IllegalStateException("Tip state not properly passed through");
+                    // Levels that share a curve generator share the curve and
+                    // all of them end up in the same place.
+                    List<CurveStep>[] lodSteps = newStepsArray(count);
+                    for( int i = 0; i < count; i++ ) {
+                        if( i > 0 && !renderNextDepth[i] ) {
+                            // Only the end of the curve will be used
+                            continue;
+                        }
+                        for( int j = 0; j < i; j++ ) {
+                            if( curveGens[j] == curveGens[i] && lodSteps[j] != null ) {
+                                lodSteps[i] = lodSteps[j];
+                                break;
+                            }
+                        }
+                        if( lodSteps[i] == null ) {
+                            lodSteps[i] = curveGens[i].generateCurve(seg.dir, seg.endRadius,
+                                                                     child.dir, child.startRadius,
+                                                                     vEnd, vScale);
                         }
-                         
-                        // Make sure this branch has its own tip to move
-                        Vertex tipCenter = newTip.get(0).clone();
-                        newTip = new ArrayList<Vertex>();
-                        newTip.add(tipCenter);
                     }
+                    CurveStep last = lodSteps[0].get(lodSteps[0].size() - 1);
+                    List<Vertex>[] newTips = newLoopArray(count);
+                    
+                    for( int i = 0; i < count; i++ ) {
+                        MeshBuilder mb = mbs[i];
+                        List<CurveStep> steps = lodSteps[i];
+                        List<Vertex> newTip = tipLoops[i];
+                        
+                        if( !renderNextDepth[i] ) {
+                            if( !capped[i] ) {
+                                // Cap the previous level off... but only for the first child do we need to
+                                capped[i] = true;
+                                Vertex tipCenter = addCap(tipLoops[i], seg, vEnd, uRepeat, vScaleLocal, mb);
+                                tipLoops[i] = new ArrayList<Vertex>();
+                                tipLoops[i].add(tipCenter);
+                            } else if( newTip.size() != 1 ) {
+                                // check should be unnecessary
+                                throw new IllegalStateException("Tip state not properly passed through");
+                            }
+                         
+                            // Make sure this branch has its own tip to move
+                            Vertex tipCenter = newTip.get(0).clone();
+                            newTip = new ArrayList<Vertex>();
+                            newTip.add(tipCenter);
+                        }
                 
-                    List<CurveStep> steps = curveGen.generateCurve(seg.dir, seg.endRadius,
-                                                                   child.dir, child.startRadius,
-                                                                   vBase, vScale);
- 
-                    if( renderNextDepth ) {
-                        v = 0;                                                                  
-                        for( CurveStep step : steps ) {
-                            v = step.v;
-                            if( renderNextDepth ) {
+                        if( renderNextDepth[i] ) {
+                            for( CurveStep step : steps ) {
                                 newTip = mb.extrude(newTip, step.dir, step.distance, step.offset,
-                                                    effectiveRadials, step.radius, 0);
+                                                    effectiveRadials[i], step.radius, 0);
                                 mb.textureLoop(newTip, new Vector2f(0, step.v), new Vector2f(uRepeat, 0));
                                 applyTangents(newTip, child.isInverted());
-                            } 
-                        }
-                    } else {
-                        // Just advance the tip to the end
-                        if( newTip.size() != 1 ) {
-                            throw new IllegalStateException("Tip state not properly passed through");
+                            }
+                        } else {
+                            // Just advance the tip to the end
+                            if( newTip.size() != 1 ) {
+                                throw new IllegalStateException("Tip state not properly passed through");
+                            }
+                            // Extend the tip
+                            Vertex tipCenter = newTip.get(0);
+                            tipCenter.pos.addLocal(last.center);                            
+                            tipCenter.normal = last.dir;
                         }
-                        // Extend the tip
-                        CurveStep step = steps.get(steps.size() - 1);
-                        Vertex tipCenter = newTip.get(0);
-                        tipCenter.pos.addLocal(step.center);                            
-                        tipCenter.normal = step.dir;
-                        v = step.v;
+                        newTips[i] = newTip;
                     }
                     
-                    addBranches(newTip, child, v, uRepeat, vScale, lod, depth + 1, mb, tips);
+                    addBranches(newTips, child, last.v, uRepeat, vScale, lods, curveGens, depth + 1, mbs, tips);
                 
                     break;
             }
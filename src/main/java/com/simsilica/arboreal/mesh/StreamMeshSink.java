@@ -0,0 +1,234 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer.Type;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ *  A MeshSink that writes the mesh to an output stream in a simple 
+ *  binary format as the data arrives.  The result is the number of 
+ *  bytes written.  The stream is not closed.  read() can replay a 
+ *  written mesh into any other sink.
+ *
+ *  <p>Format: magic, version, mode name, vertex count, index count, 
+ *  attribute count, (attribute type name, components) for each attribute, 
+ *  the interleaved vertex data in declaration order, and then the indexes.
+ *  All values are big-endian as written by DataOutputStream.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class StreamMeshSink implements MeshSink<Long> {
+
+    public static final int MAGIC = 0x534D5348; // "SMSH"
+    public static final int VERSION = 1;
+
+    private final DataOutputStream out;
+    private Mesh.Mode mode;
+    private int vertexCount;
+    private List<Type> types = new ArrayList<Type>();
+    private List<Integer> components = new ArrayList<Integer>();
+    private boolean headerWritten;
+    private int[] indexes;
+    private int nextIndex;
+    private int start;
+     
+    public StreamMeshSink( OutputStream out ) {
+        this.out = new DataOutputStream(out);
+    }
+ 
+    @Override
+    public void begin( Mesh.Mode mode, int vertexCount, int indexCount ) {
+        this.mode = mode;
+        this.vertexCount = vertexCount;
+        this.indexes = new int[indexCount];
+        this.start = out.size();
+    }
+ 
+    @Override
+    public void addAttribute( Type type, int size ) {
+        if( headerWritten ) {
+            throw new IllegalStateException("Attributes must be declared before data.");
+        }
+        types.add(type);
+        components.add(size);
+    }
+ 
+    protected void writeHeader() throws IOException {
+        if( headerWritten ) {
+            return;
+        }
+        headerWritten = true;
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(mode.name());
+        out.writeInt(vertexCount);
+        out.writeInt(indexes.length);
+        out.writeInt(types.size());
+        for( int i = 0; i < types.size(); i++ ) {
+            out.writeUTF(types.get(i).name());
+            out.writeInt(components.get(i));
+        }
+    }
+    
+    @Override
+    public void put( Type type, float x ) {
+        try {
+            writeHeader();
+            out.writeFloat(x);
+        } catch( IOException e ) {
+            throw new RuntimeException("Error writing mesh data", e);
+        }
+    }
+    
+    @Override
+    public void put( Type type, float x, float y ) {
+        try {
+            writeHeader();
+            out.writeFloat(x);
+            out.writeFloat(y);
+        } catch( IOException e ) {
+            throw new RuntimeException("Error writing mesh data", e);
+        }
+    }
+    
+    @Override
+    public void put( Type type, float x, float y, float z ) {
+        try {
+            writeHeader();
+            out.writeFloat(x);
+            out.writeFloat(y);
+            out.writeFloat(z);
+        } catch( IOException e ) {
+            throw new RuntimeException("Error writing mesh data", e);
+        }
+    }
+    
+    @Override
+    public void put( Type type, float x, float y, float z, float w ) {
+        try {
+            writeHeader();
+            out.writeFloat(x);
+            out.writeFloat(y);
+            out.writeFloat(z);
+            out.writeFloat(w);
+        } catch( IOException e ) {
+            throw new RuntimeException("Error writing mesh data", e);
+        }
+    }
+    
+    @Override
+    public void putIndex( int index ) {
+        // Indexes come after the vertex data in the stream
+        indexes[nextIndex++] = index;
+    }
+ 
+    @Override
+    public Long end() {
+        try {
+            writeHeader();
+            for( int i : indexes ) {
+                out.writeInt(i);
+            }
+            out.flush();
+            return (long)(out.size() - start);
+        } catch( IOException e ) {
+            throw new RuntimeException("Error writing mesh data", e);
+        }
+    }
+ 
+    /**
+     *  Reads a mesh previously written by a StreamMeshSink and replays it
+     *  into the specified sink, returning that sink's result.
+     */   
+    public static <T> T read( InputStream input, MeshSink<T> sink ) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        if( in.readInt() != MAGIC ) {
+            throw new IOException("Not a mesh stream");
+        }
+        int version = in.readInt();
+        if( version != VERSION ) {
+            throw new IOException("Unsupported mesh stream version:" + version);
+        }
+        Mesh.Mode mode = Mesh.Mode.valueOf(in.readUTF());
+        int vertexCount = in.readInt();
+        int indexCount = in.readInt();
+        sink.begin(mode, vertexCount, indexCount);
+        
+        int attributeCount = in.readInt();
+        Type[] types = new Type[attributeCount];
+        int[] sizes = new int[attributeCount];
+        for( int i = 0; i < attributeCount; i++ ) {
+            types[i] = Type.valueOf(in.readUTF());
+            sizes[i] = in.readInt();
+            sink.addAttribute(types[i], sizes[i]);
+        }
+ 
+        for( int v = 0; v < vertexCount; v++ ) {
+            for( int i = 0; i < attributeCount; i++ ) {
+                switch( sizes[i] ) {
+                    case 1:
+                        sink.put(types[i], in.readFloat());
+                        break;
+                    case 2:
+                        sink.put(types[i], in.readFloat(), in.readFloat());
+                        break;
+                    case 3:
+                        sink.put(types[i], in.readFloat(), in.readFloat(), in.readFloat());
+                        break;
+                    case 4:
+                        sink.put(types[i], in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+                        break;
+                    default:
+                        throw new IOException("Unsupported component count:" + sizes[i]);
+                }
+            }
+        }
+        for( int i = 0; i < indexCount; i++ ) {
+            sink.putIndex(in.readInt());
+        }
+        return sink.end();
+    }
+}
@@ -0,0 +1,768 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Format;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.VertexBuffer.Usage;
+import com.jme3.util.BufferUtils;
+import com.simsilica.arboreal.LevelOfDetailParameters;
+import com.simsilica.arboreal.Segment;
+import com.simsilica.arboreal.Tree;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *  The connectivity, texture coordinates, and loop structure of a
+ *  skinned tree mesh for one level of detail, built once from a
+ *  reference tree.  A tree's seed only changes the directions of its
+ *  segments so any other tree generated from the same TreeParameters
+ *  can be turned into a mesh with a purely numeric pass that recalculates
+ *  positions, normals, and tangents into float arrays instead of running
+ *  a MeshBuilder.  Meshes created from the same template share its
+ *  texture coordinate and index buffers.
+ *
+ *  <p>The curve generators pick the number of loops in a joint from how
+ *  far it bends, which does depend on the seed.  To keep the topology 
+ *  fixed, each joint's curve is resampled to the number of steps it had 
+ *  in the reference tree.  The end of each curve is unchanged so child 
+ *  branches and leaf tips are where the generator would put them.  Texture 
+ *  coordinates are always the reference tree's.</p>
+ *
+ *  <p>Create templates with SkinnedTreeMeshGenerator.createTemplate().
+ *  A template is not modified after it is created and can be used from
+ *  multiple threads at once.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class TreeMeshTemplate {
+
+    private static final int NO_TANGENTS = 0;
+    private static final int TANGENTS = 1;
+    private static final int INVERTED_TANGENTS = 2;
+
+    private final SkinnedTreeMeshGenerator generator;
+    private final LevelOfDetailParameters lod;
+    private final CurveGenerator lodCurveGen;
+    private final float yOffset;
+    private final int uRepeat;
+    private final float vScale;
+ 
+    private int vertexCount;
+    private int[] indexes;
+    
+    // The reference positions and tangents of the trunk's base loop,
+    // which is the same for every tree
+    private float[] basePositions;
+    private float[] baseTangents;
+ 
+    // Loops are listed in creation order with their vertex indexes
+    // concatenated in loopVertexes.  Loop 0 is always the trunk's
+    // base loop.
+    private int loopCount;
+    private int[] loopStart;
+    private int[] loopTangents;
+    private int[] loopVertexes;
+    private int[] seamLinks;
+    
+    // The number of steps in each rendered joint and the radials and child 
+    // count of each segment in walk order so that trees can be checked
+    // against the template
+    private int[] jointSteps;
+    private int[] structure; 
+ 
+    private VertexBuffer texCoordBuffer;
+    private VertexBuffer indexBuffer;
+ 
+    protected TreeMeshTemplate( SkinnedTreeMeshGenerator generator, LevelOfDetailParameters lod,
+                                CurveGenerator lodCurveGen, float yOffset, int uRepeat, float vScale ) {
+        this.generator = generator;
+        this.lod = lod;
+        this.lodCurveGen = lodCurveGen;
+        this.yOffset = yOffset;
+        this.uRepeat = uRepeat;
+        this.vScale = vScale;
+    }
+ 
+    /**
+     *  Builds the template from the specified reference tree.
+     */   
+    protected void build( Tree tree ) {
+        BuildWalker walker = new BuildWalker();
+        walk(tree, walker, null);
+        
+        MeshBuilder mb = walker.mb;
+        mb.smooth();
+        
+        List<Vertex> verts = mb.getVertexes();
+        vertexCount = verts.size();
+        float[] texCoords = new float[vertexCount * 2];
+        for( Vertex v : verts ) {
+            texCoords[v.index * 2] = v.uv.x;
+            texCoords[v.index * 2 + 1] = v.uv.y;
+        }
+        
+        List<Vertex> baseLoop = walker.loops.get(0);
+        basePositions = new float[baseLoop.size() * 3];
+        baseTangents = new float[baseLoop.size() * 3];
+        for( int i = 0; i < baseLoop.size(); i++ ) {
+            Vertex v = baseLoop.get(i);
+            System.arraycopy(v.pos.toArray(null), 0, basePositions, i * 3, 3);
+            System.arraycopy(v.tangent.toArray(null), 0, baseTangents, i * 3, 3);
+        }
+        
+        List<Triangle> triangles = mb.getTriangles();
+        indexes = new int[triangles.size() * 3];
+        int next = 0;
+        for( Triangle tri : triangles ) {
+            indexes[next++] = tri.v1.index;
+            indexes[next++] = tri.v2.index;
+            indexes[next++] = tri.v3.index;
+        }
+        
+        loopCount = walker.loops.size();
+        loopStart = new int[loopCount + 1];
+        loopTangents = new int[loopCount];
+        int total = 0;
+        for( List<Vertex> loop : walker.loops ) {
+            total += loop.size();
+        }
+        loopVertexes = new int[total];
+        next = 0;
+        List<Integer> links = new ArrayList<Integer>();
+        for( int i = 0; i < loopCount; i++ ) {
+            List<Vertex> loop = walker.loops.get(i);
+            loopStart[i] = next;
+            loopTangents[i] = walker.tangents.get(i);
+            for( Vertex v : loop ) {
+                loopVertexes[next++] = v.index;
+            }
+            if( walker.created.get(i) ) {
+                links.add(loop.get(0).index);
+                links.add(loop.get(loop.size() - 1).index);
+            }
+        }
+        loopStart[loopCount] = next;
+        seamLinks = toArray(links);
+        jointSteps = toArray(walker.jointSteps);
+        structure = toArray(walker.structure);
+ 
+        FloatBuffer tb = BufferUtils.createFloatBuffer(texCoords);
+        texCoordBuffer = new VertexBuffer(Type.TexCoord);
+        texCoordBuffer.setupData(Usage.Static, 2, Format.Float, tb);
+        
+        indexBuffer = new VertexBuffer(Type.Index);
+        if( vertexCount <= 0xffff ) {
+            short[] shorts = new short[indexes.length];
+            for( int i = 0; i < shorts.length; i++ ) {
+                shorts[i] = (short)indexes[i];
+            }
+            indexBuffer.setupData(Usage.Static, 3, Format.UnsignedShort, 
+                                  BufferUtils.createShortBuffer(shorts));
+        } else {
+            indexBuffer.setupData(Usage.Static, 3, Format.UnsignedInt, 
+                                  BufferUtils.createIntBuffer(indexes));
+        }
+    }
+ 
+    public LevelOfDetailParameters getLevelOfDetail() {
+        return lod;
+    }
+ 
+    public int getVertexCount() {
+        return vertexCount;
+    }
+    
+    public int getTriangleCount() {
+        return indexes.length / 3;
+    }
+ 
+    /**
+     *  Returns true if the specified tree has the same segment structure 
+     *  as the reference tree, ie: it was generated from the same parameters.  
+     */   
+    public boolean matches( Tree tree ) {
+        int[] cursor = new int[1];
+        for( Segment seg : tree ) {
+            if( seg != null && !matches(seg, cursor) ) {
+                return false;
+            }
+        }
+        return cursor[0] == structure.length;
+    }
+    
+    private boolean matches( Segment seg, int[] cursor ) {
+        int i = cursor[0];
+        if( i + 2 > structure.length ) {
+            return false;
+        }
+        if( structure[i] != seg.radials || structure[i + 1] != childCount(seg) ) {
+            return false;
+        }
+        cursor[0] += 2;
+        for( Segment child : seg ) {
+            if( !matches(child, cursor) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+ 
+    /**
+     *  Creates a mesh for the specified tree.  The mesh gets new position, 
+     *  normal, and tangent buffers and shares this template's texture
+     *  coordinate and index buffers.  If tips is not null then it is filled
+     *  with the tree's branch tips.
+     */   
+    public Mesh createMesh( Tree tree, LeafTipBuffer tips ) {
+        float[] pos = new float[vertexCount * 3];
+        float[] norms = new float[vertexCount * 3];
+        float[] tangents = new float[vertexCount * 4];
+        generate(tree, pos, norms, tangents, tips);
+        
+        Mesh mesh = new Mesh();
+        mesh.setBuffer(Type.Position, 3, BufferUtils.createFloatBuffer(pos));
+        mesh.setBuffer(Type.Normal, 3, BufferUtils.createFloatBuffer(norms));
+        mesh.setBuffer(texCoordBuffer);
+        mesh.setBuffer(Type.Tangent, 4, BufferUtils.createFloatBuffer(tangents));
+        mesh.setBuffer(indexBuffer);
+        mesh.updateBound();
+        return mesh;
+    }
+ 
+    /**
+     *  Calculates the vertex positions, normals, and tangents of the specified
+     *  tree into the supplied arrays, which must hold getVertexCount() vertexes
+     *  of 3, 3, and 4 components respectively.  If tips is not null then it 
+     *  is filled with the tree's branch tips.  Throws IllegalArgumentException
+     *  if the tree's structure does not match the reference tree.
+     */   
+    public void generate( Tree tree, float[] pos, float[] norms, float[] tangents, LeafTipBuffer tips ) {
+        if( pos.length < vertexCount * 3 || norms.length < vertexCount * 3 
+            || tangents.length < vertexCount * 4 ) {
+            throw new IllegalArgumentException("Arrays too small for vertex count:" + vertexCount);
+        }
+        
+        ReplayWalker walker = new ReplayWalker(pos, tangents);
+        walk(tree, walker, tips);
+        if( walker.nextStructure != structure.length ) {
+            throw new IllegalArgumentException("Tree does not match the template structure.");
+        } 
+        smooth(pos, norms);
+    }
+ 
+    /**
+     *  Mirrors MeshBuilder.smooth() using the template's triangles 
+     *  and loop seams.
+     */
+    protected void smooth( float[] pos, float[] norms ) {
+        float[] weights = new float[vertexCount];
+        Arrays.fill(norms, 0, vertexCount * 3, 0);
+        
+        Vector3f p1 = new Vector3f();
+        Vector3f p2 = new Vector3f();
+        Vector3f p3 = new Vector3f();
+        Vector3f normal = new Vector3f();
+        Vector3f edge1 = new Vector3f();
+        Vector3f edge2 = new Vector3f();
+        for( int i = 0; i < indexes.length; i += 3 ) {
+            int i1 = indexes[i];
+            int i2 = indexes[i + 1];
+            int i3 = indexes[i + 2];
+            p1.set(pos[i1 * 3], pos[i1 * 3 + 1], pos[i1 * 3 + 2]);
+            p2.set(pos[i2 * 3], pos[i2 * 3 + 1], pos[i2 * 3 + 2]);
+            p3.set(pos[i3 * 3], pos[i3 * 3 + 1], pos[i3 * 3 + 2]);
+            
+            edge1.set(p2).subtractLocal(p1);
+            edge2.set(p3).subtractLocal(p1);
+            edge1.cross(edge2, normal).normalizeLocal();
+            
+            accumulate(i1, p1, p2, p3, normal, norms, weights, edge1, edge2);
+            accumulate(i2, p2, p3, p1, normal, norms, weights, edge1, edge2);
+            accumulate(i3, p3, p1, p2, normal, norms, weights, edge1, edge2);
+        }
+        
+        for( int i = 0; i < seamLinks.length; i += 2 ) {
+            int a = seamLinks[i] * 3;
+            int b = seamLinks[i + 1] * 3;
+            for( int j = 0; j < 3; j++ ) {
+                float sum = norms[a + j] + norms[b + j];
+                norms[a + j] = sum;
+                norms[b + j] = sum;
+            }
+        }
+        
+        for( int i = 0; i < vertexCount; i++ ) {
+            normalize(norms, i * 3);
+        }
+    }
+ 
+    private void accumulate( int index, Vector3f corner, Vector3f a, Vector3f b, Vector3f normal,
+                             float[] norms, float[] weights, Vector3f edge1, Vector3f edge2 ) {
+        edge1.set(a).subtractLocal(corner).normalizeLocal();
+        edge2.set(b).subtractLocal(corner).normalizeLocal();
+        float weight = acos(edge1.dot(edge2));
+        norms[index * 3] += normal.x * weight;
+        norms[index * 3 + 1] += normal.y * weight;
+        norms[index * 3 + 2] += normal.z * weight;
+        weights[index] += weight;
+    }
+ 
+    /**
+     *  Polynomial arc cosine accurate to about 2e-8 radians, Abramowitz 
+     *  and Stegun 4.4.46.  Math.acos() is by far the most expensive part 
+     *  of smoothing otherwise.
+     */
+    private static float acos( float x ) {
+        if( x <= -1 ) {
+            return FastMath.PI;
+        } else if( x >= 1 ) {
+            return 0;
+        }
+        double a = Math.abs(x);
+        double result = Math.sqrt(1 - a) 
+                        * (1.5707963050 + a * (-0.2145988016 + a * (0.0889789874 
+                        + a * (-0.0501743046 + a * (0.0308918810 + a * (-0.0170881256 
+                        + a * (0.0066700901 + a * -0.0012624911)))))));
+        return (float)(x < 0 ? Math.PI - result : result);
+    }
+ 
+    private static void normalize( float[] array, int offset ) {
+        float x = array[offset];
+        float y = array[offset + 1];
+        float z = array[offset + 2];
+        float length = x * x + y * y + z * z;
+        if( length != 1f && length != 0f ) {
+            length = 1.0f / FastMath.sqrt(length);
+            array[offset] = x * length;
+            array[offset + 1] = y * length;
+            array[offset + 2] = z * length;
+        }
+    }
+ 
+    /**
+     *  Returns the specified curve with exactly the specified number of
+     *  steps, merging or splitting steps as needed.  The end of the curve 
+     *  is unchanged.
+     */   
+    protected static List<CurveStep> resampleCurve( List<CurveStep> steps, int count, 
+                                                    float startRadius, float startV ) {
+        int size = steps.size();
+        if( size == count ) {
+            return steps;
+        }
+        if( size > count ) {
+            return AdaptiveCurveGenerator.mergeSteps(steps, count);
+        }
+        
+        // Split each step into an even share of the pieces
+        List<CurveStep> result = new ArrayList<CurveStep>(count);
+        Vector3f lastCenter = Vector3f.ZERO;
+        float lastRadius = startRadius;
+        float lastV = startV;
+        for( int i = 0; i < size; i++ ) {
+            CurveStep step = steps.get(i);
+            int pieces = ((i + 1) * count) / size - (i * count) / size;
+            for( int j = 1; j <= pieces; j++ ) {
+                if( j == pieces ) {
+                    result.add(new CurveStep(step.dir, step.distance / pieces, step.radius, step.center, 
+                                             step.offset == null ? null : step.offset.divide(pieces), 
+                                             step.v));
+                    break;
+                }
+                float t = (float)j / pieces;
+                result.add(new CurveStep(step.dir, step.distance / pieces,
+                                         lastRadius + (step.radius - lastRadius) * t,
+                                         new Vector3f().interpolateLocal(lastCenter, step.center, t),
+                                         step.offset == null ? null : step.offset.divide(pieces),
+                                         lastV + (step.v - lastV) * t));
+            }
+            lastCenter = step.center;
+            lastRadius = step.radius;
+            lastV = step.v;
+        }
+        return result;
+    }
+ 
+    private static int childCount( Segment seg ) {
+        return seg.children == null ? 0 : seg.children.length;
+    }
+ 
+    private static int[] toArray( List<Integer> list ) {
+        int[] result = new int[list.size()];
+        for( int i = 0; i < result.length; i++ ) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+ 
+    /**
+     *  Walks the tree for this template's level of detail in the same 
+     *  order as SkinnedTreeMeshGenerator.addBranches(), passing the loop
+     *  operations to the walker.
+     */
+    protected void walk( Tree tree, Walker walker, LeafTipBuffer tips ) {
+        int baseLoop = walker.baseLoop(tree.getTrunk());
+        int invertedLoop = -1;
+        for( Segment seg : tree ) {
+            if( seg == null ) {
+                continue;
+            }
+            if( seg.isInverted() ) {
+                if( invertedLoop < 0 ) {
+                    invertedLoop = walker.invertLoop(baseLoop);
+                }
+                walkBranches(invertedLoop, null, seg, 0, -uRepeat, -vScale, 0, walker, null);
+            } else {
+                walkBranches(baseLoop, null, seg, 0, uRepeat, vScale, 0, walker, tips);
+            }
+        }
+    }
+ 
+    /**
+     *  Walks a segment and its children starting from either a loop or, for
+     *  branches that are not rendered, a tip point.
+     */   
+    protected void walkBranches( int loop, Vector3f point, Segment seg, float vBase, int uRepeat, 
+                                 float vScale, int depth, Walker walker, LeafTipBuffer tips ) {
+        walker.segment(seg);
+        boolean inverted = seg.isInverted();
+        float vScaleLocal = vScale * (1 / seg.endRadius); 
+        float vEnd = vBase + seg.length * vScaleLocal;
+        int effectiveRadials = Math.min(seg.radials, lod.maxRadialSegments);
+        boolean renderDepth = generator.renderDepth(depth, inverted, lod);
+ 
+        if( renderDepth ) {
+            loop = walker.extrude(loop, seg.dir, seg.length, null, effectiveRadials, 
+                                  seg.endRadius, seg.twist, vEnd, uRepeat, inverted);
+        } else {
+            if( loop >= 0 ) {
+                point = walker.cap(loop, seg, vBase, uRepeat, vScaleLocal);
+                loop = -1;
+            }
+            point = point.add(seg.dir.mult(seg.length));
+        }
+        
+        if( !seg.hasChildren() ) {
+            if( renderDepth ) {
+                point = walker.cap(loop, seg, vEnd, uRepeat, vScaleLocal);
+            }
+            if( tips != null ) {
+                tips.add(point, seg.dir, depth, seg.endRadius);
+            }
+            return;
+        }
+        
+        boolean renderNextDepth = renderDepth && generator.renderDepth(depth + 1, inverted, lod);
+        for( Segment child : seg ) {
+            switch( child.parentConnection ) {
+                case Extrude:
+                    walkBranches(loop, point, child, vEnd, uRepeat, vScale, depth, walker, tips);
+                    break;
+                case Abut:
+                    throw new UnsupportedOperationException("Abutment not yet supported.");
+                case Curve:
+                    List<CurveStep> steps = lodCurveGen.generateCurve(seg.dir, seg.endRadius,
+                                                                      child.dir, child.startRadius,
+                                                                      vEnd, vScale);
+                    CurveStep last = steps.get(steps.size() - 1);
+                    if( renderNextDepth ) {
+                        steps = walker.joint(steps, seg.endRadius, vEnd);
+                        int newLoop = loop;
+                        for( CurveStep step : steps ) {
+                            newLoop = walker.extrude(newLoop, step.dir, step.distance, step.offset,
+                                                     effectiveRadials, step.radius, 0, step.v, uRepeat,
+                                                     child.isInverted());
+                        }
+                        walkBranches(newLoop, null, child, last.v, uRepeat, vScale, depth + 1, walker, tips);
+                    } else {
+                        if( loop >= 0 ) {
+                            point = walker.cap(loop, seg, vEnd, uRepeat, vScaleLocal);
+                            loop = -1;
+                        }
+                        walkBranches(-1, point.add(last.center), child, last.v, uRepeat, vScale, 
+                                     depth + 1, walker, tips);
+                    }
+                    break;
+            }
+        }
+    }
+ 
+    /**
+     *  Receives the loop operations of a tree walk.  Loops are identified 
+     *  by their creation order.
+     */   
+    protected abstract class Walker {
+        protected void segment( Segment seg ) {
+        }
+        
+        protected abstract int baseLoop( Segment trunk );
+        
+        protected abstract int invertLoop( int loop );
+        
+        protected abstract int extrude( int loop, Vector3f dir, float distance, Vector3f offset,
+                                        int segments, float radius, float twist, 
+                                        float v, int uRepeat, boolean inverted );
+ 
+        protected abstract List<CurveStep> joint( List<CurveStep> steps, float startRadius, float startV );
+ 
+        /**
+         *  Caps the specified loop and returns the cap's center.
+         */
+        protected Vector3f cap( int loop, Segment seg, float v, int uRepeat, float vScaleLocal ) {
+            int cap = extrude(loop, seg.dir, 0, Vector3f.ZERO, 3, 0.001f, 0, v + vScaleLocal, 
+                              uRepeat, seg.isInverted());
+            return findCenter(cap);
+        }
+        
+        protected abstract Vector3f findCenter( int loop );
+    }
+ 
+    /**
+     *  Builds the reference mesh with a MeshBuilder, recording its
+     *  loops, joints, and segment structure.
+     */   
+    private class BuildWalker extends Walker {
+        MeshBuilder mb = new MeshBuilder();
+        List<List<Vertex>> loops = new ArrayList<List<Vertex>>();
+        List<Integer> tangents = new ArrayList<Integer>();
+        List<Boolean> created = new ArrayList<Boolean>();
+        List<Integer> jointSteps = new ArrayList<Integer>();
+        List<Integer> structure = new ArrayList<Integer>();
+        
+        private int addLoop( List<Vertex> loop, int tangentMode, boolean isNew ) {
+            loops.add(loop);
+            tangents.add(tangentMode);
+            created.add(isNew);
+            return loops.size() - 1;
+        }
+ 
+        @Override
+        protected void segment( Segment seg ) {
+            structure.add(seg.radials);
+            structure.add(childCount(seg));
+        }
+ 
+        @Override
+        protected int baseLoop( Segment trunk ) {
+            Vector3f center = new Vector3f(0, yOffset, 0);
+            Quaternion up = new Quaternion().fromAngles(-FastMath.HALF_PI, 0, 0);
+            int effectiveRadials = Math.min(trunk.radials, lod.maxRadialSegments);
+            List<Vertex> loop = mb.createLoop(center, up, trunk.startRadius, effectiveRadials, 0, 0);
+            mb.textureLoop(loop, new Vector2f(0,0), new Vector2f(uRepeat, 0));        
+            generator.applyTangents(loop, false);
+            return addLoop(loop, TANGENTS, true);
+        }
+        
+        @Override
+        protected int invertLoop( int loop ) {
+            return addLoop(generator.invertLoop(loops.get(loop)), NO_TANGENTS, false);
+        }
+        
+        @Override
+        protected int extrude( int loop, Vector3f dir, float distance, Vector3f offset,
+                               int segments, float radius, float twist, 
+                               float v, int uRepeat, boolean inverted ) {
+            List<Vertex> newLoop = mb.extrude(loops.get(loop), dir, distance, offset, 
+                                              segments, radius, twist);
+            mb.textureLoop(newLoop, new Vector2f(0, v), new Vector2f(uRepeat, 0));
+            generator.applyTangents(newLoop, inverted);
+            return addLoop(newLoop, inverted ? INVERTED_TANGENTS : TANGENTS, true);
+        }
+        
+        @Override
+        protected List<CurveStep> joint( List<CurveStep> steps, float startRadius, float startV ) {
+            jointSteps.add(steps.size());
+            return steps;
+        }
+        
+        @Override
+        protected Vector3f findCenter( int loop ) {
+            return mb.findCenter(loops.get(loop));
+        }
+    }
+ 
+    /**
+     *  Recalculates the loops of a new tree directly into the position
+     *  and tangent arrays.
+     */   
+    private class ReplayWalker extends Walker {
+        float[] pos;
+        float[] tangents;
+        int nextLoop;
+        int nextJoint;
+        int nextStructure;
+        
+        Vector3f center = new Vector3f();
+        Vector3f first = new Vector3f();
+        Vector3f base = new Vector3f();
+        Vector3f left = new Vector3f();
+        Vector3f up = new Vector3f();
+        Vector3f vert = new Vector3f();
+        Quaternion loopRotation = new Quaternion();
+        Quaternion local = new Quaternion();
+        
+        public ReplayWalker( float[] pos, float[] tangents ) {
+            this.pos = pos;
+            this.tangents = tangents;
+        }
+ 
+        @Override
+        protected void segment( Segment seg ) {
+            int i = nextStructure;
+            if( i + 2 > structure.length || structure[i] != seg.radials 
+                || structure[i + 1] != childCount(seg) ) {
+                throw new IllegalArgumentException("Tree does not match the template structure.");
+            }
+            nextStructure += 2;
+        }
+        
+        @Override
+        protected int baseLoop( Segment trunk ) {
+            // The trunk's base loop is the same for every tree
+            int loop = nextLoop++;
+            int start = loopStart[loop];
+            for( int i = 0; i < loopStart[loop + 1] - start; i++ ) {
+                int v = loopVertexes[start + i];
+                System.arraycopy(basePositions, i * 3, pos, v * 3, 3);
+                System.arraycopy(baseTangents, i * 3, tangents, v * 4, 3);
+                tangents[v * 4 + 3] = 1;
+            }
+            return loop;
+        }
+        
+        @Override
+        protected int invertLoop( int loop ) {
+            return nextLoop++;
+        }
+        
+        @Override
+        protected List<CurveStep> joint( List<CurveStep> steps, float startRadius, float startV ) {
+            if( nextJoint >= jointSteps.length ) {
+                throw new IllegalArgumentException("Tree does not match the template structure.");
+            }
+            return resampleCurve(steps, jointSteps[nextJoint++], startRadius, startV);
+        }
+        
+        @Override
+        protected Vector3f findCenter( int loop ) {
+            return loopCenter(loop, new Vector3f());
+        }
+        
+        private Vector3f loopCenter( int loop, Vector3f store ) {
+            store.set(0, 0, 0);
+            int start = loopStart[loop];
+            int count = loopStart[loop + 1] - start - 1;
+            for( int i = 0; i < count; i++ ) {
+                int v = loopVertexes[start + i] * 3;
+                store.addLocal(pos[v], pos[v + 1], pos[v + 2]);
+            }
+            return store.multLocal(1f / count);
+        }
+        
+        @Override
+        protected int extrude( int loop, Vector3f dir, float distance, Vector3f offset,
+                               int segments, float radius, float twist, 
+                               float v, int uRepeat, boolean inverted ) {
+            int result = nextLoop++;
+            int start = loopStart[result];
+            if( loopStart[result + 1] - start != segments + 1 ) {
+                throw new IllegalArgumentException("Tree does not match the template structure.");
+            }
+            
+            // Same as MeshBuilder.extrude()
+            loopCenter(loop, center);
+            int firstIndex = loopVertexes[loopStart[loop]] * 3;
+            first.set(pos[firstIndex], pos[firstIndex + 1], pos[firstIndex + 2]);
+            base.set(dir).multLocal(distance).addLocal(center);
+            
+            left.set(first).subtractLocal(center).normalizeLocal().multLocal(-1);
+            dir.cross(left, up).normalizeLocal();
+            loopRotation.fromAxes(left, up, dir);
+            
+            // Same as MeshBuilder.createLoop()
+            float angleDelta = FastMath.TWO_PI / segments;
+            twist += FastMath.PI;
+            for( int i = 0; i <= segments; i++ ) {
+                float a = i * angleDelta;
+                local.fromAngles(0, 0, a + twist);
+                loopRotation.mult(local, local);
+                vert.set(radius, 0, 0);
+                local.multLocal(vert);
+                vert.addLocal(base);
+                if( offset != null ) {
+                    vert.addLocal(offset);
+                }
+                int index = loopVertexes[start + i] * 3;
+                pos[index] = vert.x;
+                pos[index + 1] = vert.y;
+                pos[index + 2] = vert.z;
+            }
+            
+            // Same as SkinnedTreeMeshGenerator.applyTangents()
+            int tangentMode = loopTangents[result];
+            if( tangentMode != NO_TANGENTS ) {
+                float scale = tangentMode == INVERTED_TANGENTS ? -1 : 1;
+                for( int i = 1; i <= segments; i++ ) {
+                    int last = loopVertexes[start + i - 1];
+                    int next = loopVertexes[start + i];
+                    vert.set(pos[next * 3] - pos[last * 3], 
+                             pos[next * 3 + 1] - pos[last * 3 + 1], 
+                             pos[next * 3 + 2] - pos[last * 3 + 2]);
+                    vert.normalizeLocal().multLocal(scale);
+                    tangents[last * 4] = vert.x;
+                    tangents[last * 4 + 1] = vert.y;
+                    tangents[last * 4 + 2] = vert.z;
+                    tangents[last * 4 + 3] = 1;
+                }
+                int firstVert = loopVertexes[start] * 4;
+                int lastVert = loopVertexes[start + segments] * 4;
+                System.arraycopy(tangents, firstVert, tangents, lastVert, 4);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.service;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.simsilica.arboreal.Segment;
+import com.simsilica.arboreal.Tree;
+import com.simsilica.arboreal.mesh.LeafTipBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *  The result of generating a TreeRequest: the tree skeleton, its
+ *  branch tips, and ready to attach branch and leaf meshes for each
+ *  requested level of detail.
+ *
+ *  <p>Results are reference counted so that a GenerationCache knows when
+ *  nothing else is using them.  The cache and TreeGenerationService
+ *  acquire a reference for every caller that they hand a result to and
+ *  callers give it back with GenerationCache.release() once the meshes
+ *  are no longer used.  Callers that never release simply keep the result's
+ *  buffers alive until garbage collection.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class GeneratedTree {
+
+    /**
+     *  Approximate heap size of a Segment including its direction vector
+     *  and child array header.
+     */
+    private static final int SEGMENT_BYTES = 112;
+    
+    private final TreeRequest request;
+    private final Tree tree;
+    private final LeafTipBuffer tips;
+    private final List<Mesh> branchMeshes;
+    private final List<Mesh> leafMeshes;
+    private volatile long byteSize = -1;
+    private final AtomicInteger refs = new AtomicInteger();
+    
+    public GeneratedTree( TreeRequest request, Tree tree, LeafTipBuffer tips,
+                          List<Mesh> branchMeshes, List<Mesh> leafMeshes ) {
+        this.request = request;
+        this.tree = tree;
+        this.tips = tips;
+        this.branchMeshes = Collections.unmodifiableList(branchMeshes);
+        this.leafMeshes = leafMeshes == null ? null : Collections.unmodifiableList(leafMeshes);
+    }
+    
+    public TreeRequest getRequest() {
+        return request;
+    }
+    
+    public Tree getTree() {
+        return tree;
+    }
+    
+    public LeafTipBuffer getTips() {
+        return tips;
+    }
+ 
+    /**
+     *  Returns the branch mesh for each requested level of detail in 
+     *  request order.  Impostor levels have null entries.
+     */   
+    public List<Mesh> getBranchMeshes() {
+        return branchMeshes;
+    }
+ 
+    /**
+     *  Returns the leaf mesh for each requested level of detail in
+     *  request order or null if the tree has no leaves.  Levels with
+     *  the same leaf reduction share the same mesh.
+     */   
+    public List<Mesh> getLeafMeshes() {
+        return leafMeshes;
+    }
+    
+    /**
+     *  Returns the distinct vertex buffers used by the branch and leaf
+     *  meshes including LOD level index buffers.  Buffers used by more
+     *  than one mesh, like leaf meshes shared between levels, are only
+     *  included once.
+     */
+    public Set<VertexBuffer> getVertexBuffers() {
+        Set<VertexBuffer> result = Collections.newSetFromMap(new IdentityHashMap<VertexBuffer, Boolean>());
+        addBuffers(branchMeshes, result);
+        if( leafMeshes != null ) {
+            addBuffers(leafMeshes, result);
+        }
+        return result;
+    }
+ 
+    /**
+     *  Returns the vertex buffers that only this result's meshes use,
+     *  which is getVertexBuffers() without any index buffers.  Index buffers,
+     *  including LOD levels, may be shared with other trees through an
+     *  IndexBufferCache or between levels and are never considered owned.
+     */
+    public Set<VertexBuffer> getOwnedBuffers() {
+        Set<VertexBuffer> result = getVertexBuffers();
+        for( Iterator<VertexBuffer> it = result.iterator(); it.hasNext(); ) {
+            if( it.next().getBufferType() == Type.Index ) {
+                it.remove();
+            }
+        }
+        return result;
+    }
+ 
+    /**
+     *  Adds a reference for a new holder of this result and returns
+     *  this result.
+     */
+    public GeneratedTree acquire() {
+        refs.incrementAndGet();
+        return this;
+    }
+ 
+    /**
+     *  Removes a reference and returns true if it was the last one.
+     *  Callers given a result by a GenerationCache or TreeGenerationService
+     *  should use GenerationCache.release() instead so that the cache can 
+     *  free the buffers.
+     */
+    public boolean release() {
+        int count = refs.decrementAndGet();
+        if( count < 0 ) {
+            refs.incrementAndGet();
+            throw new IllegalStateException("Released more often than acquired:" + this);
+        }
+        return count == 0;
+    }
+    
+    public int getReferenceCount() {
+        return refs.get();
+    }
+ 
+    /**
+     *  Returns the approximate memory used by this result: the size of the
+     *  distinct mesh buffers plus an estimate of the skeleton and tips.
+     *  The value is calculated once and then remembered.
+     */   
+    public long getByteSize() {
+        long result = byteSize;
+        if( result < 0 ) {
+            result = 0;
+            for( VertexBuffer vb : getVertexBuffers() ) {
+                result += byteSize(vb);
+            }
+            for( Segment seg : tree ) {
+                result += skeletonSize(seg);
+            }
+            if( tips != null ) {
+                result += 4L * tips.getArray().length;
+            }
+            byteSize = result;
+        }
+        return result;
+    }
+    
+    protected static long byteSize( VertexBuffer vb ) {
+        if( vb.getData() == null ) {
+            return 0;
+        }
+        return (long)vb.getData().capacity() * vb.getFormat().getComponentSize();
+    }
+ 
+    private static long skeletonSize( Segment seg ) {
+        if( seg == null ) {
+            return 0;
+        }
+        long result = SEGMENT_BYTES;
+        if( seg.children != null ) {
+            result += 4L * seg.children.length;
+            for( Segment child : seg.children ) {
+                result += skeletonSize(child);
+            }
+        }
+        return result;
+    }
+    
+    private static void addBuffers( List<Mesh> meshes, Set<VertexBuffer> store ) {
+        for( Mesh mesh : meshes ) {
+            if( mesh == null ) {
+                continue;
+            }
+            for( VertexBuffer vb : mesh.getBufferList() ) {
+                store.add(vb);
+            }
+            for( int i = 0; i < mesh.getNumLodLevels(); i++ ) {
+                store.add(mesh.getLodLevel(i));
+            }
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "GeneratedTree[" + request + "]";
+    }
+}
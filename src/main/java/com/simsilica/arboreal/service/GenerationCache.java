@@ -0,0 +1,524 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.service;
+
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  A least-recently-used cache of GeneratedTrees bounded by their byte
+ *  size (GeneratedTree.getByteSize()).  Entries are keyed by TreeRequest
+ *  so lookups match on parameter content, seed, and levels of detail.
+ *  Give it to TreeGenerationService.setCache() so that requests for
+ *  recently generated trees, like a chunk that is reloaded shortly after 
+ *  being unloaded, complete immediately.
+ *
+ *  <p>When the soft tier is enabled, entries evicted from the size
+ *  bounded tier are kept through SoftReferences until the garbage
+ *  collector needs the memory.  Otherwise evicted entries can optionally 
+ *  have their direct buffers freed instead of waiting for garbage 
+ *  collection.  The cache holds a reference to each strongly held result
+ *  (see GeneratedTree.acquire()) and get() acquires one for the caller,
+ *  so an evicted result is only freed once every caller has given its
+ *  reference back through release().  Only the result's owned buffers are
+ *  freed, never index buffers that may be shared with other trees.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class GenerationCache {
+
+    static Logger log = LoggerFactory.getLogger(GenerationCache.class);
+ 
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<TreeRequest, GeneratedTree> entries 
+                    = new LinkedHashMap<TreeRequest, GeneratedTree>(16, 0.75f, true);
+    private final Map<TreeRequest, SoftEntry> softEntries = new HashMap<TreeRequest, SoftEntry>();
+    private final ReferenceQueue<GeneratedTree> softQueue = new ReferenceQueue<GeneratedTree>();
+    private long maxBytes;
+    private long bytes;
+    private boolean softTier;
+    private boolean releaseBuffers;
+    private volatile boolean releaseFailed;
+    
+    private long hits;
+    private long softHits;
+    private long misses;
+    private long evictions;
+    private long evictedBytes;
+    private long releasedBytes;
+    
+    public GenerationCache( long maxBytes ) {
+        this.maxBytes = maxBytes;
+    }
+ 
+    /**
+     *  Sets the maximum total byte size of the strongly held entries,
+     *  evicting least recently used entries as needed.
+     */   
+    public void setMaxBytes( long maxBytes ) {
+        List<GeneratedTree> evicted;
+        lock.lock();
+        try {
+            this.maxBytes = maxBytes;
+            evicted = trim();
+        } finally {
+            lock.unlock();
+        }
+        released(evicted);
+    }
+    
+    public long getMaxBytes() {
+        lock.lock();
+        try {
+            return maxBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Set to true to keep evicted entries softly reachable so that they
+     *  can still be returned until the garbage collector clears them.
+     *  Defaults to false.
+     */   
+    public void setSoftTierEnabled( boolean softTier ) {
+        lock.lock();
+        try {
+            this.softTier = softTier;
+            if( !softTier ) {
+                softEntries.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean isSoftTierEnabled() {
+        lock.lock();
+        try {
+            return softTier;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Set to true to free the owned direct buffers of evicted entries that
+     *  are not moved to the soft tier once they are no longer referenced.
+     *  Defaults to false.
+     */   
+    public void setReleaseBuffersOnEvict( boolean releaseBuffers ) {
+        lock.lock();
+        try {
+            this.releaseBuffers = releaseBuffers;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean isReleaseBuffersOnEvict() {
+        lock.lock();
+        try {
+            return releaseBuffers;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Returns the cached result for the specified request or null if
+     *  there isn't one.  Results found in the soft tier are moved back
+     *  to the size bounded tier.  A reference is acquired for the caller
+     *  which should be given back with release() when done with the result.
+     */   
+    public GeneratedTree get( TreeRequest request ) {
+        List<GeneratedTree> evicted = null;
+        GeneratedTree result;
+        lock.lock();
+        try {
+            result = entries.get(request);
+            if( result != null ) {
+                hits++;
+                return result.acquire();
+            }
+            purgeSoft();
+            SoftEntry soft = softEntries.remove(request);
+            result = soft == null ? null : soft.get();
+            if( result == null ) {
+                misses++;
+                return null;
+            }
+            softHits++;
+            result.acquire();
+            evicted = add(result);
+        } finally {
+            lock.unlock();
+        }
+        released(evicted);
+        return result;
+    }
+ 
+    /**
+     *  Adds the specified result to the cache under its request, evicting
+     *  least recently used entries as needed.  Results larger than the
+     *  maximum size go directly to the soft tier if it is enabled.
+     */   
+    public void put( GeneratedTree tree ) {
+        // Calculate the size outside of the lock
+        tree.getByteSize();
+        List<GeneratedTree> evicted;
+        lock.lock();
+        try {
+            softEntries.remove(tree.getRequest());
+            evicted = add(tree);
+        } finally {
+            lock.unlock();
+        }
+        released(evicted);
+    }
+ 
+    /**
+     *  Removes and returns the cached result for the specified request
+     *  without releasing its buffers.  The caller is given the cache's
+     *  reference to the result.
+     */   
+    public GeneratedTree remove( TreeRequest request ) {
+        lock.lock();
+        try {
+            GeneratedTree result = entries.remove(request);
+            if( result != null ) {
+                bytes -= result.getByteSize();
+                return result;
+            }
+            SoftEntry soft = softEntries.remove(request);
+            result = soft == null ? null : soft.get();
+            return result == null ? null : result.acquire();
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Removes all entries, dropping the cache's references without
+     *  releasing any buffers.
+     */   
+    public void clear() {
+        lock.lock();
+        try {
+            for( GeneratedTree tree : entries.values() ) {
+                tree.release();
+            }
+            entries.clear();
+            softEntries.clear();
+            bytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Gives back a reference to a result acquired from get() or from a
+     *  TreeGenerationService request.  If buffer release is enabled and this
+     *  was the last reference to a result that is no longer cached then
+     *  its owned buffers are freed.
+     */
+    public void release( GeneratedTree tree ) {
+        lock.lock();
+        try {
+            if( !tree.release() || !releaseBuffers ) {
+                return;
+            }
+            // An unreferenced result can't be strongly held but it
+            // could still be in the soft tier
+            SoftEntry soft = softEntries.get(tree.getRequest());
+            if( soft != null && soft.get() == tree ) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        released(Collections.singletonList(tree));
+    }
+ 
+    /**
+     *  Returns the number of strongly held entries.
+     */   
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Returns the number of soft tier entries that have not been cleared
+     *  by the garbage collector yet.
+     */   
+    public int getSoftSize() {
+        lock.lock();
+        try {
+            purgeSoft();
+            return softEntries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Returns the total byte size of the strongly held entries.
+     */   
+    public long getByteSize() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getHitCount() {
+        lock.lock();
+        try {
+            return hits;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Returns the number of hits that were satisfied from the soft tier.
+     *  These are not included in getHitCount().
+     */   
+    public long getSoftHitCount() {
+        lock.lock();
+        try {
+            return softHits;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getMissCount() {
+        lock.lock();
+        try {
+            return misses;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Returns the number of entries evicted from the size bounded tier.
+     */   
+    public long getEvictionCount() {
+        lock.lock();
+        try {
+            return evictions;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getEvictedBytes() {
+        lock.lock();
+        try {
+            return evictedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Returns the number of direct buffer bytes explicitly freed for 
+     *  evicted entries.
+     */   
+    public long getReleasedBytes() {
+        lock.lock();
+        try {
+            return releasedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Frees the owned direct buffers of the specified result.  Called outside
+     *  of the cache lock for unreferenced evicted entries when buffer release 
+     *  is enabled.
+     */   
+    protected long releaseBuffers( GeneratedTree tree ) {
+        long result = 0;
+        for( VertexBuffer vb : tree.getOwnedBuffers() ) {
+            if( releaseFailed ) {
+                break;
+            }
+            if( vb.getData() == null || !vb.getData().isDirect() ) {
+                continue;
+            }
+            long size = GeneratedTree.byteSize(vb);
+            try {
+                BufferUtils.destroyDirectBuffer(vb.getData());
+                result += size;
+            } catch( RuntimeException e ) {
+                // Some JVMs don't allow JME to reach the buffer cleaner.  Leave
+                // the buffers to the garbage collector from then on.
+                log.warn("Unable to release direct buffers, leaving them to GC", e);
+                releaseFailed = true;
+            }
+        }
+        return result;
+    }
+ 
+    /**
+     *  Adds the entry to the strong tier and returns any entries that 
+     *  need their buffers released.  Must be called with the lock held.
+     */   
+    private List<GeneratedTree> add( GeneratedTree tree ) {
+        long size = tree.getByteSize();
+        List<GeneratedTree> result = null;
+        
+        // Acquire first in case the existing entry is the same result
+        boolean strong = size <= maxBytes;
+        if( strong ) {
+            tree.acquire();
+        }
+        GeneratedTree existing = entries.remove(tree.getRequest());
+        if( existing != null ) {
+            bytes -= existing.getByteSize();
+            result = drop(existing, null);
+        }
+        if( !strong ) {
+            // Too big to keep strongly
+            if( softTier ) {
+                softEntries.put(tree.getRequest(), new SoftEntry(tree, softQueue));
+            }
+            return result;
+        }
+        entries.put(tree.getRequest(), tree);
+        bytes += size;
+        return trim(result);
+    }
+ 
+    private List<GeneratedTree> trim() {
+        return trim(null);
+    }
+    
+    private List<GeneratedTree> trim( List<GeneratedTree> result ) {
+        Iterator<GeneratedTree> it = entries.values().iterator();
+        while( bytes > maxBytes && it.hasNext() ) {
+            GeneratedTree eldest = it.next();
+            it.remove();
+            long size = eldest.getByteSize();
+            bytes -= size;
+            evictions++;
+            evictedBytes += size;
+            if( softTier ) {
+                softEntries.put(eldest.getRequest(), new SoftEntry(eldest, softQueue));
+            }
+            result = drop(eldest, result);
+        }
+        return result;
+    }
+ 
+    /**
+     *  Drops the cache's reference to a result that is no longer strongly
+     *  held, adding it to the list of results to free if nothing else
+     *  references it.  Must be called with the lock held.
+     */   
+    private List<GeneratedTree> drop( GeneratedTree tree, List<GeneratedTree> result ) {
+        if( !tree.release() || softTier || !releaseBuffers ) {
+            return result;
+        }
+        if( result == null ) {
+            result = new ArrayList<GeneratedTree>();
+        }
+        result.add(tree);
+        return result;
+    }
+    
+    private void released( List<GeneratedTree> evicted ) {
+        if( evicted == null ) {
+            return;
+        }
+        long total = 0;
+        for( GeneratedTree tree : evicted ) {
+            total += releaseBuffers(tree);
+        }
+        if( log.isDebugEnabled() ) {
+            log.debug("Released " + total + " bytes from " + evicted.size() + " evicted trees");
+        }
+        lock.lock();
+        try {
+            releasedBytes += total;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    private void purgeSoft() {
+        SoftEntry cleared;
+        while( (cleared = (SoftEntry)softQueue.poll()) != null ) {
+            if( softEntries.get(cleared.request) == cleared ) {
+                softEntries.remove(cleared.request);
+            }
+        }
+    }
+ 
+    private static class SoftEntry extends SoftReference<GeneratedTree> {
+        final TreeRequest request;
+        
+        public SoftEntry( GeneratedTree tree, ReferenceQueue<GeneratedTree> queue ) {
+            super(tree, queue);
+            this.request = tree.getRequest();
+        }
+    }
+}
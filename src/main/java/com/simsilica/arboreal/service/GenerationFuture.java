@@ -0,0 +1,97 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.service;
+
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ *  The pending result of a TreeGenerationService request.  The priority
+ *  can be changed while the request is queued, for example as the camera
+ *  moves.  Cancelling the future withdraws its interest in the result;
+ *  the underlying work is dropped or aborted once no other requests for
+ *  the same tree are interested in it.
+ *
+ *  @author    Paul Speed
+ */
+public class GenerationFuture extends CompletableFuture<GeneratedTree> {
+ 
+    private final TreeGenerationService service;
+    private final TreeRequest request;
+    private volatile double priority;
+    TreeGenerationService.Job job; // guarded by the service lock
+    
+    GenerationFuture( TreeGenerationService service, TreeRequest request, double priority ) {
+        this.service = service;
+        this.request = request;
+        this.priority = priority;
+    }
+    
+    public TreeRequest getRequest() {
+        return request;
+    }
+ 
+    /**
+     *  Changes the priority of this request.  Lower values are generated
+     *  first.  This has no effect once generation of the tree has started.
+     */   
+    public void setPriority( double priority ) {
+        if( this.priority == priority ) {
+            return;
+        }
+        this.priority = priority;
+        service.priorityChanged(this);
+    }
+    
+    public double getPriority() {
+        return priority;
+    }
+ 
+    @Override   
+    public boolean cancel( boolean mayInterruptIfRunning ) {
+        boolean result = super.cancel(mayInterruptIfRunning);
+        if( result ) {
+            service.cancelled(this);
+        }
+        return result;
+    }
+    
+    @Override
+    public String toString() {
+        return "GenerationFuture[" + request + ", priority=" + priority + "]";
+    }
+}
@@ -0,0 +1,759 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.service;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Format;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.util.BufferUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  A persistent cache of baked tree meshes stored in a single memory
+ *  mapped pack file.  Meshes are keyed by parameter content hash, seed,
+ *  LOD index, and part (branches or leaves).  Loading a mesh slices its
+ *  buffers directly out of the mapped file so nothing is copied or
+ *  parsed.  The file is mapped copy-on-write (JME does not accept
+ *  read-only buffers), so changes to loaded buffers are never written
+ *  back to the file.  Bounds are stored as well, so loading never has
+ *  to scan the vertex data.
+ *
+ *  <p>New meshes are appended to the end of the file.  flush() writes a
+ *  fresh index after them and only then updates the header to point to it,
+ *  so a crash while storing loses only the unflushed meshes.  close()
+ *  flushes.  Each flush leaves the old index behind as unused space.
+ *  Buffers in the file are little-endian.  On big-endian JVMs loading
+ *  copies them into native buffers.</p>
+ *
+ *  <p>File layout: a 32 byte header (magic, version, index offset, index
+ *  length, entry count) followed by mesh data, each buffer 16 byte aligned
+ *  and no mesh crossing a 1 GB mapping segment, followed by the index.
+ *  Each index entry holds the key, mode, bounds, and for each buffer
+ *  its type, format, components, LOD level (-1 for regular buffers), 
+ *  offset, and element count.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class MeshBakeCache {
+
+    static Logger log = LoggerFactory.getLogger(MeshBakeCache.class);
+ 
+    public static final int MAGIC = 0x5350414B; // "SPAK"
+    public static final int VERSION = 1;
+    
+    public static final int PART_BRANCHES = 0;
+    public static final int PART_LEAVES = 1;
+ 
+    private static final int HEADER_SIZE = 32;
+    private static final int ALIGNMENT = 16;
+    private static final long SEGMENT_SIZE = 1L << 30;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+    private final Map<Long, Entry> byOffset = new HashMap<Long, Entry>(); 
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private long dataEnd;
+    private boolean dirty;
+    
+    private long hits;
+    private long misses;
+    private long loadedBytes;
+    private long storedBytes;
+ 
+    /**
+     *  Opens the specified pack file, creating it if it doesn't exist.
+     */   
+    public MeshBakeCache( File file ) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        if( channel.size() == 0 ) {
+            writeHeader(0, 0, 0);
+            dataEnd = HEADER_SIZE;
+        } else {
+            readIndex();
+        }
+    }
+    
+    public File getFile() {
+        return file;
+    }
+ 
+    public boolean contains( long parmsHash, int seed, int lod, int part ) {
+        lock.lock();
+        try {
+            return entries.containsKey(new Key(parmsHash, seed, lod, part));
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean contains( TreeRequest request ) {
+        lock.lock();
+        try {
+            for( int lod : request.getLodIndexes() ) {
+                if( !entries.containsKey(new Key(request.getParametersHash(), request.getSeed(), 
+                                                 lod, PART_BRANCHES)) ) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Returns the number of stored meshes.
+     */   
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Loads the specified mesh or returns null if it is not in the cache
+     *  or was stored as null.  Use contains() to tell those apart.
+     */   
+    public Mesh load( long parmsHash, int seed, int lod, int part ) throws IOException {
+        lock.lock();
+        try {
+            Entry entry = entries.get(new Key(parmsHash, seed, lod, part));
+            if( entry == null ) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return createMesh(entry, new HashMap<Long, VertexBuffer>());
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Loads all of the branch meshes for the request in request LOD 
+     *  order or returns null if any of them are missing.
+     */   
+    public List<Mesh> loadBranches( TreeRequest request ) throws IOException {
+        return load(request, PART_BRANCHES);
+    }
+    
+    /**
+     *  Loads all of the leaf meshes for the request in request LOD 
+     *  order or returns null if any of them are missing.  Meshes that were
+     *  shared between levels when stored are shared again.
+     */   
+    public List<Mesh> loadLeaves( TreeRequest request ) throws IOException {
+        return load(request, PART_LEAVES);
+    }
+    
+    protected List<Mesh> load( TreeRequest request, int part ) throws IOException {
+        int[] lods = request.getLodIndexes();
+        lock.lock();
+        try {
+            Entry[] found = new Entry[lods.length];
+            for( int i = 0; i < lods.length; i++ ) {
+                found[i] = entries.get(new Key(request.getParametersHash(), request.getSeed(), 
+                                               lods[i], part));
+                if( found[i] == null ) {
+                    misses++;
+                    return null;
+                }
+            }
+            hits++;
+            List<Mesh> result = new ArrayList<Mesh>(lods.length);
+            Map<Entry, Mesh> meshes = new IdentityHashMap<Entry, Mesh>();
+            Map<Long, VertexBuffer> buffers = new HashMap<Long, VertexBuffer>();
+            for( Entry entry : found ) {
+                Mesh mesh = meshes.get(entry.canonical);
+                if( mesh == null && entry.mode != null ) {
+                    mesh = createMesh(entry, buffers);
+                    meshes.put(entry.canonical, mesh);
+                }
+                result.add(mesh);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Stores the specified mesh, replacing any existing mesh with the same
+     *  key.  A null mesh is recorded as a null entry, like an impostor level.
+     *  The mesh becomes visible to other instances opening the file after
+     *  the next flush().
+     */   
+    public void store( long parmsHash, int seed, int lod, int part, Mesh mesh ) throws IOException {
+        lock.lock();
+        try {
+            Entry entry = write(new Key(parmsHash, seed, lod, part), mesh, 
+                                new IdentityHashMap<VertexBuffer, BufferInfo>());
+            entries.put(entry.key, entry);
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Stores the branch and leaf meshes of the generated tree.  Buffers
+     *  shared between the tree's meshes are only written once.
+     */   
+    public void store( GeneratedTree tree ) throws IOException {
+        TreeRequest request = tree.getRequest();
+        int[] lods = request.getLodIndexes();
+        lock.lock();
+        try {
+            Map<VertexBuffer, BufferInfo> written = new IdentityHashMap<VertexBuffer, BufferInfo>();
+            for( int i = 0; i < lods.length; i++ ) {
+                Key key = new Key(request.getParametersHash(), request.getSeed(), lods[i], PART_BRANCHES);
+                Entry entry = write(key, tree.getBranchMeshes().get(i), written);
+                entries.put(key, entry);
+            }
+            if( tree.getLeafMeshes() != null ) {
+                for( int i = 0; i < lods.length; i++ ) {
+                    Key key = new Key(request.getParametersHash(), request.getSeed(), lods[i], PART_LEAVES);
+                    Entry entry = write(key, tree.getLeafMeshes().get(i), written);
+                    entries.put(key, entry);
+                }
+            }
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Writes the index for all stored meshes and points the header at it.
+     */   
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            if( !dirty ) {
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bytes));
+            for( Entry entry : entries.values() ) {
+                entry.write(out);
+            }
+            out.close();
+            
+            long indexOffset = dataEnd;
+            channel.write(ByteBuffer.wrap(bytes.toByteArray()), indexOffset);
+            channel.force(false);
+            writeHeader(indexOffset, bytes.size(), entries.size());
+            channel.force(false);
+            
+            // New data goes after the index so that the current header
+            // stays valid until the next flush
+            dataEnd = align(indexOffset + bytes.size());
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            flush();
+            segments.clear();
+            raf.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getHitCount() {
+        lock.lock();
+        try {
+            return hits;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getMissCount() {
+        lock.lock();
+        try {
+            return misses;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Returns the total size of the buffers handed out by load calls.
+     */   
+    public long getLoadedBytes() {
+        lock.lock();
+        try {
+            return loadedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     *  Returns the total size of the buffers written by store calls since
+     *  the file was opened.
+     */
+    public long getStoredBytes() {
+        lock.lock();
+        try {
+            return storedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "MeshBakeCache[" + file + ", entries=" + size() + "]";
+    }
+ 
+    private void writeHeader( long indexOffset, int indexLength, int entryCount ) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(indexOffset);
+        header.putInt(indexLength);
+        header.putInt(entryCount);
+        header.clear();
+        channel.write(header, 0);
+    }
+ 
+    private void readIndex() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if( header.remaining() < HEADER_SIZE || header.getInt() != MAGIC ) {
+            throw new IOException("Not a mesh pack file:" + file);
+        }
+        int version = header.getInt();
+        if( version != VERSION ) {
+            throw new IOException("Unsupported mesh pack version:" + version);
+        }
+        long indexOffset = header.getLong();
+        int indexLength = header.getInt();
+        int entryCount = header.getInt();
+        if( indexOffset == 0 ) {
+            dataEnd = Math.max(HEADER_SIZE, align(channel.size()));
+            return;
+        }
+        
+        channel.position(indexOffset);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                        Channels.newInputStream(channel), 65536));
+        for( int i = 0; i < entryCount; i++ ) {
+            Entry entry = Entry.read(in);
+            entries.put(entry.key, entry);
+            findCanonical(entry);
+        }
+        
+        // Append after everything, including the current index
+        dataEnd = align(Math.max(indexOffset + indexLength, channel.size()));
+        if( log.isDebugEnabled() ) {
+            log.debug("Read " + entryCount + " entries from:" + file);
+        }        
+    }
+ 
+    private Entry write( Key key, Mesh mesh, Map<VertexBuffer, BufferInfo> written ) throws IOException {
+        Entry entry = new Entry(key);
+        if( mesh == null ) {
+            return entry;
+        }
+        entry.mode = mesh.getMode();
+        BoundingVolume bound = mesh.getBound();
+        if( bound instanceof BoundingBox ) {
+            BoundingBox bb = (BoundingBox)bound;
+            entry.center = bb.getCenter().clone();
+            entry.extent = bb.getExtent(null);
+        }
+        
+        List<VertexBuffer> list = new ArrayList<VertexBuffer>();
+        List<Integer> levels = new ArrayList<Integer>();
+        for( VertexBuffer vb : mesh.getBufferList() ) {
+            if( vb.getData() != null ) {
+                list.add(vb);
+                levels.add(-1);
+            }
+        }
+        for( int i = 0; i < mesh.getNumLodLevels(); i++ ) {
+            list.add(mesh.getLodLevel(i));
+            levels.add(i);
+        }
+ 
+        // Keep the whole mesh inside one mapping segment       
+        long size = 0;
+        for( VertexBuffer vb : list ) {
+            if( !written.containsKey(vb) ) {
+                size += align(GeneratedTree.byteSize(vb));
+            }
+        }
+        if( size > SEGMENT_SIZE ) {
+            throw new IllegalArgumentException("Mesh too large to store:" + size);
+        }
+        if( dataEnd / SEGMENT_SIZE != (dataEnd + size - 1) / SEGMENT_SIZE ) {
+            dataEnd = (dataEnd / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+        }
+        
+        entry.buffers = new BufferInfo[list.size()];
+        for( int i = 0; i < list.size(); i++ ) {
+            VertexBuffer vb = list.get(i);
+            BufferInfo info = written.get(vb);
+            if( info == null ) {
+                info = writeBuffer(vb);
+                written.put(vb, info);
+            }
+            entry.buffers[i] = info.forLevel(levels.get(i));
+        }
+        findCanonical(entry);
+        return entry;
+    }
+ 
+    /**
+     *  Links entries that were stored from the same mesh, ie: that have
+     *  exactly the same buffers, so that loading them together produces
+     *  one shared mesh again.
+     */   
+    private void findCanonical( Entry entry ) {
+        if( entry.buffers.length == 0 ) {
+            return;
+        }
+        Entry existing = byOffset.get(entry.buffers[0].offset);
+        if( existing != null && existing.sameBuffers(entry) ) {
+            entry.canonical = existing.canonical;
+        } else {
+            byOffset.put(entry.buffers[0].offset, entry);
+        }
+    }
+    
+    private BufferInfo writeBuffer( VertexBuffer vb ) throws IOException {
+        Buffer source = vb.getData();
+        int count = source.limit();
+        int elementSize = vb.getFormat().getComponentSize();
+        ByteBuffer bytes = ByteBuffer.allocate(count * elementSize).order(ByteOrder.LITTLE_ENDIAN);
+        if( source instanceof FloatBuffer ) {
+            FloatBuffer fb = ((FloatBuffer)source).duplicate();
+            fb.rewind();
+            bytes.asFloatBuffer().put(fb);
+        } else if( source instanceof IntBuffer ) {
+            IntBuffer ib = ((IntBuffer)source).duplicate();
+            ib.rewind();
+            bytes.asIntBuffer().put(ib);
+        } else if( source instanceof ShortBuffer ) {
+            ShortBuffer sb = ((ShortBuffer)source).duplicate();
+            sb.rewind();
+            bytes.asShortBuffer().put(sb);
+        } else if( source instanceof ByteBuffer ) {
+            ByteBuffer bb = ((ByteBuffer)source).duplicate();
+            bb.rewind();
+            bytes.put(bb);
+        } else {
+            throw new IllegalArgumentException("Unsupported buffer type:" + source);
+        }
+        bytes.clear();
+        
+        long offset = dataEnd;
+        while( bytes.hasRemaining() ) {
+            channel.write(bytes, offset + bytes.position());
+        }
+        dataEnd = align(offset + bytes.capacity());
+        storedBytes += bytes.capacity();
+        return new BufferInfo(vb.getBufferType(), vb.getFormat(), vb.getNumComponents(), 
+                              -1, offset, count);
+    }
+ 
+    private Mesh createMesh( Entry entry, Map<Long, VertexBuffer> loaded ) throws IOException {
+        if( entry.mode == null ) {
+            return null;
+        }
+        Mesh mesh = new Mesh();
+        mesh.setMode(entry.mode);
+        VertexBuffer[] lods = null;
+        for( BufferInfo info : entry.buffers ) {
+            VertexBuffer vb = loaded.get(info.offset);
+            if( vb == null || vb.getBufferType() != info.type ) {
+                vb = new VertexBuffer(info.type);
+                vb.setupData(VertexBuffer.Usage.Static, info.components, info.format, slice(info));
+                loaded.put(info.offset, vb);
+                loadedBytes += (long)info.count * info.format.getComponentSize();
+            }
+            if( info.level < 0 ) {
+                mesh.setBuffer(vb);
+            } else {
+                if( lods == null ) {
+                    lods = new VertexBuffer[countLevels(entry)];
+                }
+                lods[info.level] = vb;
+            }
+        }
+        if( lods != null ) {
+            mesh.setLodLevels(lods);
+        }
+        mesh.updateCounts();
+        if( entry.center != null ) {
+            mesh.setBound(new BoundingBox(entry.center, entry.extent.x, entry.extent.y, entry.extent.z));
+        } else {
+            mesh.updateBound();
+        }
+        return mesh;
+    }
+    
+    private static int countLevels( Entry entry ) {
+        int result = 0;
+        for( BufferInfo info : entry.buffers ) {
+            result = Math.max(result, info.level + 1);
+        }
+        return result;
+    }
+    
+    private Buffer slice( BufferInfo info ) throws IOException {
+        int bytes = info.count * info.format.getComponentSize();
+        int segment = (int)(info.offset / SEGMENT_SIZE);
+        int start = (int)(info.offset % SEGMENT_SIZE);
+        ByteBuffer data = getSegment(segment, start + bytes).duplicate();
+        data.limit(start + bytes);
+        data.position(start);
+        data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        
+        boolean copy = ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN;
+        switch( info.format ) {
+            case Float:
+                return copy ? BufferUtils.createFloatBuffer(info.count).put(data.asFloatBuffer()).flip() 
+                            : data.asFloatBuffer();
+            case Int:
+            case UnsignedInt:
+                return copy ? BufferUtils.createIntBuffer(info.count).put(data.asIntBuffer()).flip() 
+                            : data.asIntBuffer();
+            case Short:
+            case UnsignedShort:
+                return copy ? BufferUtils.createShortBuffer(info.count).put(data.asShortBuffer()).flip() 
+                            : data.asShortBuffer();
+            case Byte:
+            case UnsignedByte:
+                return data;
+            default:
+                throw new IOException("Unsupported buffer format:" + info.format);
+        }
+    }
+    
+    private MappedByteBuffer getSegment( int index, int minSize ) throws IOException {
+        while( segments.size() <= index ) {
+            segments.add(null);
+        }
+        MappedByteBuffer result = segments.get(index);
+        if( result == null || result.capacity() < minSize ) {
+            long start = index * SEGMENT_SIZE;
+            long size = Math.min(SEGMENT_SIZE, channel.size() - start);
+            result = channel.map(FileChannel.MapMode.PRIVATE, start, size);
+            segments.set(index, result);
+        }
+        return result;
+    }
+ 
+    private static long align( long offset ) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+ 
+    private static class Key {
+        final long parmsHash;
+        final int seed;
+        final int lod;
+        final int part;
+        
+        public Key( long parmsHash, int seed, int lod, int part ) {
+            this.parmsHash = parmsHash;
+            this.seed = seed;
+            this.lod = lod;
+            this.part = part;
+        }
+        
+        @Override
+        public boolean equals( Object o ) {
+            if( !(o instanceof Key) ) {
+                return false;
+            }
+            Key other = (Key)o;
+            return parmsHash == other.parmsHash && seed == other.seed 
+                    && lod == other.lod && part == other.part;
+        }
+        
+        @Override
+        public int hashCode() {
+            int result = (int)(parmsHash ^ (parmsHash >>> 32));
+            result = 31 * result + seed;
+            result = 31 * result + lod;
+            result = 31 * result + part;
+            return result;
+        }
+    }
+    
+    private static class BufferInfo {
+        final Type type;
+        final Format format;
+        final int components;
+        final int level;
+        final long offset;
+        final int count;
+        
+        public BufferInfo( Type type, Format format, int components, int level, long offset, int count ) {
+            this.type = type;
+            this.format = format;
+            this.components = components;
+            this.level = level;
+            this.offset = offset;
+            this.count = count;
+        }
+        
+        public BufferInfo forLevel( int level ) {
+            if( level == this.level ) {
+                return this;
+            }
+            return new BufferInfo(type, format, components, level, offset, count);
+        }
+    }
+    
+    private static class Entry {
+        final Key key;
+        Entry canonical = this;
+        Mesh.Mode mode;
+        Vector3f center;
+        Vector3f extent;
+        BufferInfo[] buffers = new BufferInfo[0];
+        
+        public Entry( Key key ) {
+            this.key = key;
+        }
+        
+        public boolean sameBuffers( Entry other ) {
+            if( buffers.length != other.buffers.length ) {
+                return false;
+            }
+            for( int i = 0; i < buffers.length; i++ ) {
+                if( buffers[i].offset != other.buffers[i].offset 
+                    || buffers[i].level != other.buffers[i].level ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        public void write( DataOutputStream out ) throws IOException {
+            out.writeLong(key.parmsHash);
+            out.writeInt(key.seed);
+            out.writeInt(key.lod);
+            out.writeInt(key.part);
+            out.writeUTF(mode == null ? "" : mode.name());
+            out.writeBoolean(center != null);
+            if( center != null ) {
+                out.writeFloat(center.x);
+                out.writeFloat(center.y);
+                out.writeFloat(center.z);
+                out.writeFloat(extent.x);
+                out.writeFloat(extent.y);
+                out.writeFloat(extent.z);
+            }
+            out.writeInt(buffers.length);
+            for( BufferInfo info : buffers ) {
+                out.writeUTF(info.type.name());
+                out.writeUTF(info.format.name());
+                out.writeInt(info.components);
+                out.writeInt(info.level);
+                out.writeLong(info.offset);
+                out.writeInt(info.count);
+            }
+        }
+        
+        public static Entry read( DataInputStream in ) throws IOException {
+            Entry result = new Entry(new Key(in.readLong(), in.readInt(), in.readInt(), in.readInt()));
+            String mode = in.readUTF();
+            result.mode = mode.length() == 0 ? null : Mesh.Mode.valueOf(mode);
+            if( in.readBoolean() ) {
+                result.center = new Vector3f(in.readFloat(), in.readFloat(), in.readFloat());
+                result.extent = new Vector3f(in.readFloat(), in.readFloat(), in.readFloat());
+            }
+            result.buffers = new BufferInfo[in.readInt()];
+            for( int i = 0; i < result.buffers.length; i++ ) {
+                result.buffers[i] = new BufferInfo(Type.valueOf(in.readUTF()), 
+                                                   Format.valueOf(in.readUTF()),
+                                                   in.readInt(), in.readInt(), 
+                                                   in.readLong(), in.readInt());
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.service;
+
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.Renderer;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *  Hands finished meshes from generation threads to the render thread
+ *  a few at a time so that new buffers are not all uploaded in the
+ *  same frame.  Any thread can offer() an attach action along with its
+ *  location and size.  Once per frame the render thread calls update()
+ *  and the closest pending actions are run until the frame's byte, mesh,
+ *  or time budget is used up.  At least one action runs each frame while
+ *  any are pending, so a single oversized tree cannot stall the queue.
+ *
+ *  <p>JME uploads a buffer the first time its geometry is rendered and
+ *  trees usually keep all but one level hidden, so attaching a tree does
+ *  not upload most of it.  The hidden levels would then upload in a burst
+ *  as LODs switch.  When the queue has a RenderManager and an upload is
+ *  given the spatial it attaches, that spatial is preloaded right after
+ *  the attach action runs so that the bytes charged to the frame are
+ *  really uploaded in that frame, including every level and the meshes'
+ *  LOD index buffers.  Without them, only the budgeting is done.</p>
+ *
+ *  <p>Time is read from a TimeSource so that the budgeting can be driven
+ *  by a fake clock when testing without a renderer.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class MeshUploadQueue {
+ 
+    /**
+     *  Provides the current time in nanoseconds.
+     */
+    public interface TimeSource {
+        public long getTime();
+    }
+    
+    public static final TimeSource SYSTEM_TIME = new TimeSource() {
+            public long getTime() {
+                return System.nanoTime();
+            }
+        };
+    
+    private static final int QUEUED = 0;
+    private static final int STARTED = 1;
+    private static final int CANCELLED = 2;
+    
+    private static final Comparator<Upload> DISTANCE_ORDER = new Comparator<Upload>() {
+            public int compare( Upload a, Upload b ) {
+                int result = Float.compare(a.distanceSq, b.distanceSq);
+                if( result != 0 ) {
+                    return result;
+                }
+                return a.sequence < b.sequence ? -1 : (a.sequence > b.sequence ? 1 : 0);
+            }
+        };
+ 
+    private final TimeSource time;
+    private RenderManager renderManager;
+    private final ConcurrentLinkedQueue<Upload> incoming = new ConcurrentLinkedQueue<Upload>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private List<Upload> pending = new ArrayList<Upload>();
+    private long nextSequence;
+    
+    private long maxBytesPerFrame = 4 * 1024 * 1024;
+    private int maxMeshesPerFrame = Integer.MAX_VALUE;
+    private long maxTimePerFrame = Long.MAX_VALUE;
+ 
+    // Statistics, only accessed from the render thread
+    private long frameCount;
+    private long lastFrameBytes;
+    private int lastFrameMeshes;
+    private int lastFrameUploads;
+    private long maxFrameBytes;
+    private long totalBytes;
+    private long totalUploads;
+    private long totalLatency;
+    private long maxLatency;
+    
+    public MeshUploadQueue() {
+        this(SYSTEM_TIME);
+    }
+    
+    public MeshUploadQueue( TimeSource time ) {
+        this.time = time;
+    }
+ 
+    /**
+     *  Sets the render manager used to preload the spatials of uploads
+     *  that have one.  Defaults to null which doesn't preload.
+     */   
+    public void setRenderManager( RenderManager renderManager ) {
+        this.renderManager = renderManager;
+    }
+    
+    public RenderManager getRenderManager() {
+        return renderManager;
+    }
+ 
+    /**
+     *  Sets the number of bytes that can be attached per frame.  Defaults
+     *  to 4 MB.
+     */   
+    public void setMaxBytesPerFrame( long maxBytesPerFrame ) {
+        this.maxBytesPerFrame = maxBytesPerFrame;
+    }
+    
+    public long getMaxBytesPerFrame() {
+        return maxBytesPerFrame;
+    }
+ 
+    /**
+     *  Sets the number of meshes that can be attached per frame.  Defaults
+     *  to no limit.
+     */   
+    public void setMaxMeshesPerFrame( int maxMeshesPerFrame ) {
+        this.maxMeshesPerFrame = maxMeshesPerFrame;
+    }
+    
+    public int getMaxMeshesPerFrame() {
+        return maxMeshesPerFrame;
+    }
+ 
+    /**
+     *  Sets the nanoseconds that update() may spend running attach actions
+     *  per frame.  Defaults to no limit.
+     */   
+    public void setMaxTimePerFrame( long maxTimePerFrame ) {
+        this.maxTimePerFrame = maxTimePerFrame;
+    }
+    
+    public long getMaxTimePerFrame() {
+        return maxTimePerFrame;
+    }
+ 
+    /**
+     *  Queues an attach action for a tree at the specified location.  Its
+     *  size and mesh count are taken from the generated tree.  Can be
+     *  called from any thread.
+     */   
+    public Upload offer( GeneratedTree tree, Vector3f location, Runnable attach ) {
+        return offer(tree, location, null, attach);
+    }
+ 
+    /**
+     *  Queues an attach action for a tree at the specified location that
+     *  attaches the specified spatial, which is preloaded after the action
+     *  runs if the queue has a RenderManager.  The size charged is the
+     *  size of the tree's vertex buffers, all levels included, and the mesh
+     *  count is taken from the generated tree.  Can be called from any
+     *  thread.
+     */   
+    public Upload offer( GeneratedTree tree, Vector3f location, Spatial spatial, Runnable attach ) {
+        int meshes = 0;
+        List<Mesh> seen = new ArrayList<Mesh>();
+        for( Mesh mesh : tree.getBranchMeshes() ) {
+            if( mesh != null && !seen.contains(mesh) ) {
+                seen.add(mesh);
+            }
+        }
+        if( tree.getLeafMeshes() != null ) {
+            for( Mesh mesh : tree.getLeafMeshes() ) {
+                if( mesh != null && !seen.contains(mesh) ) {
+                    seen.add(mesh);
+                }
+            }
+        }
+        long bytes = 0;
+        for( VertexBuffer vb : tree.getVertexBuffers() ) {
+            bytes += GeneratedTree.byteSize(vb);
+        }
+        return offer(location, bytes, seen.size(), spatial, attach);
+    }
+ 
+    /**
+     *  Queues an attach action for the specified number of meshes and
+     *  bytes at the specified location.  A null location is treated as 
+     *  closest to the viewer.  Can be called from any thread.
+     */   
+    public Upload offer( Vector3f location, long bytes, int meshCount, Runnable attach ) {
+        return offer(location, bytes, meshCount, null, attach);
+    }
+ 
+    /**
+     *  Queues an attach action for the specified number of meshes and
+     *  bytes at the specified location that attaches the specified spatial.
+     *  The spatial is preloaded after the action runs if the queue has a 
+     *  RenderManager.  A null location is treated as closest to the viewer.
+     *  Can be called from any thread.
+     */   
+    public Upload offer( Vector3f location, long bytes, int meshCount, Spatial spatial, 
+                         Runnable attach ) {
+        Upload result = new Upload(location == null ? null : location.clone(), 
+                                   bytes, meshCount, spatial, attach, time.getTime());
+        depth.incrementAndGet();
+        incoming.add(result);
+        return result;
+    }
+ 
+    /**
+     *  Returns the number of queued uploads that have not been run or
+     *  cancelled.  Can be called from any thread.
+     */   
+    public int getQueueDepth() {
+        return depth.get();
+    }
+ 
+    /**
+     *  Runs the closest pending attach actions within the per-frame budgets.
+     *  Must be called once per frame from the render thread.  Returns the
+     *  number of actions run.
+     */   
+    public int update( Vector3f viewLocation ) {
+        long frameStart = time.getTime();
+        frameCount++;
+        lastFrameBytes = 0;
+        lastFrameMeshes = 0;
+        lastFrameUploads = 0;
+        
+        Upload next;
+        while( (next = incoming.poll()) != null ) {
+            next.sequence = nextSequence++;
+            pending.add(next);
+        }
+        if( pending.isEmpty() ) {
+            return 0;
+        }
+        
+        for( Upload upload : pending ) {
+            upload.distanceSq = upload.location == null || viewLocation == null ? 0 
+                                    : upload.location.distanceSquared(viewLocation);
+        }
+        Collections.sort(pending, DISTANCE_ORDER);
+ 
+        List<Upload> remaining = new ArrayList<Upload>();
+        boolean full = false;
+        for( Upload upload : pending ) {
+            if( upload.isCancelled() ) {
+                continue;
+            }
+            if( !full && lastFrameUploads > 0 ) {
+                full = lastFrameBytes + upload.bytes > maxBytesPerFrame
+                        || lastFrameMeshes + upload.meshCount > maxMeshesPerFrame
+                        || time.getTime() - frameStart >= maxTimePerFrame;
+            }
+            if( full ) {
+                remaining.add(upload);
+                continue;
+            }
+            if( !upload.start() ) {
+                // Cancelled since the check above
+                continue;
+            }
+            depth.decrementAndGet();
+            upload.attach.run();
+            if( renderManager != null && upload.spatial != null ) {
+                preload(upload.spatial);
+            }
+            
+            lastFrameUploads++;
+            lastFrameBytes += upload.bytes;
+            lastFrameMeshes += upload.meshCount;
+            long latency = frameStart - upload.queuedTime;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+        }
+        pending = remaining;
+        
+        totalUploads += lastFrameUploads;
+        totalBytes += lastFrameBytes;
+        maxFrameBytes = Math.max(maxFrameBytes, lastFrameBytes);
+        return lastFrameUploads;
+    }
+    
+    /**
+     *  Uploads the buffers of all of the spatial's geometries, hidden ones
+     *  included, along with their meshes' LOD index buffers which
+     *  RenderManager.preloadScene() does not upload.
+     */   
+    protected void preload( Spatial spatial ) {
+        renderManager.preloadScene(spatial);
+        preloadLodLevels(spatial, renderManager.getRenderer());
+    }
+    
+    private static void preloadLodLevels( Spatial spatial, Renderer renderer ) {
+        if( spatial instanceof Node ) {
+            for( Spatial child : ((Node)spatial).getChildren() ) {
+                preloadLodLevels(child, renderer);
+            }
+        } else if( spatial instanceof Geometry ) {
+            Mesh mesh = ((Geometry)spatial).getMesh();
+            if( mesh == null ) {
+                return;
+            }
+            for( int i = 0; i < mesh.getNumLodLevels(); i++ ) {
+                VertexBuffer vb = mesh.getLodLevel(i);
+                if( vb.getData() != null && vb.isUpdateNeeded() ) {
+                    renderer.updateBufferData(vb);
+                }
+            }
+        }
+    }
+ 
+    public long getFrameCount() {
+        return frameCount;
+    }
+ 
+    /**
+     *  Returns the bytes attached by the last update().
+     */   
+    public long getLastFrameBytes() {
+        return lastFrameBytes;
+    }
+    
+    public int getLastFrameMeshes() {
+        return lastFrameMeshes;
+    }
+    
+    public int getLastFrameUploads() {
+        return lastFrameUploads;
+    }
+ 
+    /**
+     *  Returns the most bytes attached by any single update().
+     */   
+    public long getMaxFrameBytes() {
+        return maxFrameBytes;
+    }
+    
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+    
+    public long getTotalUploads() {
+        return totalUploads;
+    }
+ 
+    /**
+     *  Returns the average nanoseconds between offer() and the start of
+     *  the update() that ran the action.
+     */   
+    public long getAverageLatency() {
+        return totalUploads == 0 ? 0 : totalLatency / totalUploads;
+    }
+    
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+ 
+    /**
+     *  A queued attach action.
+     */   
+    public final class Upload {
+        private final Vector3f location;
+        private final long bytes;
+        private final int meshCount;
+        private final Spatial spatial;
+        private final Runnable attach;
+        private final long queuedTime;
+        private long sequence;
+        private float distanceSq;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        
+        private Upload( Vector3f location, long bytes, int meshCount, Spatial spatial, 
+                        Runnable attach, long queuedTime ) {
+            this.location = location;
+            this.bytes = bytes;
+            this.meshCount = meshCount;
+            this.spatial = spatial;
+            this.attach = attach;
+            this.queuedTime = queuedTime;
+        }
+ 
+        /**
+         *  Removes this upload from the queue if it has not run yet, for
+         *  example when its chunk is unloaded first.  Returns true if the
+         *  upload was cancelled.
+         */       
+        public boolean cancel() {
+            if( !state.compareAndSet(QUEUED, CANCELLED) ) {
+                return false;
+            }
+            depth.decrementAndGet();
+            return true;
+        }
+        
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+ 
+        /**
+         *  Returns true if the attach action has been run.
+         */       
+        public boolean isDone() {
+            return state.get() == STARTED;
+        }
+        
+        public long getBytes() {
+            return bytes;
+        }
+        
+        public int getMeshCount() {
+            return meshCount;
+        }
+        
+        private boolean start() {
+            return state.compareAndSet(QUEUED, STARTED);
+        }
+    }
+}
@@ -0,0 +1,587 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.service;
+
+import com.jme3.scene.Mesh;
+import com.simsilica.arboreal.LevelOfDetailParameters;
+import com.simsilica.arboreal.Tree;
+import com.simsilica.arboreal.TreeGenerator;
+import com.simsilica.arboreal.TreeParameters;
+import com.simsilica.arboreal.mesh.BillboardedLeavesMeshGenerator;
+import com.simsilica.arboreal.mesh.LeafTipBuffer;
+import com.simsilica.arboreal.mesh.LodMeshGenerator;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  Generates trees and their meshes in the background.  Requests are
+ *  queued by priority, lowest value first, so that callers can pass
+ *  something like camera distance and have nearby trees built before
+ *  distant ones.  Requests for the same tree (same parameter content,
+ *  seed, and levels of detail) are coalesced into a single job while 
+ *  it is pending.  Cancelled requests are removed from the queue or,
+ *  if already running, abort between generation phases once nothing
+ *  else is waiting on them.
+ *
+ *  <p>The priority ordering is kept by the service itself and each
+ *  submission only hands the executor a task that runs the best queued 
+ *  job, so any Executor can be supplied.  Results are delivered on the
+ *  executor's threads.  Meshes are complete but not attached to anything;
+ *  callers attach them on the render thread as usual.</p>
+ *
+ *  <p>createVirtualThreadService() runs each job on its own virtual thread
+ *  when the JVM supports them with a semaphore limiting how many jobs
+ *  generate at once.  Waiting jobs cost a parked virtual thread instead 
+ *  of a platform thread, and loaders running on virtual threads can block
+ *  on the returned futures cheaply, so very large numbers of requests can
+ *  be in flight.  The service and the generators it calls use locks instead
+ *  of synchronized so that virtual threads are not pinned.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class TreeGenerationService {
+
+    static Logger log = LoggerFactory.getLogger(TreeGenerationService.class);
+ 
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final Semaphore cpuGate;
+    private volatile GenerationCache cache;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeSet<Job> queue = new TreeSet<Job>();   
+    private final Map<TreeRequest, Job> pending = new HashMap<TreeRequest, Job>();
+    private long nextSequence;
+    private boolean shutdown;
+    
+    private final AtomicInteger running = new AtomicInteger();   
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+ 
+    private final Runnable runNext = new Runnable() {
+            public void run() {
+                runNextJob();
+            }
+        };
+ 
+    /**
+     *  Creates a service with a daemon thread pool sized to leave one
+     *  processor free for the render thread.
+     */   
+    public TreeGenerationService() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+    
+    /**
+     *  Creates a service with its own pool of the specified number of
+     *  daemon threads.  The pool is shut down by shutdown().
+     */
+    public TreeGenerationService( int threadCount ) {
+        this(Executors.newFixedThreadPool(threadCount, new WorkerFactory()), null, true);
+    }
+ 
+    /**
+     *  Creates a service that runs its jobs on the specified executor.
+     *  The executor is not shut down by shutdown().
+     */   
+    public TreeGenerationService( Executor executor ) {
+        this(executor, null, false);
+    }
+ 
+    /**
+     *  Creates a service that runs its jobs on the specified executor but
+     *  lets at most cpuPermits of them generate at the same time.  This is
+     *  meant for executors that start a thread per task, like virtual thread
+     *  executors, where the executor itself does not limit concurrency.
+     *  Jobs are picked by priority only once a permit is available.
+     *  The executor is not shut down by shutdown().
+     */   
+    public TreeGenerationService( Executor executor, int cpuPermits ) {
+        this(executor, new Semaphore(cpuPermits), false);
+    }
+    
+    private TreeGenerationService( Executor executor, Semaphore cpuGate, boolean owned ) {
+        this.executor = executor;
+        this.cpuGate = cpuGate;
+        this.ownedExecutor = owned ? (ExecutorService)executor : null;
+    }
+ 
+    /**
+     *  Creates a service that runs each job on a virtual thread with at 
+     *  most cpuPermits jobs generating at once.  If the JVM does not support
+     *  virtual threads then this falls back to a pool of cpuPermits daemon 
+     *  platform threads.  Either way the executor is shut down by shutdown().
+     */   
+    public static TreeGenerationService createVirtualThreadService( int cpuPermits ) {
+        ExecutorService virtual = createVirtualThreadExecutor();
+        if( virtual == null ) {
+            log.info("Virtual threads not supported, using " + cpuPermits + " platform threads");
+            return new TreeGenerationService(cpuPermits);
+        }
+        return new TreeGenerationService(virtual, new Semaphore(cpuPermits), true);
+    }
+ 
+    /**
+     *  Returns true if this JVM can create virtual threads.
+     */   
+    public static boolean isVirtualThreadSupported() {
+        return getVirtualThreadFactoryMethod() != null;
+    }
+ 
+    private static Method getVirtualThreadFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch( NoSuchMethodException e ) {
+            return null;
+        }
+    }
+ 
+    private static ExecutorService createVirtualThreadExecutor() {
+        Method method = getVirtualThreadFactoryMethod();
+        if( method == null ) {
+            return null;
+        }
+        try {
+            return (ExecutorService)method.invoke(null);
+        } catch( Exception e ) {
+            // Can happen with preview-only virtual threads
+            log.warn("Error creating virtual thread executor", e);
+            return null;
+        }
+    }
+ 
+    /**
+     *  Sets an optional cache that is checked before queuing requests and 
+     *  that is given every successfully generated tree.  Defaults to null.
+     */
+    public void setCache( GenerationCache cache ) {
+        this.cache = cache;
+    }
+    
+    public GenerationCache getCache() {
+        return cache;
+    }
+ 
+    /**
+     *  Requests generation of the specified tree with the specified 
+     *  priority where lower values are generated first.  If the tree is
+     *  in the cache then the returned future is already complete.  The
+     *  completed result holds a reference for this request that should be
+     *  given back with GenerationCache.release() once its meshes are no
+     *  longer used so that the cache can free them.
+     */   
+    public GenerationFuture request( TreeRequest request, double priority ) {
+        GenerationFuture result = new GenerationFuture(this, request, priority);
+        GenerationCache cache = this.cache;
+        if( cache != null ) {
+            GeneratedTree cached = cache.get(request);
+            if( cached != null ) {
+                submitted.incrementAndGet();
+                result.complete(cached);
+                return result;
+            }
+        }
+        boolean execute = false;
+        lock.lock();
+        try {
+            if( shutdown ) {
+                throw new IllegalStateException("Service is shut down");
+            }
+            submitted.incrementAndGet();
+            Job job = pending.get(request);
+            if( job != null && !job.cancelled ) {
+                coalesced.incrementAndGet();
+                if( job.queued ) {
+                    queue.remove(job);
+                    job.futures.add(result);
+                    job.priority = Math.min(job.priority, priority);
+                    queue.add(job);
+                } else {
+                    job.futures.add(result);
+                }
+            } else {
+                job = new Job(request, priority, nextSequence++);
+                job.futures.add(result);
+                pending.put(request, job);
+                job.queued = true;
+                queue.add(job);
+                execute = true;
+            }
+            result.job = job;
+        } finally {
+            lock.unlock();
+        }
+        if( execute ) {
+            executor.execute(runNext);
+        }
+        return result;
+    } 
+ 
+    /**
+     *  Returns the number of jobs waiting to run.
+     */   
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  Returns the number of jobs currently generating.
+     */   
+    public int getRunningCount() {
+        return running.get();
+    }
+    
+    /**
+     *  Returns the total number of requests made to this service.
+     */
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+ 
+    /**
+     *  Returns the number of requests that were satisfied by a job that
+     *  was already pending for the same tree.
+     */   
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+    
+    /**
+     *  Returns the number of jobs that were generated successfully.
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+ 
+    /**
+     *  Returns the number of jobs that were dropped from the queue because
+     *  all of their requests were cancelled.
+     */   
+    public long getCancelledCount() {
+        return cancelled.get();
+    }
+ 
+    /**
+     *  Returns the number of jobs that stopped generating part way through
+     *  because all of their requests were cancelled.
+     */   
+    public long getAbortedCount() {
+        return aborted.get();
+    }
+    
+    public long getFailedCount() {
+        return failed.get();
+    }
+ 
+    /**
+     *  Cancels all queued requests and shuts down the executor if the
+     *  service created it.  Running jobs are allowed to finish.
+     */   
+    public void shutdown() {
+        List<GenerationFuture> toCancel = new ArrayList<GenerationFuture>();
+        lock.lock();
+        try {
+            shutdown = true;
+            for( Job job : queue ) {
+                toCancel.addAll(job.futures);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for( GenerationFuture future : toCancel ) {
+            future.cancel(false);
+        }
+        if( ownedExecutor != null ) {
+            ownedExecutor.shutdown();
+        }
+    }
+ 
+    /**
+     *  Generates the tree and meshes for the specified request.  Subclasses
+     *  can override this to customize the generators used and should call
+     *  checkCancelled() between expensive steps.
+     */   
+    protected GeneratedTree generate( Job job ) {
+        TreeRequest request = job.getRequest();
+        TreeParameters treeParms = request.getTreeParameters();
+        List<LevelOfDetailParameters> lods = request.getLods();
+        
+        Tree tree = new TreeGenerator().generateTree(request.getSeed(), treeParms);
+        checkCancelled(job);
+        
+        LeafTipBuffer tips = new LeafTipBuffer();
+        List<Mesh> branches = createMeshGenerator().generateMeshes(tree, lods, 
+                                                    treeParms.getYOffset(),
+                                                    treeParms.getTextureURepeat(),
+                                                    treeParms.getTextureVScale(),
+                                                    tips);
+        checkCancelled(job);
+        
+        List<Mesh> leaves = null;
+        if( treeParms.getGenerateLeaves() ) {
+            leaves = new BillboardedLeavesMeshGenerator().generateMeshes(tips, treeParms.getLeafScale(), lods);
+        }        
+        return new GeneratedTree(request, tree, tips, branches, leaves);
+    }
+ 
+    /**
+     *  Called for each job to create the branch mesh generator.  Subclasses
+     *  can override this to configure curve generation or shared index
+     *  buffers.
+     */   
+    protected LodMeshGenerator createMeshGenerator() {
+        return new LodMeshGenerator();
+    }
+ 
+    /**
+     *  Throws a CancellationException if all of the job's requests have
+     *  been cancelled.
+     */   
+    protected void checkCancelled( Job job ) {
+        if( job.cancelled ) {
+            throw new CancellationException("Job cancelled:" + job.getRequest());
+        }
+    }
+ 
+    protected void runNextJob() {
+        if( cpuGate != null ) {
+            // Wait for the permit before picking a job so that the
+            // best job at that time is the one that runs.
+            cpuGate.acquireUninterruptibly();
+        }
+        GeneratedTree result = null;
+        Throwable error = null;
+        Job job;
+        try {
+            lock.lock();
+            try {
+                job = queue.pollFirst();
+                if( job == null ) {
+                    return;
+                }
+                job.queued = false;
+            } finally {
+                lock.unlock();
+            }
+        
+            running.incrementAndGet();        
+            try {
+                result = generate(job);
+            } catch( CancellationException e ) {
+                if( log.isDebugEnabled() ) {
+                    log.debug("Aborted:" + job.getRequest());
+                }
+                aborted.incrementAndGet();
+            } catch( Throwable t ) {
+                error = t;
+            } finally {
+                running.decrementAndGet();
+            }
+        } finally {
+            if( cpuGate != null ) {
+                cpuGate.release();
+            }
+        }
+ 
+        List<GenerationFuture> futures;       
+        lock.lock();
+        try {
+            if( pending.get(job.request) == job ) {
+                pending.remove(job.request);
+            }
+            futures = new ArrayList<GenerationFuture>(job.futures);
+        } finally {
+            lock.unlock();
+        }
+        
+        if( result != null ) {
+            completed.incrementAndGet();
+            
+            // Each future gets its own reference before the cache can
+            // see the result and possibly evict it
+            for( GenerationFuture future : futures ) {
+                result.acquire();
+            }
+            GenerationCache cache = this.cache;
+            if( cache != null ) {
+                try {
+                    cache.put(result);
+                } catch( RuntimeException e ) {
+                    log.error("Error caching:" + job.getRequest(), e);
+                }
+            }
+            for( GenerationFuture future : futures ) {
+                if( !future.complete(result) ) {
+                    // Cancelled in the mean time so nobody will release it
+                    if( cache != null ) {
+                        cache.release(result);
+                    } else {
+                        result.release();
+                    }
+                }
+            }
+        } else if( error != null ) {
+            log.error("Error generating:" + job.getRequest(), error);
+            failed.incrementAndGet();
+            for( GenerationFuture future : futures ) {
+                future.completeExceptionally(error);
+            }
+        }
+    }
+ 
+    void priorityChanged( GenerationFuture future ) {
+        lock.lock();
+        try {
+            Job job = future.job;
+            if( job == null || !job.queued ) {
+                return;
+            }
+            queue.remove(job);
+            job.updatePriority();
+            queue.add(job);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    void cancelled( GenerationFuture future ) {
+        lock.lock();
+        try {
+            Job job = future.job;
+            if( job == null ) {
+                return;
+            }
+            if( job.queued ) {
+                queue.remove(job);
+            }
+            job.futures.remove(future);
+            if( !job.futures.isEmpty() ) {
+                if( job.queued ) {
+                    job.updatePriority();
+                    queue.add(job);
+                }
+                return;
+            }
+            job.cancelled = true;
+            if( job.queued ) {
+                job.queued = false;
+                cancelled.incrementAndGet();
+                pending.remove(job.request);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    /**
+     *  A unit of pending work shared by all of the requests for the same
+     *  tree.
+     */   
+    protected static class Job implements Comparable<Job> {
+        final TreeRequest request;
+        final long sequence;
+        final List<GenerationFuture> futures = new ArrayList<GenerationFuture>(1);
+        double priority;
+        boolean queued;
+        volatile boolean cancelled;
+ 
+        Job( TreeRequest request, double priority, long sequence ) {
+            this.request = request;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+        
+        public TreeRequest getRequest() {
+            return request;
+        }
+        
+        public boolean isCancelled() {
+            return cancelled;
+        }
+        
+        void updatePriority() {
+            double min = Double.POSITIVE_INFINITY;
+            for( GenerationFuture future : futures ) {
+                min = Math.min(min, future.getPriority());
+            }
+            priority = min;
+        }
+        
+        public int compareTo( Job other ) {
+            int result = Double.compare(priority, other.priority);
+            if( result != 0 ) {
+                return result;
+            }
+            return sequence < other.sequence ? -1 : (sequence > other.sequence ? 1 : 0);
+        }
+    }
+    
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        
+        public Thread newThread( Runnable r ) {
+            Thread result = new Thread(r, "TreeGeneration-" + count.incrementAndGet());
+            result.setDaemon(true);
+            return result;
+        }
+    }
+}
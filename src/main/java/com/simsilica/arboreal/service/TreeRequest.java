@@ -0,0 +1,170 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.service;
+
+import com.simsilica.arboreal.LevelOfDetailParameters;
+import com.simsilica.arboreal.TreeParameters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ *  Identifies a tree to generate: a set of TreeParameters, a seed,
+ *  and which of the parameters' levels of detail to build.  Requests
+ *  with the same parameter content, seed, and levels are equal even
+ *  when they use different TreeParameters instances, which lets services 
+ *  and caches recognize duplicate work.
+ *
+ *  <p>The parameter content hash is calculated once when the request
+ *  is created.  The TreeParameters must not be modified afterwards
+ *  while the request is still in use.  Use forSeed() to cheaply create 
+ *  requests for other seeds of the same parameters.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class TreeRequest {
+ 
+    private final TreeParameters treeParms;
+    private final long parmsHash;
+    private final int seed;
+    private final int[] lodIndexes;
+ 
+    /**
+     *  Creates a request for all of the parameters' levels of detail
+     *  using the parameters' own seed.
+     */   
+    public TreeRequest( TreeParameters treeParms ) {
+        this(treeParms, treeParms.getSeed());
+    }
+ 
+    /**
+     *  Creates a request for the specified seed and levels of detail.  If
+     *  no LOD indexes are specified then all of the parameters' levels of
+     *  detail are generated.
+     */   
+    public TreeRequest( TreeParameters treeParms, int seed, int... lodIndexes ) {
+        this(treeParms, treeParms.getContentHash(), seed, lodIndexes);
+    }
+    
+    protected TreeRequest( TreeParameters treeParms, long parmsHash, int seed, int[] lodIndexes ) {
+        this.treeParms = treeParms;
+        this.parmsHash = parmsHash;
+        this.seed = seed;
+        if( lodIndexes == null || lodIndexes.length == 0 ) {
+            lodIndexes = new int[treeParms.getLodCount()];
+            for( int i = 0; i < lodIndexes.length; i++ ) {
+                lodIndexes[i] = i;
+            }
+        } else {
+            lodIndexes = lodIndexes.clone();
+            for( int i : lodIndexes ) {
+                if( i < 0 || i >= treeParms.getLodCount() ) {
+                    throw new IllegalArgumentException("Invalid LOD index:" + i);
+                }
+            }
+        }
+        this.lodIndexes = lodIndexes;
+    }
+ 
+    /**
+     *  Returns a request for the same parameters and levels of detail
+     *  with a different seed.
+     */   
+    public TreeRequest forSeed( int seed ) {
+        return new TreeRequest(treeParms, parmsHash, seed, lodIndexes);
+    }
+ 
+    public TreeParameters getTreeParameters() {
+        return treeParms;
+    }
+    
+    /**
+     *  Returns the content hash of the parameters as returned by
+     *  TreeParameters.getContentHash() when the request was created.
+     */
+    public long getParametersHash() {
+        return parmsHash;
+    }
+    
+    public int getSeed() {
+        return seed;
+    }
+ 
+    public int[] getLodIndexes() {
+        return lodIndexes.clone();
+    }
+ 
+    /**
+     *  Returns the requested levels of detail in request order.
+     */   
+    public List<LevelOfDetailParameters> getLods() {
+        List<LevelOfDetailParameters> result = new ArrayList<LevelOfDetailParameters>(lodIndexes.length);
+        for( int i : lodIndexes ) {
+            result.add(treeParms.getLod(i));
+        }
+        return Collections.unmodifiableList(result);
+    }
+ 
+    @Override
+    public boolean equals( Object o ) {
+        if( o == this ) {
+            return true;
+        }
+        if( o == null || o.getClass() != getClass() ) {
+            return false;
+        }
+        TreeRequest other = (TreeRequest)o;
+        return parmsHash == other.parmsHash && seed == other.seed 
+                && Arrays.equals(lodIndexes, other.lodIndexes);
+    }
+    
+    @Override
+    public int hashCode() {
+        int result = (int)(parmsHash ^ (parmsHash >>> 32));
+        result = 31 * result + seed;
+        result = 31 * result + Arrays.hashCode(lodIndexes);
+        return result;
+    }
+    
+    @Override
+    public String toString() {
+        return "TreeRequest[parms=" + Long.toHexString(parmsHash) + ", seed=" + seed 
+                            + ", lods=" + Arrays.toString(lodIndexes) + "]";
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.tools;
+
+import com.simsilica.arboreal.TreeParameters;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ *  A minimal JSON reader for TreeParameters files, ie: the JSON form
+ *  of TreeParameters.toMap().  It handles objects, arrays, strings,
+ *  numbers, booleans, and null, which is all that the parameter maps
+ *  contain.  Numbers are read as Doubles or, when they have no fraction
+ *  or exponent, Longs.
+ *
+ *  @author    Paul Speed
+ */
+public class ParameterFileReader {
+ 
+    private final Reader in;
+    private final String source;
+    private int next = -2;
+    private int line = 1;
+    
+    protected ParameterFileReader( Reader in, String source ) {
+        this.in = in;
+        this.source = source;
+    }
+ 
+    public static TreeParameters readTreeParameters( File file ) throws IOException {
+        Map<String, Object> map = readMap(file);
+        TreeParameters result = new TreeParameters();
+        try {
+            result.fromMap(map);
+        } catch( RuntimeException e ) {
+            throw new IOException("Error applying parameters from:" + file, e);
+        }
+        return result;
+    }
+    
+    public static Map<String, Object> readMap( File file ) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            Object result = new ParameterFileReader(in, file.getPath()).readDocument();
+            if( !(result instanceof Map) ) {
+                throw new IOException("Expected a JSON object in:" + file);
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> map = (Map<String, Object>)result;
+            return map;
+        } finally {
+            in.close();
+        }
+    }
+ 
+    public Object readDocument() throws IOException {
+        Object result = readValue();
+        if( skipWhitespace() != -1 ) {
+            throw error("Unexpected data after value");
+        }
+        return result;
+    }
+ 
+    protected Object readValue() throws IOException {
+        int c = skipWhitespace();
+        switch( c ) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                expect("null");
+                return null;
+            case -1:
+                throw error("Unexpected end of file");
+            default:
+                if( c == '-' || (c >= '0' && c <= '9') ) {
+                    return readNumber();
+                }
+                throw error("Unexpected character '" + (char)c + "'");
+        }
+    }
+    
+    protected Map<String, Object> readObject() throws IOException {
+        Map<String, Object> result = new TreeMap<String, Object>();
+        read(); // {
+        if( skipWhitespace() == '}' ) {
+            read();
+            return result;
+        }
+        while( true ) {
+            if( skipWhitespace() != '"' ) {
+                throw error("Expected a property name");
+            }
+            String key = readString();
+            if( skipWhitespace() != ':' ) {
+                throw error("Expected ':'");
+            }
+            read();
+            result.put(key, readValue());
+            int c = skipWhitespace();
+            read();
+            if( c == '}' ) {
+                return result;
+            }
+            if( c != ',' ) {
+                throw error("Expected ',' or '}'");
+            }
+        }
+    }
+    
+    protected List<Object> readArray() throws IOException {
+        List<Object> result = new ArrayList<Object>();
+        read(); // [
+        if( skipWhitespace() == ']' ) {
+            read();
+            return result;
+        }
+        while( true ) {
+            result.add(readValue());
+            int c = skipWhitespace();
+            read();
+            if( c == ']' ) {
+                return result;
+            }
+            if( c != ',' ) {
+                throw error("Expected ',' or ']'");
+            }
+        }
+    }
+    
+    protected String readString() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        read(); // opening quote
+        while( true ) {
+            int c = read();
+            switch( c ) {
+                case -1:
+                    throw error("Unterminated string");
+                case '"':
+                    return sb.toString();
+                case '\\':
+                    c = read();
+                    switch( c ) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'u':
+                            char[] hex = new char[4];
+                            for( int i = 0; i < 4; i++ ) {
+                                hex[i] = (char)read();
+                            }
+                            try {
+                                sb.append((char)Integer.parseInt(new String(hex), 16));
+                            } catch( NumberFormatException e ) {
+                                throw error("Invalid unicode escape");
+                            }
+                            break;
+                        case -1:
+                            throw error("Unterminated string");
+                        default:
+                            sb.append((char)c);
+                    }
+                    break;
+                default:
+                    sb.append((char)c);
+            }
+        }
+    }
+    
+    protected Number readNumber() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        boolean integer = true;
+        while( true ) {
+            int c = peek();
+            if( (c >= '0' && c <= '9') || c == '-' || c == '+' ) {
+                sb.append((char)read());
+            } else if( c == '.' || c == 'e' || c == 'E' ) {
+                integer = false;
+                sb.append((char)read());
+            } else {
+                break;
+            }
+        }
+        try {
+            if( integer ) {
+                return Long.parseLong(sb.toString());
+            }
+            return Double.parseDouble(sb.toString());
+        } catch( NumberFormatException e ) {
+            throw error("Invalid number:" + sb);
+        }
+    }
+ 
+    private void expect( String word ) throws IOException {
+        for( int i = 0; i < word.length(); i++ ) {
+            if( read() != word.charAt(i) ) {
+                throw error("Expected '" + word + "'");
+            }
+        }
+    }
+ 
+    private int skipWhitespace() throws IOException {
+        int c = peek();
+        while( c == ' ' || c == '\t' || c == '\n' || c == '\r' ) {
+            read();
+            c = peek();
+        }
+        return c;
+    }
+ 
+    private int peek() throws IOException {
+        if( next == -2 ) {
+            next = in.read();
+        }
+        return next;
+    }
+    
+    private int read() throws IOException {
+        int result = peek();
+        next = -2;
+        if( result == '\n' ) {
+            line++;
+        }
+        return result;
+    }
+    
+    private IOException error( String message ) {
+        return new IOException(message + " at " + source + ":" + line);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.tools;
+
+import com.jme3.scene.Mesh;
+import com.simsilica.arboreal.Segment;
+import com.simsilica.arboreal.Tree;
+import com.simsilica.arboreal.TreeParameters;
+import com.simsilica.arboreal.service.GeneratedTree;
+import com.simsilica.arboreal.service.GenerationFuture;
+import com.simsilica.arboreal.service.MeshBakeCache;
+import com.simsilica.arboreal.service.TreeGenerationService;
+import com.simsilica.arboreal.service.TreeRequest;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+
+/**
+ *  Headless batch baking of a directory of species parameter files.
+ *  For each *.json TreeParameters file it generates the requested number
+ *  of seeds with all of the species' levels of detail in parallel and
+ *  writes:
+ *  <ul>
+ *  <li>&lt;species&gt;.pack: a MeshBakeCache with the branch and leaf
+ *      meshes of every seed and level.</li>
+ *  <li>&lt;species&gt;.skeletons: the tree skeletons, see writeSkeleton().</li>
+ *  </ul>
+ *  Timing and size statistics are printed per species.  The exit code is
+ *  0 on success, 1 for errors, and 2 if any tree exceeded a budget.
+ *
+ *  <p>Usage: TreeBaker [options] speciesDir outputDir<br>
+ *  Options:
+ *  <pre>
+ *  -seeds n         Number of seeds per species, starting at 0.  Default 10.
+ *  -threads n       Generation threads.  Defaults to the processor count.
+ *  -maxTriangles n  Branch triangle budget for the first level of detail.
+ *  -maxLeaves n     Leaf quad budget for the first level of detail.
+ *  -maxBytes n      Memory budget per tree for all meshes.
+ *  </pre></p>
+ *
+ *  @author    Paul Speed
+ */
+public class TreeBaker {
+ 
+    public static final int SKELETON_MAGIC = 0x534B454C; // "SKEL"
+    public static final int SKELETON_VERSION = 1;
+ 
+    private int seedCount = 10;
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    private long maxTriangles = Long.MAX_VALUE;
+    private long maxLeaves = Long.MAX_VALUE;
+    private long maxBytes = Long.MAX_VALUE;
+    private int violations;
+    
+    public static void main( String... args ) {
+        TreeBaker baker = new TreeBaker();
+        List<String> files = new ArrayList<String>();
+        try {
+            for( int i = 0; i < args.length; i++ ) {
+                String arg = args[i];
+                if( "-seeds".equals(arg) ) {
+                    baker.seedCount = Integer.parseInt(args[++i]);
+                } else if( "-threads".equals(arg) ) {
+                    baker.threadCount = Integer.parseInt(args[++i]);
+                } else if( "-maxTriangles".equals(arg) ) {
+                    baker.maxTriangles = Long.parseLong(args[++i]);
+                } else if( "-maxLeaves".equals(arg) ) {
+                    baker.maxLeaves = Long.parseLong(args[++i]);
+                } else if( "-maxBytes".equals(arg) ) {
+                    baker.maxBytes = Long.parseLong(args[++i]);
+                } else if( arg.startsWith("-") ) {
+                    throw new IllegalArgumentException("Unknown option:" + arg);
+                } else {
+                    files.add(arg);
+                }
+            }
+            if( files.size() != 2 ) {
+                throw new IllegalArgumentException("Expected a species directory and an output directory");
+            }
+        } catch( RuntimeException e ) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: TreeBaker [-seeds n] [-threads n] [-maxTriangles n] [-maxLeaves n] [-maxBytes n] speciesDir outputDir");
+            System.exit(1);
+        }
+ 
+        int result;       
+        try {
+            result = baker.bake(new File(files.get(0)), new File(files.get(1)));
+        } catch( Exception e ) {
+            e.printStackTrace();
+            result = 1;
+        }
+        System.exit(result);
+    }
+ 
+    /**
+     *  Bakes all of the species in the directory and returns the process
+     *  exit code.
+     */   
+    public int bake( File speciesDir, File outputDir ) throws IOException, InterruptedException {
+        File[] files = speciesDir.listFiles();
+        if( files == null ) {
+            throw new IOException("Not a directory:" + speciesDir);
+        }
+        Arrays.sort(files);
+        if( !outputDir.exists() && !outputDir.mkdirs() ) {
+            throw new IOException("Unable to create:" + outputDir);
+        }
+        
+        System.out.println(String.format("%-20s %6s %9s %9s %10s %10s %10s %12s", 
+                                         "species", "seeds", "total ms", "ms/tree", 
+                                         "max tris", "max leaves", "max bytes", "file bytes"));
+        TreeGenerationService service = new TreeGenerationService(threadCount);
+        int errors = 0;
+        try {
+            for( File file : files ) {
+                if( !file.isFile() || !file.getName().endsWith(".json") ) {
+                    continue;
+                }
+                try {
+                    bakeSpecies(service, file, outputDir);
+                } catch( IOException e ) {
+                    System.err.println("Error baking:" + file + "  " + e);
+                    errors++;
+                } catch( ExecutionException e ) {
+                    System.err.println("Error generating:" + file + "  " + e.getCause());
+                    errors++;
+                }
+            }
+        } finally {
+            service.shutdown();
+        }
+        if( errors > 0 ) {
+            return 1;
+        }
+        if( violations > 0 ) {
+            System.err.println(violations + " budget violation(s)");
+            return 2;
+        }
+        return 0;
+    }
+ 
+    protected void bakeSpecies( TreeGenerationService service, File file, File outputDir ) 
+                                    throws IOException, InterruptedException, ExecutionException {
+        String name = file.getName().substring(0, file.getName().length() - ".json".length());
+        TreeParameters treeParms = ParameterFileReader.readTreeParameters(file);
+        
+        long start = System.nanoTime();
+        TreeRequest base = new TreeRequest(treeParms);
+        List<GenerationFuture> futures = new ArrayList<GenerationFuture>(seedCount);
+        for( int seed = 0; seed < seedCount; seed++ ) {
+            futures.add(service.request(base.forSeed(seed), seed));
+        }
+ 
+        File packFile = new File(outputDir, name + ".pack");
+        packFile.delete();
+        File skeletonFile = new File(outputDir, name + ".skeletons");
+        MeshBakeCache pack = new MeshBakeCache(packFile);
+        DataOutputStream skeletons = new DataOutputStream(new BufferedOutputStream(
+                                                new FileOutputStream(skeletonFile)));
+        long maxTris = 0;
+        long maxLeafCount = 0;
+        long maxTreeBytes = 0;
+        try {
+            skeletons.writeInt(SKELETON_MAGIC);
+            skeletons.writeInt(SKELETON_VERSION);
+            skeletons.writeInt(seedCount);
+            for( GenerationFuture future : futures ) {
+                GeneratedTree tree = future.get();
+                pack.store(tree);
+                skeletons.writeInt(tree.getRequest().getSeed());
+                writeSkeleton(tree.getTree(), skeletons);
+                
+                long tris = triangles(tree.getBranchMeshes().get(0));
+                long leaves = tree.getLeafMeshes() == null ? 0 : triangles(tree.getLeafMeshes().get(0)) / 2;
+                long bytes = tree.getByteSize();
+                maxTris = Math.max(maxTris, tris);
+                maxLeafCount = Math.max(maxLeafCount, leaves);
+                maxTreeBytes = Math.max(maxTreeBytes, bytes);
+                checkBudget(name, tree, "triangles", tris, maxTriangles);
+                checkBudget(name, tree, "leaves", leaves, maxLeaves);
+                checkBudget(name, tree, "bytes", bytes, maxBytes);
+            }
+        } finally {
+            skeletons.close();
+            pack.close();
+        }
+        
+        double ms = (System.nanoTime() - start) / 1000000.0;
+        System.out.println(String.format("%-20s %6d %9.1f %9.2f %10d %10d %10d %12d", 
+                                         name, seedCount, ms, ms / Math.max(1, seedCount),
+                                         maxTris, maxLeafCount, maxTreeBytes, packFile.length()));
+    }
+ 
+    private void checkBudget( String species, GeneratedTree tree, String what, long value, long max ) {
+        if( value > max ) {
+            System.err.println(species + " seed " + tree.getRequest().getSeed() + ": " 
+                                + what + " " + value + " exceeds budget " + max);
+            violations++;
+        }
+    }
+ 
+    private static long triangles( Mesh mesh ) {
+        return mesh == null ? 0 : mesh.getTriangleCount();
+    }
+ 
+    /**
+     *  Writes the tree's trunk and roots as depth-first segment records:
+     *  a present flag for each, and then for each segment its start radius,
+     *  end radius, length, u scale, v start, v end, twist, radials, direction
+     *  x, y, z, parent connection ordinal, child count, and then a present 
+     *  flag and record for each child.  The .skeletons file has a magic 
+     *  number, version, and seed count followed by each seed and its skeleton.
+     */   
+    public static void writeSkeleton( Tree tree, DataOutputStream out ) throws IOException {
+        for( Segment seg : tree ) {
+            out.writeBoolean(seg != null);
+            if( seg != null ) {
+                writeSegment(seg, out);
+            }
+        }
+    }
+    
+    private static void writeSegment( Segment seg, DataOutputStream out ) throws IOException {
+        out.writeFloat(seg.startRadius);
+        out.writeFloat(seg.endRadius);
+        out.writeFloat(seg.length);
+        out.writeFloat(seg.uScale);
+        out.writeFloat(seg.vStart);
+        out.writeFloat(seg.vEnd);
+        out.writeFloat(seg.twist);
+        out.writeInt(seg.radials);
+        out.writeFloat(seg.dir.x);
+        out.writeFloat(seg.dir.y);
+        out.writeFloat(seg.dir.z);
+        out.writeInt(seg.parentConnection.ordinal());
+        int count = seg.children == null ? 0 : seg.children.length;
+        out.writeInt(count);
+        for( int i = 0; i < count; i++ ) {
+            // Children can be null for disabled branches
+            out.writeBoolean(seg.children[i] != null);
+            if( seg.children[i] != null ) {
+                writeSegment(seg.children[i], out);
+            }
+        }
+    }
+}
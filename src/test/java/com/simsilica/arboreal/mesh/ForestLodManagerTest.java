@@ -0,0 +1,428 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial.CullHint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ *  Checks ForestLodManager cell assignment, when trees are evaluated
+ *  again as the camera moves, and the triangle budget.  The levels are empty nodes and the camera
+ *  is only a location.  Cell evaluations are recorded by overriding
+ *  evaluate().
+ *
+ *  @author    Paul Speed
+ */
+public class ForestLodManagerTest {
+
+    private static final float CELL_SIZE = 10;
+    private static final float[] RANGES = { 20, 40 };
+    private static final float[] BUDGET_RANGES = { 10, 30, 60 };
+    private static final int[] BUDGET_TRIANGLES = { 1000, 100, 10 };
+
+    private RecordingManager manager;
+ 
+    @Before
+    public void setUp() {
+        manager = new RecordingManager(CELL_SIZE);
+    }
+ 
+    private ForestLodManager.Entry add( float x, float z ) {
+        return manager.add(new Vector3f(x, 0, z), 1, RANGES, new Node("level0"), new Node("level1"));
+    }
+ 
+    private ForestLodManager.Entry addBudgeted( float x, float z ) {
+        ForestLodManager.Entry result = manager.add(new Vector3f(x, 0, z), 1, BUDGET_RANGES, 
+                                                    new Node("level0"), new Node("level1"), 
+                                                    new Node("level2"));
+        manager.setTriangleCounts(result, BUDGET_TRIANGLES);
+        return result;
+    }
+ 
+    private void update( float x, float y, float z ) {
+        manager.evaluated.clear();
+        manager.update(new Vector3f(x, y, z));
+    }
+ 
+    private static int shownLevel( ForestLodManager.Entry entry ) {
+        int result = -1;
+        for( int i = 0; i < entry.getLevelCount(); i++ ) {
+            if( entry.getLevel(i).getLocalCullHint() != CullHint.Always ) {
+                assertEquals("More than one level shown", -1, result);
+                result = i;
+            }
+        }
+        return result;
+    }
+ 
+    @Test
+    public void testCellAssignment() {
+        ForestLodManager.Entry a = add(5, 5);
+        add(8, 2);
+        ForestLodManager.Entry b = add(15, 5);
+        add(-5, 5);
+        add(5, -5);
+        assertEquals(5, manager.getTreeCount());
+        assertEquals(4, manager.getCellCount());
+        
+        // Nothing is shown until the first evaluation
+        assertEquals(-1, a.getLevel());
+        assertEquals(-1, shownLevel(a));
+ 
+        // Removing the only tree in a cell removes the cell
+        manager.remove(b);
+        assertEquals(4, manager.getTreeCount());
+        assertEquals(3, manager.getCellCount());
+        manager.remove(a);
+        assertEquals(3, manager.getCellCount());
+    }
+ 
+    @Test
+    public void testStillCameraEvaluatesNothing() {
+        ForestLodManager.Entry a = add(0, 10);
+        ForestLodManager.Entry b = add(30, 0);
+        ForestLodManager.Entry c = add(0, -100);
+        
+        update(0, 0, 0);
+        assertEquals(3, manager.getLastFrameCellCount());
+        assertEquals(3, manager.getLastFrameTreeCount());
+        assertEquals(new HashSet<ForestLodManager.Entry>(Arrays.asList(a, b, c)), 
+                     new HashSet<ForestLodManager.Entry>(manager.evaluated));
+        assertEquals(0, shownLevel(a));
+        assertEquals(1, shownLevel(b));
+        assertEquals(-1, shownLevel(c));
+        assertEquals(2, manager.getLastFrameSwitchCount());
+        
+        for( int i = 0; i < 3; i++ ) {
+            update(0, 0, 0);
+            assertEquals(0, manager.getLastFrameCellCount());
+            assertTrue(manager.evaluated.isEmpty());
+        }
+        assertEquals(0, manager.getDueCellCount());
+    }
+ 
+    @Test
+    public void testReevaluatedWhenTravelReachesMargin() {
+        // 5 units inside its first range
+        ForestLodManager.Entry near = add(0, 15);
+        
+        // 60 units beyond its last range
+        ForestLodManager.Entry far = add(0, 100);
+        
+        update(0, 0, 0);
+        assertEquals(2, manager.evaluated.size());
+        assertEquals(0, near.getLevel());
+        assertEquals(-1, far.getLevel());
+        
+        update(0, 0, -3);
+        assertTrue(manager.evaluated.isEmpty());
+        assertEquals(0, near.getLevel());
+        
+        // Past the near tree's margin
+        update(0, 0, -6);
+        assertEquals(Arrays.asList(near), manager.evaluated);
+        assertEquals(1, near.getLevel());
+        assertEquals(1, shownLevel(near));
+        assertEquals(1, manager.getLastFrameSwitchCount());
+        
+        // Travel counts the path and not the displacement so moving
+        // back and forth still reaches the far tree's margin
+        for( int i = 0; i < 5; i++ ) {
+            update(0, 0, 0);
+            assertFalse(manager.evaluated.contains(far));
+            update(0, 0, -6);
+            if( i < 4 ) {
+                assertFalse(manager.evaluated.contains(far));
+            }
+        }
+        
+        // Travel is 66 now
+        assertTrue(manager.evaluated.contains(far));
+        assertEquals(-1, far.getLevel());
+    }
+ 
+    @Test
+    public void testMostOverdueCellsFirst() {
+        manager.setMaxCellsPerFrame(1);
+        
+        // Margins of 1, 4, and 5 in separate cells
+        ForestLodManager.Entry a = add(19, 0);
+        ForestLodManager.Entry b = add(-16, 0);
+        ForestLodManager.Entry c = add(0, 25);
+        
+        List<ForestLodManager.Entry> first = new ArrayList<ForestLodManager.Entry>();
+        for( int i = 0; i < 3; i++ ) {
+            update(0, 0, 0);
+            assertEquals(1, manager.getLastFrameCellCount());
+            assertEquals(2 - i, manager.getDueCellCount());
+            first.addAll(manager.evaluated);
+        }
+        assertEquals(new HashSet<ForestLodManager.Entry>(Arrays.asList(a, b, c)), 
+                     new HashSet<ForestLodManager.Entry>(first));
+ 
+        // All three are overdue at once and are served in order
+        update(0, 10, 0);
+        assertEquals(Arrays.asList(a), manager.evaluated);
+        update(0, 10, 0);
+        assertEquals(Arrays.asList(b), manager.evaluated);
+        update(0, 10, 0);
+        assertEquals(Arrays.asList(c), manager.evaluated);
+        update(0, 10, 0);
+        assertTrue(manager.evaluated.isEmpty());
+    }
+ 
+    @Test
+    public void testRoundRobinPicksUpDirectChanges() {
+        ForestLodManager.Entry a = add(0, 10);
+        add(30, 0);
+        add(-30, 0);
+        update(0, 0, 0);
+        assertEquals(0, a.getLevel());
+        
+        // Moving the location directly isn't seen by the manager
+        a.getLocation().set(0, 0, 15 + 200);
+        update(0, 0, 0);
+        assertTrue(manager.evaluated.isEmpty());
+        assertEquals(0, a.getLevel());
+        
+        manager.setRoundRobinCellsPerFrame(1);
+        boolean seen = false;
+        for( int i = 0; i < manager.getCellCount(); i++ ) {
+            update(0, 0, 0);
+            assertEquals(1, manager.getLastFrameCellCount());
+            seen |= manager.evaluated.contains(a);
+        }
+        assertTrue(seen);
+        assertEquals(-1, a.getLevel());
+    }
+ 
+    @Test
+    public void testAddRemoveAndSetLocation() {
+        ForestLodManager.Entry a = add(0, 10);
+        update(0, 0, 0);
+        assertEquals(0, shownLevel(a));
+        
+        // Moving to another cell re-evaluates it without camera movement
+        manager.setLocation(a, new Vector3f(25, 0, 0));
+        assertEquals(1, manager.getCellCount());
+        update(0, 0, 0);
+        assertEquals(Arrays.asList(a), manager.evaluated);
+        assertEquals(1, shownLevel(a));
+        
+        ForestLodManager.Entry b = add(24, 5);
+        manager.remove(a);
+        assertEquals(1, manager.getTreeCount());
+        update(0, 0, 0);
+        assertEquals(Arrays.asList(b), manager.evaluated);
+        
+        // Removed trees keep their levels and ignore changes
+        assertEquals(1, shownLevel(a));
+        manager.setLocation(a, new Vector3f(100, 0, 100));
+        manager.setScale(a, 2);
+        manager.setRadius(a, 3);
+        manager.remove(a);
+        assertEquals(new Vector3f(100, 0, 100), a.getLocation());
+        assertEquals(1, manager.getTreeCount());
+        assertEquals(1, manager.getCellCount());
+        update(0, 0, 0);
+        assertTrue(manager.evaluated.isEmpty());
+        assertEquals(1, shownLevel(a));
+ 
+        // Scaling marks the cell due, ranges 10 and 20 put it beyond
+        manager.setScale(b, 0.5f);
+        update(0, 0, 0);
+        assertEquals(Arrays.asList(b), manager.evaluated);
+        assertEquals(-1, b.getLevel());
+    }
+ 
+    @Test
+    public void testBudgetDegradesFarthestFirst() {
+        manager.setTriangleBudget(2500);
+        ForestLodManager.Entry a = addBudgeted(2, 0);
+        ForestLodManager.Entry b = addBudgeted(0, 4);
+        ForestLodManager.Entry c = addBudgeted(-6, 0);
+        ForestLodManager.Entry d = addBudgeted(0, -8);
+        update(0, 0, 0);
+        
+        assertEquals(4000, manager.getDesiredTriangleCount());
+        assertEquals(2200, manager.getShownTriangleCount());
+        assertEquals(2, manager.getDegradedCount());
+        assertEquals(0, shownLevel(a));
+        assertEquals(0, shownLevel(b));
+        assertEquals(1, shownLevel(c));
+        assertEquals(1, shownLevel(d));
+        assertEquals(0, d.getDesiredLevel());
+    }
+ 
+    @Test
+    public void testFarTreesRunOutOfLevelsFirst() {
+        ForestLodManager.Entry near = addBudgeted(0, 2);
+        ForestLodManager.Entry far = addBudgeted(0, -8);
+        
+        // Each pass moves every tree one level, farthest first
+        manager.setTriangleBudget(150);
+        update(0, 0, 0);
+        assertEquals(1, near.getLevel());
+        assertEquals(2, far.getLevel());
+        assertEquals(110, manager.getShownTriangleCount());
+        
+        manager.setTriangleBudget(50);
+        update(0, 0, 0);
+        assertEquals(2, near.getLevel());
+        assertEquals(2, far.getLevel());
+        
+        // Can't fit so everything stays at its coarsest level
+        manager.setTriangleBudget(5);
+        update(0, 0, 0);
+        assertEquals(2, near.getLevel());
+        assertEquals(2, far.getLevel());
+        assertEquals(20, manager.getShownTriangleCount());
+        assertEquals(2, manager.getDegradedCount());
+    }
+ 
+    @Test
+    public void testBudgetTies() {
+        manager.setTriangleBudget(1500);
+        
+        // Same size on screen, the tree added first goes first
+        ForestLodManager.Entry a = addBudgeted(5, 0);
+        ForestLodManager.Entry b = addBudgeted(-5, 0);
+        update(0, 0, 0);
+        assertEquals(1, a.getLevel());
+        assertEquals(0, b.getLevel());
+        
+        // A bigger radius makes it bigger on screen
+        manager.setRadius(a, 3);
+        manager.setRadius(b, 1);
+        manager.setTriangleBudget(1400);
+        update(0, 0, 0);
+        assertEquals(0, a.getLevel());
+        assertEquals(1, b.getLevel());
+    }
+ 
+    @Test
+    public void testBudgetRestores() {
+        manager.setTriangleBudget(2500);
+        ForestLodManager.Entry a = addBudgeted(2, 0);
+        ForestLodManager.Entry b = addBudgeted(0, 4);
+        ForestLodManager.Entry c = addBudgeted(-6, 0);
+        ForestLodManager.Entry d = addBudgeted(0, -8);
+        update(0, 0, 0);
+        assertEquals(1, d.getLevel());
+        
+        // Raising the budget
+        manager.setTriangleBudget(3500);
+        update(0, 0, 0);
+        assertEquals(1, manager.getDegradedCount());
+        assertEquals(0, c.getLevel());
+        assertEquals(1, d.getLevel());
+        
+        // Removing a tree, even with a still camera
+        manager.remove(a);
+        update(0, 0, 0);
+        assertEquals(0, manager.getDegradedCount());
+        assertEquals(0, d.getLevel());
+        assertEquals(3000, manager.getShownTriangleCount());
+        
+        // Disabling the budget
+        ForestLodManager.Entry e = addBudgeted(0, 6);
+        update(0, 0, 0);
+        assertEquals(1, manager.getDegradedCount());
+        manager.setTriangleBudget(0);
+        update(0, 0, 0);
+        assertEquals(0, manager.getDegradedCount());
+        assertEquals(4000, manager.getShownTriangleCount());
+        for( ForestLodManager.Entry entry : Arrays.asList(b, c, d, e) ) {
+            assertEquals(0, shownLevel(entry));
+        }
+    }
+ 
+    @Test
+    public void testBudgetFollowsCamera() {
+        manager.setTriangleBudget(1100);
+        ForestLodManager.Entry a = addBudgeted(0, 5);
+        ForestLodManager.Entry b = addBudgeted(0, -8);
+        update(0, 0, 0);
+        assertEquals(0, a.getLevel());
+        assertEquals(1, b.getLevel());
+        
+        // Moving away from a makes it coarser, which is shown right
+        // away, and b gets its level back once the camera has moved a 
+        // quarter of a cell since the last allocation
+        update(0, 0, -16);
+        assertEquals(1, a.getLevel());
+        assertEquals(0, b.getLevel());
+        assertEquals(0, manager.getDegradedCount());
+        
+        // A finer level that doesn't fit waits for the next allocation
+        // which then finds b smaller on screen
+        manager.setScale(a, 3);
+        update(0, 0, -16);
+        assertEquals(0, a.getDesiredLevel());
+        assertEquals(1, a.getLevel());
+        update(0, 1, -16);
+        assertEquals(1, a.getLevel());
+        update(0, 3, -16);
+        assertEquals(0, a.getLevel());
+        assertEquals(1, b.getLevel());
+        assertEquals(1, manager.getDegradedCount());
+    }
+ 
+    private static class RecordingManager extends ForestLodManager {
+        final List<Entry> evaluated = new ArrayList<Entry>();
+        
+        public RecordingManager( float cellSize ) {
+            super(cellSize);
+        }
+        
+        @Override
+        protected void evaluate( Cell cell ) {
+            evaluated.addAll(cell.entries);
+            super.evaluate(cell);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.mesh;
+
+import com.jme3.material.MatParamOverride;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.Spatial.CullHint;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ *  Checks LodSwitchControl level selection, hysteresis, and cross-fade
+ *  state without a renderer.  The levels are empty nodes and the camera 
+ *  is only used for its location.
+ *
+ *  @author    Paul Speed
+ */
+public class LodSwitchControlTest {
+
+    private Node tree;
+    private LodSwitchControl control;
+    private Camera camera;
+    private Node[] levels;
+ 
+    @Before
+    public void setUp() {
+        tree = new Node("tree");
+        control = new LodSwitchControl();
+        tree.addControl(control);
+        
+        float[] ranges = { 10, 20, 40 };
+        levels = new Node[ranges.length];
+        for( int i = 0; i < ranges.length; i++ ) {
+            levels[i] = new Node("level" + i);
+            control.addLevel(ranges[i], levels[i]);
+        }
+        camera = new Camera(640, 480);
+        control.setCamera(camera);
+    }
+ 
+    private void update( float distance, float tpf ) {
+        camera.setLocation(new Vector3f(0, 0, distance));
+        tree.updateLogicalState(tpf);
+    }
+ 
+    private int shownLevel() {
+        int result = -1;
+        for( int i = 0; i < levels.length; i++ ) {
+            if( levels[i].getLocalCullHint() != CullHint.Always ) {
+                assertEquals("More than one level shown", -1, result);
+                result = i;
+            }
+        }
+        return result;
+    }
+ 
+    private static float fade( Spatial level ) {
+        assertEquals(1, level.getLocalMatParamOverrides().size());
+        MatParamOverride override = level.getLocalMatParamOverrides().get(0);
+        assertEquals(LodSwitchControl.DEFAULT_FADE_PARAMETER, override.getName());
+        return (Float)override.getValue();
+    }
+ 
+    @Test
+    public void testSelectsLevelByDistance() {
+        update(5, 0.1f);
+        assertEquals(0, shownLevel());
+        update(15, 0.1f);
+        assertEquals(1, shownLevel());
+        update(30, 0.1f);
+        assertEquals(2, shownLevel());
+        update(50, 0.1f);
+        assertEquals(-1, shownLevel());
+        assertEquals(4, control.getSwitchCount());
+    }
+ 
+    @Test
+    public void testScaleStretchesRanges() {
+        tree.setLocalScale(2);
+        tree.updateGeometricState();
+        update(15, 0.1f);
+        assertEquals(0, shownLevel());
+        update(30, 0.1f);
+        assertEquals(1, shownLevel());
+    }
+ 
+    @Test
+    public void testJitterWithoutHysteresis() {
+        for( int i = 0; i < 100; i++ ) {
+            update(i % 2 == 0 ? 9.8f : 10.2f, 0.1f);
+        }
+        assertEquals(100, control.getSwitchCount());
+    }
+ 
+    @Test
+    public void testHysteresisReducesSwitches() {
+        control.setHysteresis(0.1f);
+        for( int i = 0; i < 100; i++ ) {
+            update(i % 2 == 0 ? 9.8f : 10.2f, 0.1f);
+        }
+        // Only the initial switch from nothing to level 0
+        assertEquals(1, control.getSwitchCount());
+        assertEquals(0, shownLevel());
+    }
+ 
+    @Test
+    public void testHysteresisMargin() {
+        control.setHysteresis(0.1f);
+        update(5, 0.1f);
+        update(10.9f, 0.1f);
+        assertEquals(0, shownLevel());
+        update(11.1f, 0.1f);
+        assertEquals(1, shownLevel());
+        
+        // Level 1 starts at 10 so it is kept down to 9
+        update(9.1f, 0.1f);
+        assertEquals(1, shownLevel());
+        update(8.9f, 0.1f);
+        assertEquals(0, shownLevel());
+    }
+ 
+    @Test
+    public void testCrossFade() {
+        update(5, 0.1f);
+        assertEquals(0, shownLevel());
+        
+        control.setFadeTime(1);
+        update(15, 0);
+        assertTrue(control.isFading());
+        assertEquals(CullHint.Inherit, levels[0].getLocalCullHint());
+        assertEquals(CullHint.Inherit, levels[1].getLocalCullHint());
+        assertEquals(-1f, fade(levels[0]), 0.0001f);
+        assertEquals(0f, fade(levels[1]), 0.0001f);
+        
+        update(15, 0.25f);
+        assertEquals(-0.75f, fade(levels[0]), 0.0001f);
+        assertEquals(0.25f, fade(levels[1]), 0.0001f);
+        
+        update(15, 0.8f);
+        assertFalse(control.isFading());
+        assertEquals(1, shownLevel());
+        assertEquals(0, levels[0].getLocalMatParamOverrides().size());
+        assertEquals(0, levels[1].getLocalMatParamOverrides().size());
+    }
+ 
+    @Test
+    public void testCloneHasOwnLevels() {
+        update(5, 0.1f);
+        Node copy = tree.clone(false);
+        LodSwitchControl copyControl = copy.getControl(LodSwitchControl.class);
+        assertNotSame(control, copyControl);
+        assertSame(copy, copyControl.getSpatial());
+        assertEquals(0, copyControl.getSwitchCount());
+        
+        copyControl.setCamera(camera);
+        camera.setLocation(new Vector3f(0, 0, 15));
+        copy.updateLogicalState(0.1f);
+        assertEquals(CullHint.Always, copy.getChild(0).getLocalCullHint());
+        assertEquals(CullHint.Inherit, copy.getChild(1).getLocalCullHint());
+        assertEquals(CullHint.Always, copy.getChild(2).getLocalCullHint());
+        
+        // The original has not moved
+        assertEquals(0, shownLevel());
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.service;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.simsilica.arboreal.Tree;
+import com.simsilica.arboreal.TreeParameters;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ *  Checks that GenerationCache only frees the buffers of evicted results
+ *  once nothing references them anymore.  Freeing is recorded instead of
+ *  actually destroying the buffers.
+ *
+ *  @author    Paul Speed
+ */
+public class GenerationCacheTest {
+
+    private TreeParameters treeParms;
+    private RecordingCache cache;
+    private long treeSize;
+ 
+    @Before
+    public void setUp() {
+        treeParms = new TreeParameters();
+        treeSize = createTree(0).getByteSize();
+        
+        // Room for two trees
+        cache = new RecordingCache(treeSize * 2);
+        cache.setReleaseBuffersOnEvict(true);
+    }
+ 
+    private GeneratedTree createTree( int seed ) {
+        Mesh mesh = new Mesh();
+        mesh.setBuffer(Type.Position, 3, new float[] { 0, 0, 0,  1, 0, 0,  1, 1, 0,  0, 1, 0 });
+        mesh.setBuffer(Type.Index, 3, new short[] { 0, 1, 2,  0, 2, 3 });
+        return new GeneratedTree(new TreeRequest(treeParms, seed, 0), new Tree(), null,
+                                 Collections.singletonList(mesh), null);
+    }
+ 
+    @Test
+    public void testUnreferencedEvictionIsFreed() {
+        GeneratedTree a = createTree(1);
+        cache.put(a);
+        cache.put(createTree(2));
+        assertEquals(1, a.getReferenceCount());
+        
+        cache.put(createTree(3));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(0, a.getReferenceCount());
+        assertEquals(Collections.singletonList(a), cache.freed);
+        // Only the positions, not the index buffer
+        assertEquals(48, cache.getReleasedBytes());
+    }
+ 
+    @Test
+    public void testReferencedEvictionWaitsForRelease() {
+        // Like TreeGenerationService, the requester's reference first
+        GeneratedTree a = createTree(1).acquire();
+        cache.put(a);
+        cache.put(createTree(2));
+        cache.put(createTree(3));
+        
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(1, a.getReferenceCount());
+        assertTrue(cache.freed.isEmpty());
+        
+        cache.release(a);
+        assertEquals(Collections.singletonList(a), cache.freed);
+    }
+ 
+    @Test
+    public void testGetAcquiresForCaller() {
+        GeneratedTree a = createTree(1);
+        cache.put(a);
+        assertSame(a, cache.get(a.getRequest()));
+        assertEquals(2, a.getReferenceCount());
+        
+        // Releasing while still cached frees nothing
+        cache.release(a);
+        assertEquals(1, a.getReferenceCount());
+        
+        assertSame(a, cache.get(a.getRequest()));
+        cache.put(createTree(2));
+        cache.put(createTree(3));
+        assertTrue(cache.freed.isEmpty());
+        
+        cache.release(a);
+        assertEquals(Collections.singletonList(a), cache.freed);
+    }
+ 
+    @Test
+    public void testReplacedEntryIsDropped() {
+        GeneratedTree a = createTree(1);
+        cache.put(a);
+        
+        // Putting the same result again keeps it
+        cache.put(a);
+        assertEquals(1, a.getReferenceCount());
+        assertTrue(cache.freed.isEmpty());
+        
+        GeneratedTree b = createTree(1);
+        cache.put(b);
+        assertEquals(0, a.getReferenceCount());
+        assertEquals(Collections.singletonList(a), cache.freed);
+        assertSame(b, cache.get(b.getRequest()));
+    }
+ 
+    @Test
+    public void testNothingFreedWhenDisabledOrSoft() {
+        cache.setReleaseBuffersOnEvict(false);
+        GeneratedTree a = createTree(1);
+        cache.put(a);
+        cache.put(createTree(2));
+        cache.put(createTree(3));
+        assertEquals(0, a.getReferenceCount());
+        
+        cache.setReleaseBuffersOnEvict(true);
+        cache.setSoftTierEnabled(true);
+        GeneratedTree b = createTree(4);
+        cache.put(b);
+        cache.put(createTree(5));
+        cache.put(createTree(6));
+        assertEquals(0, b.getReferenceCount());
+        assertTrue(cache.freed.isEmpty());
+    }
+ 
+    @Test
+    public void testRemoveAndClear() {
+        GeneratedTree a = createTree(1);
+        GeneratedTree b = createTree(2);
+        cache.put(a);
+        cache.put(b);
+        
+        // The caller is given the cache's reference
+        assertSame(a, cache.remove(a.getRequest()));
+        assertEquals(1, a.getReferenceCount());
+        cache.release(a);
+        assertEquals(Collections.singletonList(a), cache.freed);
+        
+        cache.clear();
+        assertEquals(0, b.getReferenceCount());
+        assertEquals(1, cache.freed.size());
+    }
+ 
+    @Test
+    public void testOwnedBuffersExcludeIndexes() {
+        GeneratedTree a = createTree(1);
+        Mesh mesh = a.getBranchMeshes().get(0);
+        VertexBuffer level = new VertexBuffer(Type.Index);
+        level.setupData(VertexBuffer.Usage.Static, 3, VertexBuffer.Format.UnsignedShort,
+                        mesh.getBuffer(Type.Index).getData());
+        mesh.setLodLevels(new VertexBuffer[] { level });
+        
+        assertEquals(3, a.getVertexBuffers().size());
+        assertEquals(Collections.singleton(mesh.getBuffer(Type.Position)), a.getOwnedBuffers());
+    }
+ 
+    @Test(expected = IllegalStateException.class)
+    public void testOverRelease() {
+        GeneratedTree a = createTree(1).acquire();
+        a.release();
+        a.release();
+    }
+ 
+    private static class RecordingCache extends GenerationCache {
+        final List<GeneratedTree> freed = new ArrayList<GeneratedTree>();
+        
+        public RecordingCache( long maxBytes ) {
+            super(maxBytes);
+        }
+        
+        @Override
+        protected long releaseBuffers( GeneratedTree tree ) {
+            freed.add(tree);
+            long result = 0;
+            for( VertexBuffer vb : tree.getOwnedBuffers() ) {
+                result += GeneratedTree.byteSize(vb);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.service;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.VertexBuffer.Usage;
+import com.jme3.util.BufferUtils;
+import com.simsilica.arboreal.TreeParameters;
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+
+/**
+ *  Round-trips meshes through a MeshBakeCache pack file: store, flush,
+ *  reopen, and load.
+ *
+ *  @author    Paul Speed
+ */
+public class MeshBakeCacheTest {
+
+    private static final long HASH = 0x1234567890abcdefL;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+ 
+    private static Mesh createMesh( float offset ) {
+        Mesh mesh = new Mesh();
+        mesh.setBuffer(Type.Position, 3, new float[] {
+                offset, 0, 0,  offset + 1, 0, 0,  offset + 1, 1, 0,  offset, 1, 0 
+            });
+        mesh.setBuffer(Type.TexCoord, 2, new float[] { 0, 0,  1, 0,  1, 1,  0, 1 });
+        mesh.setBuffer(Type.Index, 3, new short[] { 0, 1, 2,  0, 2, 3 });
+        mesh.updateBound();
+        mesh.updateCounts();
+        return mesh;
+    }
+    
+    private static void assertSameMesh( Mesh expected, Mesh actual ) {
+        assertNotNull(actual);
+        assertEquals(expected.getMode(), actual.getMode());
+        assertEquals(expected.getVertexCount(), actual.getVertexCount());
+        assertEquals(expected.getTriangleCount(), actual.getTriangleCount());
+        for( Type type : new Type[] { Type.Position, Type.TexCoord } ) {
+            assertArrayEquals(toArray((FloatBuffer)expected.getBuffer(type).getData()), 
+                              toArray((FloatBuffer)actual.getBuffer(type).getData()), 0);
+        }
+        assertArrayEquals(toArray((ShortBuffer)expected.getBuffer(Type.Index).getData()), 
+                          toArray((ShortBuffer)actual.getBuffer(Type.Index).getData()));
+        assertEquals(expected.getNumLodLevels(), actual.getNumLodLevels());
+        for( int i = 0; i < expected.getNumLodLevels(); i++ ) {
+            assertArrayEquals(toArray((ShortBuffer)expected.getLodLevel(i).getData()),
+                              toArray((ShortBuffer)actual.getLodLevel(i).getData()));
+        }
+        // BoundingBox doesn't implement equals()
+        assertTrue(actual.getBound() instanceof BoundingBox);
+        assertEquals(expected.getBound().toString(), actual.getBound().toString());
+    }
+ 
+    private static float[] toArray( FloatBuffer buffer ) {
+        float[] result = new float[buffer.limit()];
+        for( int i = 0; i < result.length; i++ ) {
+            result[i] = buffer.get(i);
+        }
+        return result;
+    }
+ 
+    private static short[] toArray( ShortBuffer buffer ) {
+        short[] result = new short[buffer.limit()];
+        for( int i = 0; i < result.length; i++ ) {
+            result[i] = buffer.get(i);
+        }
+        return result;
+    }
+ 
+    @Test
+    public void testStoreAndReopen() throws IOException {
+        File file = folder.newFile("trees.pack");
+        Mesh branches = createMesh(0);
+        Mesh leaves = createMesh(5);
+        
+        MeshBakeCache cache = new MeshBakeCache(file);
+        cache.store(HASH, 1, 0, MeshBakeCache.PART_BRANCHES, branches);
+        cache.store(HASH, 1, 0, MeshBakeCache.PART_LEAVES, leaves);
+        cache.store(HASH, 1, 1, MeshBakeCache.PART_BRANCHES, null);
+        cache.flush();
+        cache.close();
+        
+        cache = new MeshBakeCache(file);
+        try {
+            assertEquals(3, cache.size());
+            assertSameMesh(branches, cache.load(HASH, 1, 0, MeshBakeCache.PART_BRANCHES));
+            assertSameMesh(leaves, cache.load(HASH, 1, 0, MeshBakeCache.PART_LEAVES));
+            
+            // Stored as null versus never stored
+            assertTrue(cache.contains(HASH, 1, 1, MeshBakeCache.PART_BRANCHES));
+            assertNull(cache.load(HASH, 1, 1, MeshBakeCache.PART_BRANCHES));
+            assertFalse(cache.contains(HASH, 2, 0, MeshBakeCache.PART_BRANCHES));
+            assertNull(cache.load(HASH, 2, 0, MeshBakeCache.PART_BRANCHES));
+            assertEquals(3, cache.getHitCount());
+            assertEquals(1, cache.getMissCount());
+        } finally {
+            cache.close();
+        }
+    }
+ 
+    @Test
+    public void testLodLevelsAndAppend() throws IOException {
+        File file = folder.newFile("lods.pack");
+        Mesh mesh = createMesh(0);
+        VertexBuffer level = new VertexBuffer(Type.Index);
+        level.setupData(Usage.Static, 3, VertexBuffer.Format.UnsignedShort, 
+                        BufferUtils.createShortBuffer(new short[] { 0, 1, 2 }));
+        mesh.setLodLevels(new VertexBuffer[] { mesh.getBuffer(Type.Index), level });
+        
+        MeshBakeCache cache = new MeshBakeCache(file);
+        cache.store(HASH, 7, 0, MeshBakeCache.PART_BRANCHES, mesh);
+        cache.close();
+        
+        // Append to the existing file
+        Mesh other = createMesh(3);
+        cache = new MeshBakeCache(file);
+        cache.store(HASH, 8, 0, MeshBakeCache.PART_BRANCHES, other);
+        cache.close();
+        
+        cache = new MeshBakeCache(file);
+        try {
+            assertEquals(2, cache.size());
+            assertSameMesh(mesh, cache.load(HASH, 7, 0, MeshBakeCache.PART_BRANCHES));
+            assertSameMesh(other, cache.load(HASH, 8, 0, MeshBakeCache.PART_BRANCHES));
+        } finally {
+            cache.close();
+        }
+    }
+ 
+    @Test
+    public void testUnflushedStoresAreNotVisible() throws IOException {
+        File file = folder.newFile("flush.pack");
+        MeshBakeCache writer = new MeshBakeCache(file);
+        try {
+            writer.store(HASH, 1, 0, MeshBakeCache.PART_BRANCHES, createMesh(0));
+            writer.flush();
+            writer.store(HASH, 2, 0, MeshBakeCache.PART_BRANCHES, createMesh(1));
+        
+            MeshBakeCache reader = new MeshBakeCache(file);
+            try {
+                assertTrue(reader.contains(HASH, 1, 0, MeshBakeCache.PART_BRANCHES));
+                assertFalse(reader.contains(HASH, 2, 0, MeshBakeCache.PART_BRANCHES));
+            } finally {
+                reader.close();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+ 
+    @Test
+    public void testGeneratedTreeRoundTrip() throws IOException {
+        File file = folder.newFile("tree.pack");
+        TreeRequest request = new TreeRequest(new TreeParameters(), 3, 0, 1);
+        List<Mesh> branches = Arrays.asList(createMesh(0), createMesh(1));
+        
+        // One leaf mesh shared by both levels
+        Mesh leaves = createMesh(2);
+        GeneratedTree tree = new GeneratedTree(request, null, null, branches, 
+                                               Arrays.asList(leaves, leaves));
+        
+        MeshBakeCache cache = new MeshBakeCache(file);
+        cache.store(tree);
+        cache.close();
+        
+        cache = new MeshBakeCache(file);
+        try {
+            assertTrue(cache.contains(request));
+            assertFalse(cache.contains(request.forSeed(4)));
+            
+            List<Mesh> loadedBranches = cache.loadBranches(request);
+            assertEquals(2, loadedBranches.size());
+            assertSameMesh(branches.get(0), loadedBranches.get(0));
+            assertSameMesh(branches.get(1), loadedBranches.get(1));
+            
+            List<Mesh> loadedLeaves = cache.loadLeaves(request);
+            assertSameMesh(leaves, loadedLeaves.get(0));
+            assertSame(loadedLeaves.get(0), loadedLeaves.get(1));
+            
+            assertNull(cache.loadBranches(request.forSeed(4)));
+        } finally {
+            cache.close();
+        }
+    }
+}
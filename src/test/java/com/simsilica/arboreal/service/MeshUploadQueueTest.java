@@ -0,0 +1,221 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.service;
+
+import com.jme3.math.Vector3f;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ *  Checks the MeshUploadQueue budgets and ordering using a fake clock
+ *  and attach actions that only record that they ran.
+ *
+ *  @author    Paul Speed
+ */
+public class MeshUploadQueueTest {
+
+    private static final long MS = 1000000L;
+
+    private FakeTime time;
+    private MeshUploadQueue queue;
+    private List<String> attached;
+ 
+    @Before
+    public void setUp() {
+        time = new FakeTime();
+        queue = new MeshUploadQueue(time);
+        attached = new ArrayList<String>();
+    }
+ 
+    private MeshUploadQueue.Upload offer( String name, float distance, long bytes ) {
+        return queue.offer(new Vector3f(distance, 0, 0), bytes, 1, new Attach(name, 0));
+    }
+ 
+    @Test
+    public void testClosestFirst() {
+        queue.setMaxMeshesPerFrame(1);
+        offer("far", 30, 100);
+        offer("near", 10, 100);
+        offer("middle", 20, 100);
+        
+        assertEquals(3, queue.getQueueDepth());
+        for( int i = 0; i < 3; i++ ) {
+            assertEquals(1, queue.update(Vector3f.ZERO));
+        }
+        assertEquals(0, queue.update(Vector3f.ZERO));
+        assertEquals("[near, middle, far]", attached.toString());
+        assertEquals(0, queue.getQueueDepth());
+    }
+ 
+    @Test
+    public void testOrderFollowsViewer() {
+        queue.setMaxMeshesPerFrame(1);
+        offer("a", 0, 100);
+        offer("b", 100, 100);
+        
+        // The viewer moved next to b before the first update
+        queue.update(new Vector3f(100, 0, 0));
+        assertEquals("[b]", attached.toString());
+    }
+ 
+    @Test
+    public void testEqualDistancesKeepOfferOrder() {
+        for( int i = 0; i < 5; i++ ) {
+            offer("t" + i, 10, 100);
+        }
+        queue.update(Vector3f.ZERO);
+        assertEquals("[t0, t1, t2, t3, t4]", attached.toString());
+    }
+ 
+    @Test
+    public void testByteBudget() {
+        queue.setMaxBytesPerFrame(1000);
+        for( int i = 0; i < 5; i++ ) {
+            offer("t" + i, i, 400);
+        }
+        
+        assertEquals(2, queue.update(Vector3f.ZERO));
+        assertEquals(800, queue.getLastFrameBytes());
+        assertEquals(2, queue.update(Vector3f.ZERO));
+        assertEquals(1, queue.update(Vector3f.ZERO));
+        assertEquals(800, queue.getMaxFrameBytes());
+        assertEquals(2000, queue.getTotalBytes());
+        assertEquals(5, queue.getTotalUploads());
+    }
+ 
+    @Test
+    public void testOversizedUploadStillRuns() {
+        queue.setMaxBytesPerFrame(1000);
+        offer("big", 0, 5000);
+        offer("small", 1, 10);
+        
+        // The first upload always runs even when it is over budget
+        assertEquals(1, queue.update(Vector3f.ZERO));
+        assertEquals("[big]", attached.toString());
+        assertEquals(5000, queue.getLastFrameBytes());
+        assertEquals(1, queue.update(Vector3f.ZERO));
+    }
+ 
+    @Test
+    public void testMeshBudget() {
+        queue.setMaxMeshesPerFrame(5);
+        queue.offer(new Vector3f(0, 0, 0), 10, 3, new Attach("a", 0));
+        queue.offer(new Vector3f(1, 0, 0), 10, 3, new Attach("b", 0));
+        
+        assertEquals(1, queue.update(Vector3f.ZERO));
+        assertEquals(3, queue.getLastFrameMeshes());
+        assertEquals(1, queue.update(Vector3f.ZERO));
+    }
+ 
+    @Test
+    public void testTimeBudget() {
+        queue.setMaxTimePerFrame(2 * MS);
+        for( int i = 0; i < 5; i++ ) {
+            // Each attach takes 1 ms of fake time
+            queue.offer(new Vector3f(i, 0, 0), 10, 1, new Attach("t" + i, MS));
+        }
+        
+        assertEquals(2, queue.update(Vector3f.ZERO));
+        assertEquals(2, queue.update(Vector3f.ZERO));
+        assertEquals(1, queue.update(Vector3f.ZERO));
+        assertEquals("[t0, t1, t2, t3, t4]", attached.toString());
+    }
+ 
+    @Test
+    public void testCancel() {
+        MeshUploadQueue.Upload a = offer("a", 0, 100);
+        MeshUploadQueue.Upload b = offer("b", 1, 100);
+        
+        assertTrue(a.cancel());
+        assertFalse(a.cancel());
+        assertEquals(1, queue.getQueueDepth());
+        
+        assertEquals(1, queue.update(Vector3f.ZERO));
+        assertEquals("[b]", attached.toString());
+        assertTrue(a.isCancelled());
+        assertFalse(a.isDone());
+        assertTrue(b.isDone());
+        
+        // Too late to cancel once it has run
+        assertFalse(b.cancel());
+        assertEquals(0, queue.getQueueDepth());
+    }
+ 
+    @Test
+    public void testLatency() {
+        offer("a", 0, 100);
+        time.advance(3 * MS);
+        offer("b", 1, 100);
+        time.advance(2 * MS);
+        
+        queue.update(Vector3f.ZERO);
+        assertEquals(5 * MS, queue.getMaxLatency());
+        assertEquals(((5 + 2) * MS) / 2, queue.getAverageLatency());
+    }
+ 
+    private static class FakeTime implements MeshUploadQueue.TimeSource {
+        private long now;
+        
+        public long getTime() {
+            return now;
+        }
+        
+        public void advance( long nanos ) {
+            now += nanos;
+        }
+    }
+ 
+    private class Attach implements Runnable {
+        private final String name;
+        private final long duration;
+        
+        public Attach( String name, long duration ) {
+            this.name = name;
+            this.duration = duration;
+        }
+        
+        public void run() {
+            attached.add(name);
+            time.advance(duration);
+        }
+    }
+}
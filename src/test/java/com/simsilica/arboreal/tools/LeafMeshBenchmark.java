@@ -0,0 +1,219 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.arboreal.tools;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.math.Vector3f;
+import com.jme3.math.Vector4f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.util.BufferUtils;
+import com.simsilica.arboreal.mesh.ArrayMeshSink;
+import com.simsilica.arboreal.mesh.BillboardedLeavesMeshGenerator;
+import com.simsilica.arboreal.mesh.LeafTipBuffer;
+import com.simsilica.arboreal.mesh.Vertex;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ *  Measures leaves per second for the original array-based leaf mesh
+ *  generation versus the direct buffer and sink versions in
+ *  BillboardedLeavesMeshGenerator.  The original is measured both with
+ *  and without the collision data it used to always create.
+ *
+ *  <p>Usage: LeafMeshBenchmark [leafCount] [iterations]</p>
+ *
+ *  @author    Paul Speed
+ */
+public class LeafMeshBenchmark {
+
+    public static void main( String... args ) {
+        int leafCount = args.length > 0 ? Integer.parseInt(args[0]) : 16000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        float quadSize = 1.5f;
+ 
+        // Random tips in a tree-sized volume
+        Random random = new Random(0);
+        List<Vertex> vertexes = new ArrayList<Vertex>(leafCount);
+        for( int i = 0; i < leafCount; i++ ) {
+            Vertex v = new Vertex(random.nextFloat() * 4 - 2, random.nextFloat() * 6, random.nextFloat() * 4 - 2);
+            v.normal = new Vector3f(random.nextFloat() - 0.5f, random.nextFloat(), random.nextFloat() - 0.5f).normalizeLocal();
+            vertexes.add(v);
+        }
+        LeafTipBuffer tips = LeafTipBuffer.fromVertexes(vertexes); 
+        
+        BillboardedLeavesMeshGenerator generator = new BillboardedLeavesMeshGenerator();
+ 
+        System.out.println("Leaves:" + leafCount + "  iterations:" + iterations);
+        for( int pass = 0; pass < 2; pass++ ) {
+            // The first pass is warm-up
+            boolean report = pass > 0;
+             
+            long start = System.nanoTime();
+            for( int i = 0; i < iterations; i++ ) {
+                legacyGenerateMesh(vertexes, quadSize, true);
+            }
+            report(report, "Original", leafCount, iterations, System.nanoTime() - start);
+            
+            start = System.nanoTime();
+            for( int i = 0; i < iterations; i++ ) {
+                legacyGenerateMesh(vertexes, quadSize, false);
+            }
+            report(report, "Vector arrays", leafCount, iterations, System.nanoTime() - start);
+            
+            start = System.nanoTime();
+            for( int i = 0; i < iterations; i++ ) {
+                generator.generateMesh(tips, quadSize);
+            }
+            report(report, "Direct buffers", leafCount, iterations, System.nanoTime() - start);
+            
+            start = System.nanoTime();
+            for( int i = 0; i < iterations; i++ ) {
+                generator.generateMesh(tips, quadSize, new ArrayMeshSink());
+            }
+            report(report, "Array sink", leafCount, iterations, System.nanoTime() - start);
+        }
+    }
+ 
+    private static void report( boolean report, String name, int leafCount, int iterations, long nanos ) {
+        if( !report ) {
+            return;
+        }
+        double seconds = nanos / 1000000000.0;
+        double leavesPerSecond = ((double)leafCount * iterations) / seconds;
+        System.out.println(String.format("%-16s %10.3f ms/mesh %14.0f leaves/sec", 
+                                         name, (seconds * 1000) / iterations, leavesPerSecond));
+    }
+ 
+    /**
+     *  The original leaf generation that built Vector arrays and then
+     *  copied them into buffers.
+     */   
+    private static Mesh legacyGenerateMesh( List<Vertex> locations, float quadSize, boolean collisionData ) {
+        Vector3f[] posArray = new Vector3f[locations.size() * 4];
+        Vector3f[] normArray = new Vector3f[locations.size() * 4];
+        Vector4f[] uvArray = new Vector4f[locations.size() * 4];
+        float[] sizeArray = new float[locations.size() * 4];
+        short[] indexArray = new short[locations.size() * 2 * 3];
+        int index = 0;
+        int baseIndex = 0;
+        
+        int textureCellIndex = 0;
+        int uCells = 1;
+        float uCellSize = 1f / 4;
+        int vCells = 4;
+        float vCellSize = 1f / vCells;
+        
+        for( Vertex v : locations ) {
+            Vector3f p = v.pos;
+            posArray[baseIndex+0] = p; 
+            posArray[baseIndex+1] = p; 
+            posArray[baseIndex+2] = p; 
+            posArray[baseIndex+3] = p;
+
+            int vCell = (textureCellIndex % (vCells * 2)); 
+            int uCell = ((textureCellIndex / (vCells * 2)) % (uCells * 2));
+            
+            float uBase;
+            float uTop;
+            if( uCell < uCells ) {
+                uTop = -1.0f + uCell * uCellSize;
+                uBase = uTop + uCellSize;
+            } else {
+                uBase = (uCell - uCells) * uCellSize;
+                uTop = uBase + uCellSize;
+            }
+
+            float vBase;
+            float vTop;
+            if( vCell < vCells ) {
+                vTop = -1.0f + vCell * vCellSize;
+                vBase = vTop + vCellSize;
+            } else {
+                vBase = (vCell - vCells) * vCellSize;
+                vTop = vBase + vCellSize;
+            }
+             
+            uvArray[baseIndex+0] = new Vector4f(0, 0, uBase, vBase);            
+            uvArray[baseIndex+1] = new Vector4f(1, 0, uTop, vBase);            
+            uvArray[baseIndex+2] = new Vector4f(1, 1, uTop, vTop);            
+            uvArray[baseIndex+3] = new Vector4f(0, 1, uBase, vTop);
+            textureCellIndex++;
+
+            normArray[baseIndex+0] = v.normal;
+            normArray[baseIndex+1] = v.normal;
+            normArray[baseIndex+2] = v.normal;
+            normArray[baseIndex+3] = v.normal;
+ 
+            sizeArray[baseIndex+0] = quadSize;
+            sizeArray[baseIndex+1] = quadSize;
+            sizeArray[baseIndex+2] = quadSize;
+            sizeArray[baseIndex+3] = quadSize;
+ 
+            indexArray[index++] = (short)(baseIndex);           
+            indexArray[index++] = (short)(baseIndex + 1);           
+            indexArray[index++] = (short)(baseIndex + 2);           
+            indexArray[index++] = (short)(baseIndex + 2);           
+            indexArray[index++] = (short)(baseIndex + 3);           
+            indexArray[index++] = (short)(baseIndex);
+            
+            baseIndex += 4;                       
+        }
+        
+        Mesh mesh = new Mesh();
+        mesh.setBuffer(Type.Position, 3, BufferUtils.createFloatBuffer(posArray));
+        mesh.setBuffer(Type.Normal, 3, BufferUtils.createFloatBuffer(normArray));
+        mesh.setBuffer(Type.TexCoord, 4, BufferUtils.createFloatBuffer(uvArray));
+        mesh.setBuffer(Type.Size, 1, BufferUtils.createFloatBuffer(sizeArray));
+        mesh.setBuffer(Type.Index, 3, BufferUtils.createShortBuffer(indexArray));
+        mesh.updateBound();
+        if( collisionData ) {
+            mesh.createCollisionData();
+        }
+        
+        BoundingBox bb = (BoundingBox)mesh.getBound();
+        Vector3f extents = bb.getExtent(null);
+        extents.addLocal(quadSize * 0.6f, quadSize * 0.6f, quadSize * 0.6f);        
+        bb.setXExtent(extents.x);  
+        bb.setYExtent(extents.y);  
+        bb.setZExtent(extents.z);
+        mesh.setBound(bb);  
+        return mesh;
+    }
+}